@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.qucosa.fedora.mets;
+
+import de.qucosa.fedora.oai.OaiHeader;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link MetsProcessor#handleXmlResult(InputStream, OaiHeader)} with the streaming and the DOM parser,
+ * for METS test fixtures and for a large METS document with thousands of files.
+ * <p>
+ * Throughput mode reports operations per millisecond, sample mode reports the latency percentiles including
+ * p0.99. Allocation rates are reported when run with {@code -prof gc}, see the {@code benchmarks} profile.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@State(Scope.Benchmark)
+public class MetsParserBenchmark {
+
+    private static final String LARGE_DOCUMENT = "large";
+    private static final int LARGE_DOCUMENT_FILES = 5000;
+
+    /**
+     * Name of a METS test fixture or {@code large} for a generated document based on qucosa7455.
+     */
+    @Param({"qucosa13", "qucosa7455", LARGE_DOCUMENT})
+    public String document;
+
+    @Param({"true", "false"})
+    public boolean streamingParser;
+
+    private byte[] content;
+    private OaiHeader header;
+    private MetsProcessor metsProcessor;
+
+    @Setup
+    public void setUp() throws Exception {
+        String fixture = LARGE_DOCUMENT.equals(document) ? "qucosa7455" : document;
+        try (InputStream resource = getClass().getResourceAsStream("/mets/" + fixture + "-mets.xml")) {
+            content = IOUtils.toByteArray(resource);
+        }
+        if (LARGE_DOCUMENT.equals(document)) {
+            content = addFiles(content, LARGE_DOCUMENT_FILES);
+        }
+        header = new OaiHeader("oai:example.org:" + fixture.replace("qucosa", "qucosa:"),
+                DatatypeConverter.parseDateTime("2016-10-28T14:13:28Z").getTime(), false);
+
+        // the parser neither uses the HTTP client nor the persistence service
+        metsProcessor = new MetsProcessorBuilder(new URI("http://localhost:8080/mets/"), null, null)
+                .setStreamingParser(streamingParser)
+                .build();
+    }
+
+    @Benchmark
+    public Object handleXmlResult() {
+        ReportingDocumentMetadata reportingDocument = metsProcessor.handleXmlResult(
+                new ByteArrayInputStream(content), header);
+        if (reportingDocument == null) {
+            throw new IllegalStateException("METS document " + document + " could not be parsed.");
+        }
+        return reportingDocument;
+    }
+
+    /**
+     * @param content a METS document with a fileSec, encoded in UTF-8
+     * @param files   number of files to add
+     * @return the document with an additional file group of {@code files} attachments
+     */
+    private static byte[] addFiles(byte[] content, int files) {
+        String mets = new String(content, StandardCharsets.UTF_8);
+        StringBuilder fileGrp = new StringBuilder(files * 400);
+        fileGrp.append("  <mets:fileGrp USE=\"ATTACHMENT\">\n");
+        for (int i = 0; i < files; i++) {
+            fileGrp.append("   <mets:file ID=\"ATT-X").append(i).append("\" MIMETYPE=\"image/tiff\" USE=\"ARCHIVE\">\n")
+                    .append("    <mets:FLocat xmlns:xlin=\"http://www.w3.org/1999/xlink\" LOCTYPE=\"URL\"")
+                    .append(" xlin:href=\"http://localhost:8080/fedora/objects/qucosa:7455/datastreams/ATT-X")
+                    .append(i).append("/content\" xlin:title=\"scan-").append(i).append(".tif\" />\n")
+                    .append("   </mets:file>\n");
+        }
+        fileGrp.append("  </mets:fileGrp>\n");
+        int end = mets.indexOf(" </mets:fileSec>");
+        return (mets.substring(0, end) + fileGrp + mets.substring(end)).getBytes(StandardCharsets.UTF_8);
+    }
+}
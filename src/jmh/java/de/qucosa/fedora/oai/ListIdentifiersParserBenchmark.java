@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.qucosa.fedora.oai;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link OaiHarvester#handleXmlResult(InputStream, Date, OaiRunResult)} with the streaming and the
+ * DOM parser, for the ListIdentifiers test fixture and for generated pages of 1k and 10k headers.
+ * <p>
+ * Throughput mode reports operations per millisecond, sample mode reports the latency percentiles including
+ * p0.99. Allocation rates are reported when run with {@code -prof gc}, see the {@code benchmarks} profile.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+@State(Scope.Benchmark)
+public class ListIdentifiersParserBenchmark {
+
+    private static final String LIST_IDENTIFIERS_XML = "/oai/listIdentifiers.xml";
+    private static final String RESPONSE_DATE = "2014-06-08T11:43:00Z";
+
+    /**
+     * {@code fixture} for the test resource, otherwise the number of headers of a generated page.
+     */
+    @Param({"fixture", "1000", "10000"})
+    public String page;
+
+    @Param({"true", "false"})
+    public boolean streamingParser;
+
+    private byte[] content;
+    private Date startTimeOfCurrentRun;
+    private OaiRunResult lastRunResult;
+    private OaiHarvester oaiHarvester;
+
+    @Setup
+    public void setUp() throws Exception {
+        if ("fixture".equals(page)) {
+            try (InputStream resource = getClass().getResourceAsStream(LIST_IDENTIFIERS_XML)) {
+                content = IOUtils.toByteArray(resource);
+            }
+        } else {
+            content = generateListIdentifiersPage(Integer.parseInt(page));
+        }
+        // equal to the response date, so no server time difference is logged
+        startTimeOfCurrentRun = DatatypeConverter.parseDateTime(RESPONSE_DATE).getTime();
+        lastRunResult = new OaiRunResult();
+
+        // the parser neither uses the HTTP client nor the persistence service
+        oaiHarvester = new OaiHarvesterBuilder(new URI("http://localhost:8080/fedora/oai"), null, null)
+                .setStreamingParser(streamingParser)
+                .build();
+    }
+
+    @Benchmark
+    public Object handleXmlResult() throws Exception {
+        return oaiHarvester.handleXmlResult(new ByteArrayInputStream(content), startTimeOfCurrentRun,
+                lastRunResult);
+    }
+
+    /**
+     * @param headers number of headers, every tenth is deleted and every header belongs to two sets
+     * @return a ListIdentifiers response with a resumption token, encoded in UTF-8
+     */
+    static byte[] generateListIdentifiersPage(int headers) {
+        StringBuilder xml = new StringBuilder(headers * 250);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">\n")
+                .append("    <responseDate>").append(RESPONSE_DATE).append("</responseDate>\n")
+                .append("    <request verb=\"ListIdentifiers\" metadataPrefix=\"oai_dc\">")
+                .append("http://localhost:8080/fedora/oai</request>\n")
+                .append("    <ListIdentifiers>\n");
+        for (int i = 0; i < headers; i++) {
+            xml.append((i % 10 == 9) ? "        <header status=\"deleted\">\n" : "        <header>\n")
+                    .append("            <identifier>oai:example.org:qucosa:").append(i).append("</identifier>\n")
+                    .append("            <datestamp>2014-05-06T17:33:25Z</datestamp>\n")
+                    .append("            <setSpec>test:").append(i % 7).append("</setSpec>\n")
+                    .append("            <setSpec>doc-type:article</setSpec>\n")
+                    .append("        </header>\n");
+        }
+        xml.append("        <resumptionToken expirationDate=\"2014-06-08T12:43:00Z\" completeListSize=\"")
+                .append(headers * 10).append("\" cursor=\"0\">")
+                .append("90d421891f643ca2a8ae2a6ab8a7e0b5</resumptionToken>\n")
+                .append("    </ListIdentifiers>\n")
+                .append("</OAI-PMH>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -37,6 +37,68 @@ COMMENT ON COLUMN public."OAIRunResult"."resumptionToken" IS 'the resumption tok
 COMMENT ON COLUMN public."OAIRunResult"."resumptionTokenExpirationDate" IS 'the resumption token''s optional expiration date';
 COMMENT ON COLUMN public."OAIRunResult"."nextFromTimestamp" IS 'the value of the _from_ parameter to be used in the next GET request not containing a resumptionToken.';
 
+-- Column: public."OAIRunResult"."setSpec"
+-- added after the initial release, so existing databases are migrated as well
+
+ALTER TABLE public."OAIRunResult" ADD COLUMN IF NOT EXISTS "setSpec" character varying(256); -- the OAI set the run was restricted to, null if the whole repository was requested
+COMMENT ON COLUMN public."OAIRunResult"."setSpec" IS 'the OAI set the run was restricted to, null if the whole repository was requested';
+
+-- Column: public."OAIRunResult"."repository"
+-- added after the initial release, so existing databases are migrated as well
+
+ALTER TABLE public."OAIRunResult" ADD COLUMN IF NOT EXISTS "repository" character varying(256) NOT NULL DEFAULT ''; -- the name of the repository the row was harvested from, empty for the default repository
+COMMENT ON COLUMN public."OAIRunResult"."repository" IS 'the name of the repository the row was harvested from, empty for the default repository';
+
+-- Index: public."OAIRunResult.repository_setSpec_ID"
+
+-- DROP INDEX public."OAIRunResult.repository_setSpec_ID";
+
+DROP INDEX IF EXISTS public."OAIRunResult.setSpec_ID";
+CREATE INDEX IF NOT EXISTS "OAIRunResult.repository_setSpec_ID"
+  ON public."OAIRunResult"
+  USING btree
+  ("repository", "setSpec", "ID");
+
+
+-- Table: public."OAISliceRunResult"
+
+-- DROP TABLE IF EXISTS public."OAISliceRunResult";
+
+CREATE TABLE IF NOT EXISTS public."OAISliceRunResult"
+(
+  "sliceIndex" integer NOT NULL, -- position of the date range slice of the initial harvest, starting with 0
+  "from" timestamp with time zone NOT NULL, -- the value of the _from_ parameter of the slice's first request
+  "until" timestamp with time zone NOT NULL, -- the value of the _until_ parameter of the slice's first request
+  "resumptionToken" character varying(256), -- the resumption token of the slice's next request in case there is any
+  "completed" boolean NOT NULL DEFAULT false, -- true if all pages of the slice have been harvested
+  CONSTRAINT "OAISliceRunResult.sliceIndex" PRIMARY KEY ("sliceIndex")
+)
+WITH (
+  OIDS=FALSE
+);
+ALTER TABLE public."OAISliceRunResult"
+  OWNER TO "reportingDB";
+COMMENT ON COLUMN public."OAISliceRunResult"."sliceIndex" IS 'position of the date range slice of the initial harvest, starting with 0';
+COMMENT ON COLUMN public."OAISliceRunResult"."from" IS 'the value of the _from_ parameter of the slice''s first request';
+COMMENT ON COLUMN public."OAISliceRunResult"."until" IS 'the value of the _until_ parameter of the slice''s first request';
+COMMENT ON COLUMN public."OAISliceRunResult"."resumptionToken" IS 'the resumption token of the slice''s next request in case there is any';
+COMMENT ON COLUMN public."OAISliceRunResult"."completed" IS 'true if all pages of the slice have been harvested';
+
+-- Column: public."OAISliceRunResult"."repository"
+-- added after the initial release, so existing databases are migrated as well
+
+ALTER TABLE public."OAISliceRunResult" ADD COLUMN IF NOT EXISTS "repository" character varying(256) NOT NULL DEFAULT ''; -- the name of the repository the row was harvested from, empty for the default repository
+COMMENT ON COLUMN public."OAISliceRunResult"."repository" IS 'the name of the repository the row was harvested from, empty for the default repository';
+
+DO $$
+BEGIN
+  IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'OAISliceRunResult.repository_sliceIndex') THEN
+    ALTER TABLE public."OAISliceRunResult" DROP CONSTRAINT IF EXISTS "OAISliceRunResult.sliceIndex";
+    ALTER TABLE public."OAISliceRunResult" ADD CONSTRAINT "OAISliceRunResult.repository_sliceIndex" PRIMARY KEY ("repository", "sliceIndex");
+  END IF;
+END
+$$;
+
 
 -- Table: public."OAIHeader"
 
@@ -60,6 +122,39 @@ COMMENT ON COLUMN public."OAIHeader".datestamp IS 'last modification of the docu
 COMMENT ON COLUMN public."OAIHeader"."setSpec" IS 'the sets this record belongs to';
 COMMENT ON COLUMN public."OAIHeader"."statusIsDeleted" IS 'true if the header contains the status deleted element';
 
+-- Columns: public."OAIHeader"."leaseOwner", public."OAIHeader"."leaseExpiration"
+-- added after the initial release, so existing databases are migrated as well
+
+ALTER TABLE public."OAIHeader" ADD COLUMN IF NOT EXISTS "leaseOwner" character varying(256); -- the reporting node that claimed this header for processing
+ALTER TABLE public."OAIHeader" ADD COLUMN IF NOT EXISTS "leaseExpiration" timestamp with time zone; -- the time the claim expires and the header may be claimed by another node
+COMMENT ON COLUMN public."OAIHeader"."leaseOwner" IS 'the reporting node that claimed this header for processing';
+COMMENT ON COLUMN public."OAIHeader"."leaseExpiration" IS 'the time the claim expires and the header may be claimed by another node';
+
+-- Column: public."OAIHeader"."repository"
+-- added after the initial release, so existing databases are migrated as well
+
+ALTER TABLE public."OAIHeader" ADD COLUMN IF NOT EXISTS "repository" character varying(256) NOT NULL DEFAULT ''; -- the name of the repository the row was harvested from, empty for the default repository
+COMMENT ON COLUMN public."OAIHeader"."repository" IS 'the name of the repository the row was harvested from, empty for the default repository';
+
+DO $$
+BEGIN
+  IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'OAIHeader.repository_recordIdentifier') THEN
+    ALTER TABLE public."OAIHeader" DROP CONSTRAINT IF EXISTS "OAIHeader.recordIdentifier";
+    ALTER TABLE public."OAIHeader" ADD CONSTRAINT "OAIHeader.repository_recordIdentifier" PRIMARY KEY ("repository", "recordIdentifier");
+  END IF;
+END
+$$;
+
+-- Index: public."OAIHeader.repository_datestamp_recordIdentifier"
+
+-- DROP INDEX public."OAIHeader.repository_datestamp_recordIdentifier";
+
+DROP INDEX IF EXISTS public."OAIHeader.datestamp_recordIdentifier";
+CREATE INDEX IF NOT EXISTS "OAIHeader.repository_datestamp_recordIdentifier"
+  ON public."OAIHeader"
+  USING btree
+  ("repository", datestamp, "recordIdentifier");
+
 
 
 
@@ -87,3 +182,77 @@ COMMENT ON COLUMN public."ReportingDocuments"."mandator" IS 'the mandator this i
 COMMENT ON COLUMN public."ReportingDocuments"."documentType" IS 'a document type such as article, book, issue';
 COMMENT ON COLUMN public."ReportingDocuments"."distributionDate" IS 'the date this item has been published in the repository';
 COMMENT ON COLUMN public."ReportingDocuments"."headerLastModified" IS 'the date the metadata has been updated in the repository';
+
+-- Column: public."ReportingDocuments"."repository"
+-- added after the initial release, so existing databases are migrated as well
+
+ALTER TABLE public."ReportingDocuments" ADD COLUMN IF NOT EXISTS "repository" character varying(256) NOT NULL DEFAULT ''; -- the name of the repository the row was harvested from, empty for the default repository
+COMMENT ON COLUMN public."ReportingDocuments"."repository" IS 'the name of the repository the row was harvested from, empty for the default repository';
+
+-- Column: public."ReportingDocuments"."lastFetched"
+
+ALTER TABLE public."ReportingDocuments" ADD COLUMN IF NOT EXISTS "lastFetched" timestamp with time zone; -- the date of the METS document reported by the dissemination service when it has last been fetched, sent as If-Modified-Since
+COMMENT ON COLUMN public."ReportingDocuments"."lastFetched" IS 'the date of the METS document reported by the dissemination service when it has last been fetched, sent as If-Modified-Since';
+
+DO $$
+BEGIN
+  IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'ReportingDocuments.repository_recordIdentifier') THEN
+    ALTER TABLE public."ReportingDocuments" DROP CONSTRAINT IF EXISTS "ReportingDocuments.recordIdentifier";
+    ALTER TABLE public."ReportingDocuments" ADD CONSTRAINT "ReportingDocuments.repository_recordIdentifier" PRIMARY KEY ("repository", "recordIdentifier");
+  END IF;
+END
+$$;
+
+-- Index: public."ReportingDocuments.repository_distributionDate_mandator_documentType"
+-- Index: public."ReportingDocuments.repository_mandator_distributionDate_documentType"
+-- cover the publication statistics of a date range, for all mandators or a single one, by index-only scans
+
+-- DROP INDEX public."ReportingDocuments.repository_distributionDate_mandator_documentType";
+-- DROP INDEX public."ReportingDocuments.repository_mandator_distributionDate_documentType";
+
+CREATE INDEX IF NOT EXISTS "ReportingDocuments.repository_distributionDate_mandator_documentType"
+  ON public."ReportingDocuments"
+  USING btree
+  ("repository", "distributionDate", "mandator", "documentType");
+CREATE INDEX IF NOT EXISTS "ReportingDocuments.repository_mandator_distributionDate_documentType"
+  ON public."ReportingDocuments"
+  USING btree
+  ("repository", "mandator", "distributionDate", "documentType");
+
+
+-- Table: public."PublicationStatistics"
+-- number of ReportingDocuments per mandator, documentType and month of the distributionDate, maintained
+-- together with "ReportingDocuments"
+
+-- DROP TABLE public."PublicationStatistics";
+
+CREATE TABLE IF NOT EXISTS public."PublicationStatistics"
+(
+  "repository" character varying(256) NOT NULL DEFAULT '', -- the name of the repository the documents were harvested from, empty for the default repository
+  "mandator" character varying(256) NOT NULL, -- the mandator the documents are related to
+  "documentType" character varying(256) NOT NULL, -- the document type of the documents
+  "year" integer NOT NULL, -- the year of the documents' distributionDate
+  "month" integer NOT NULL, -- the month of the documents' distributionDate, 1 to 12
+  "count" bigint NOT NULL, -- the number of documents
+  CONSTRAINT "PublicationStatistics.repository_mandator_documentType_year_month" PRIMARY KEY ("repository", "mandator", "documentType", "year", "month")
+)
+WITH (
+  OIDS=FALSE
+);
+ALTER TABLE public."PublicationStatistics"
+  OWNER TO "reportingDB";
+COMMENT ON COLUMN public."PublicationStatistics"."repository" IS 'the name of the repository the documents were harvested from, empty for the default repository';
+COMMENT ON COLUMN public."PublicationStatistics"."mandator" IS 'the mandator the documents are related to';
+COMMENT ON COLUMN public."PublicationStatistics"."documentType" IS 'the document type of the documents';
+COMMENT ON COLUMN public."PublicationStatistics"."year" IS 'the year of the documents'' distributionDate';
+COMMENT ON COLUMN public."PublicationStatistics"."month" IS 'the month of the documents'' distributionDate, 1 to 12';
+COMMENT ON COLUMN public."PublicationStatistics"."count" IS 'the number of documents';
+
+-- fill the table once from the documents harvested before it existed. Months are taken in the time zone of
+-- the session running this script, which has to match the time zone of the reporting application.
+
+INSERT INTO public."PublicationStatistics" ("repository", "mandator", "documentType", "year", "month", "count")
+  SELECT "repository", "mandator", "documentType", EXTRACT(YEAR FROM "distributionDate"), EXTRACT(MONTH FROM "distributionDate"), COUNT(*)
+  FROM public."ReportingDocuments"
+  WHERE NOT EXISTS (SELECT 1 FROM public."PublicationStatistics")
+  GROUP BY 1, 2, 3, 4, 5;
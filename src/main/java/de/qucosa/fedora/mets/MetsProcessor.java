@@ -17,14 +17,28 @@
 package de.qucosa.fedora.mets;
 
 import de.qucosa.fedora.oai.OaiHeader;
+import de.qucosa.metrics.Counter;
+import de.qucosa.metrics.MetricsRegistry;
+import de.qucosa.metrics.Timer;
 import de.qucosa.persistence.PersistenceException;
 import de.qucosa.persistence.PersistenceService;
 import de.qucosa.util.TerminateableRunnable;
+import de.qucosa.util.TokenBucket;
+import de.qucosa.util.XmlParserCache;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
 import org.slf4j.Logger;
@@ -34,24 +48,32 @@ import org.xml.sax.SAXException;
 
 import javax.ws.rs.core.UriBuilder;
 import javax.xml.namespace.NamespaceContext;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -59,6 +81,14 @@ import java.util.concurrent.TimeUnit;
  * {@link PersistenceService}, requests a external METS disemmination service,
  * processes the XML result, i.e. extracts data relevant for reporting and
  * stores the results in {@link PersistenceService}.
+ * <p>
+ * METS documents are requested concurrently by a fixed number of workers. All workers share one
+ * {@link TokenBucket} so the dissemination service never receives more than one request per
+ * {@code minimumWaittimeBetweenTwoRequests}, regardless of the number of workers.
+ * <p>
+ * If a {@link CloseableHttpAsyncClient} is configured, there are no workers. Instead the processor's own thread
+ * keeps up to {@code maxRequestsInFlight} non-blocking requests outstanding and parses their responses as they
+ * complete.
  */
 public class MetsProcessor extends TerminateableRunnable {
 
@@ -66,6 +96,7 @@ public class MetsProcessor extends TerminateableRunnable {
     public static final String ERROR_MSG_UNEXPECTED_HTTP_RESPONSE = "Unexpected METS dissemination service response HTTP";
     private static final String XPATH_DISTRIBUTION_DATE = "//mods:originInfo[@eventType='distribution']/mods:dateIssued";
     private static final String XPATH_DOCUMENT_TYPE = "//mets:structMap[@TYPE='LOGICAL']/mets:div/@TYPE";
+    private static final Duration NOTIFICATION_WAIT_SLICE = Duration.standardSeconds(10);
     private static final String XPATH_MANDATOR = "//mets:metsHdr/mets:agent[@ROLE='EDITOR']/mets:name";
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
@@ -76,154 +107,696 @@ public class MetsProcessor extends TerminateableRunnable {
      * Interval to poll persistenceService for new OAIHeaders
      */
     private final Duration pollInterval;
-    private final Duration minimumWaittimeBetweenTwoRequests;
     private final PersistenceService persistenceService;
+    private final int workers;
+
+    /**
+     * Maximum number of {@link OaiHeader}s to read from persistence at once
+     */
+    private final int pageSize;
+
+    /**
+     * Position in the queue of {@link OaiHeader}s, {@code null} to start with the oldest header
+     */
+    private OaiHeader lastHeaderProcessed = null;
+
+    /**
+     * Name to claim {@link OaiHeader}s with, or {@code null} to read the queue without claiming
+     */
+    private final String leaseOwner;
+    private final Duration leaseDuration;
+
+    /**
+     * If true, wait for notifications on new {@link OaiHeader}s instead of sleeping for the full poll interval
+     */
+    private final boolean useNotifications;
+
+    /**
+     * Optional queue of headers handed over by the harvester in the same process, or {@code null}. Ignored
+     * if headers are claimed.
+     */
+    private final BlockingQueue<OaiHeader> handoffQueue;
+
+    /**
+     * Headers taken from {@link #handoffQueue} but not processed yet
+     */
+    private final List<OaiHeader> handedOverHeaders = new ArrayList<>();
+
+    /**
+     * Optional non-blocking client used instead of {@link #httpClient} and the worker pool, or {@code null}
+     */
+    private final CloseableHttpAsyncClient asyncHttpClient;
+
+    /**
+     * Maximum number of outstanding requests of {@link #asyncHttpClient}
+     */
+    private final int maxRequestsInFlight;
+
+    /**
+     * If true, headers not newer than the stored document's header last modified date are not requested
+     */
+    private final boolean skipUnchanged;
+
+    /**
+     * If true, documents already in persistence are requested with an {@code If-Modified-Since} header set to the
+     * date reported by the dissemination service when they have last been fetched
+     */
+    private final boolean useConditionalRequests;
+
+    /**
+     * Shared by all workers to throttle requests to the METS dissemination service
+     */
+    private final TokenBucket rateLimiter;
+    private final boolean useStreamingParser;
+    private final MetsStaxExtractor streamingExtractor = new MetsStaxExtractor();
     private final SimpleNamespaceContext namespaces = new SimpleNamespaceContext(new HashMap<String, String>() {{
         put("mets", "http://www.loc.gov/METS/");
         put("mods", "http://www.loc.gov/mods/v3");
         put("slub", "http://slub-dresden.de/");
     }});
+    private final XmlParserCache xmlParserCache = new XmlParserCache(true, namespaces);
 
-    // TODO better name.
-    private boolean moreOAIHeadersToProcess = true;
+    private final MetricsRegistry metricsRegistry;
+    private final Timer requestTimer;
+    private final Timer parseTimer;
+    private final Counter documentsParsed;
+    private final Counter documentsNotModified;
+    private final Counter documentsUnchanged;
+    private final Counter documentsDeleted;
 
     public MetsProcessor(URI harvestingUri, Duration pollInterval, Duration minimumWaittimeBetweenTwoRequests,
                          PersistenceService persistenceService, CloseableHttpClient httpClient) {
+        this(harvestingUri, pollInterval, minimumWaittimeBetweenTwoRequests, persistenceService, httpClient,
+                MetsProcessorBuilder.DEFAULT_USE_STREAMING_PARSER, MetsProcessorBuilder.DEFAULT_WORKERS,
+                MetsProcessorBuilder.DEFAULT_PAGE_SIZE, null, MetsProcessorBuilder.DEFAULT_LEASE_DURATION,
+                MetsProcessorBuilder.DEFAULT_USE_NOTIFICATIONS, null, null,
+                MetsProcessorBuilder.DEFAULT_MAX_REQUESTS_IN_FLIGHT, MetsProcessorBuilder.DEFAULT_SKIP_UNCHANGED,
+                MetsProcessorBuilder.DEFAULT_USE_CONDITIONAL_REQUESTS, new MetricsRegistry());
+    }
+
+    protected MetsProcessor(URI harvestingUri, Duration pollInterval, Duration minimumWaittimeBetweenTwoRequests,
+                            PersistenceService persistenceService, CloseableHttpClient httpClient,
+                            boolean useStreamingParser, int workers, int pageSize, String leaseOwner,
+                            Duration leaseDuration, boolean useNotifications,
+                            BlockingQueue<OaiHeader> handoffQueue, CloseableHttpAsyncClient asyncHttpClient,
+                            int maxRequestsInFlight, boolean skipUnchanged, boolean useConditionalRequests,
+                            MetricsRegistry metricsRegistry) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("parameter workers must be at least 1");
+        }
+        if (maxRequestsInFlight < 1) {
+            throw new IllegalArgumentException("parameter maxRequestsInFlight must be at least 1");
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("parameter pageSize must be at least 1");
+        }
         this.uri = harvestingUri;
         this.pollInterval = pollInterval;
-        this.minimumWaittimeBetweenTwoRequests = minimumWaittimeBetweenTwoRequests;
+        this.rateLimiter = new TokenBucket(minimumWaittimeBetweenTwoRequests, 1);
         this.persistenceService = persistenceService;
         this.httpClient = httpClient;
+        this.useStreamingParser = useStreamingParser;
+        this.workers = workers;
+        this.pageSize = pageSize;
+        this.leaseOwner = leaseOwner;
+        this.leaseDuration = leaseDuration;
+        this.useNotifications = useNotifications;
+        this.handoffQueue = handoffQueue;
+        this.asyncHttpClient = asyncHttpClient;
+        this.maxRequestsInFlight = maxRequestsInFlight;
+        this.skipUnchanged = skipUnchanged;
+        this.useConditionalRequests = useConditionalRequests;
+        this.metricsRegistry = metricsRegistry;
+        this.requestTimer = metricsRegistry.timer("mets.http");
+        this.parseTimer = metricsRegistry.timer("mets.parse");
+        this.documentsParsed = metricsRegistry.counter("mets.documents.parsed");
+        this.documentsNotModified = metricsRegistry.counter("mets.documents.notmodified");
+        this.documentsUnchanged = metricsRegistry.counter("mets.documents.unchanged");
+        this.documentsDeleted = metricsRegistry.counter("mets.documents.deleted");
     }
 
     @Override
     public void run() {
 
-        logger.info("Requesting METS data from URL: {}", this.uri.toASCIIString());
-        do {
-
-            // get OaiHeaders from persistence
-            List<OaiHeader> oaiHeadersToProcess;
-            try {
-                oaiHeadersToProcess = persistenceService.getOaiHeaders();
-                if (!oaiHeadersToProcess.isEmpty()) {
-                    moreOAIHeadersToProcess = true;
-                } else {
-                    // nothing to do, go to sleep
-                    moreOAIHeadersToProcess = false;
+        ExecutorService workerPool = null;
+        if (asyncHttpClient != null) {
+            logger.info("Requesting METS data from URL: {} with up to {} request(s) in flight",
+                    this.uri.toASCIIString(), maxRequestsInFlight);
+        } else {
+            logger.info("Requesting METS data from URL: {} using {} worker(s)", this.uri.toASCIIString(), workers);
+            workerPool = Executors.newFixedThreadPool(workers);
+        }
+        try {
+            do {
+
+                // get next page of OaiHeaders from persistence, oldest first
+                List<OaiHeader> oaiHeadersToProcess;
+                try {
+                    oaiHeadersToProcess = nextOaiHeaders();
+                    if (oaiHeadersToProcess.isEmpty()) {
+                        // reached the end of the queue, go to sleep. Headers that could not be
+                        // processed in this sweep are retried in the next one.
+                        waitForNextRun();
+                        continue;
+                    }
+                } catch (PersistenceException e) {
+                    logger.error("Could not load OaiHeaders from persistence service: ", e);
+                    // retry after wait
                     waitForNextRun();
                     continue;
                 }
-            } catch (PersistenceException e) {
-                logger.error("Could not load OaiHeaders from persistence service: ", e);
-                // retry after wait
-                moreOAIHeadersToProcess = false;
-                waitForNextRun();
+
+                // deleted records have no METS document, their documents are removed without any request
+                List<OaiHeader> deletedOaiHeaders = new LinkedList<>();
+                List<OaiHeader> oaiHeadersOfExistingRecords = withoutDeleted(oaiHeadersToProcess, deletedOaiHeaders);
+
+                // documents that are up to date need no request, their headers are just removed
+                List<ReportingDocumentMetadata> reportingDocuments = new LinkedList<>();
+                List<OaiHeader> oaiHeadersProcessed = new LinkedList<>();
+                Map<String, Date> storedLastModified = getStoredLastModified(oaiHeadersOfExistingRecords);
+                List<OaiHeader> oaiHeadersToRequest = withoutUnchanged(oaiHeadersOfExistingRecords, storedLastModified,
+                        oaiHeadersProcessed);
+
+                // request METS dissemination, conditional on the stored fetch dates
+                Map<String, Date> lastFetched = getLastFetched(oaiHeadersToRequest);
+                if (asyncHttpClient != null) {
+                    harvestAsynchronously(oaiHeadersToRequest, lastFetched, reportingDocuments,
+                            oaiHeadersProcessed);
+                } else {
+                    harvestConcurrently(workerPool, oaiHeadersToRequest, lastFetched, reportingDocuments,
+                            oaiHeadersProcessed);
+                }
+
+                // store results in persistence
+                try {
+                    persistenceService.addOrUpdateReportingDocuments(reportingDocuments);
+                    if (!deletedOaiHeaders.isEmpty()) {
+                        persistenceService.removeReportingDocuments(recordIdentifiers(deletedOaiHeaders));
+                        oaiHeadersProcessed.addAll(deletedOaiHeaders);
+                    }
+                    persistenceService.removeOaiHeadersIfUnmodified(oaiHeadersProcessed);
+                } catch (PersistenceException e) {
+                    // TODO @Ralf: what should we do here? Different Messages
+                    // for both persistence operations?
+                    // it may happen that we successfully store all
+                    // ReportingDocumentHeaders but something goes wrong when
+                    // removing OaiHeaders. Putting both in one transaction
+                    // doesn't seem required since the persistence is
+                    // consistent even if we process all OaiHeaders again.
+                    logger.error("Could not persist ReportingDocumentHeaders: ", e);
+                }
+
+            } while (isRunning());
+        } finally {
+            if (workerPool != null) {
+                workerPool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Read the next page of {@link OaiHeader}s to process. If a lease owner is configured, the headers are
+     * claimed for this processor, so processors on other nodes sharing the same database get disjoint
+     * pages. Otherwise headers handed over by the harvester are processed first, then the queue is read page
+     * by page starting after {@link #lastHeaderProcessed}.
+     *
+     * @return the next page or an empty list if the end of the queue has been reached
+     * @throws PersistenceException if any error occurred
+     */
+    private List<OaiHeader> nextOaiHeaders() throws PersistenceException {
+        if (leaseOwner != null) {
+            return persistenceService.claimOaiHeaders(leaseOwner, leaseDuration, pageSize);
+        }
+
+        if (handoffQueue != null) {
+            handoffQueue.drainTo(handedOverHeaders, pageSize - handedOverHeaders.size());
+            if (!handedOverHeaders.isEmpty()) {
+                List<OaiHeader> page = new ArrayList<>(handedOverHeaders);
+                handedOverHeaders.clear();
+                return page;
+            }
+        }
+
+        List<OaiHeader> page = persistenceService.getOaiHeaders(
+                (lastHeaderProcessed == null) ? null : lastHeaderProcessed.getDatestamp(),
+                (lastHeaderProcessed == null) ? null : lastHeaderProcessed.getRecordIdentifier(),
+                pageSize);
+        lastHeaderProcessed = (page.isEmpty()) ? null : page.get(page.size() - 1);
+        return page;
+    }
+
+    /**
+     * @param oaiHeaders        the headers to process
+     * @param deletedOaiHeaders receives the headers of deleted records
+     * @return the headers of records that have not been deleted
+     */
+    private List<OaiHeader> withoutDeleted(List<OaiHeader> oaiHeaders, List<OaiHeader> deletedOaiHeaders) {
+        List<OaiHeader> remainingOaiHeaders = new ArrayList<>(oaiHeaders.size());
+        for (OaiHeader header : oaiHeaders) {
+            if (header.isStatusIsDeleted()) {
+                deletedOaiHeaders.add(header);
+            } else {
+                remainingOaiHeaders.add(header);
+            }
+        }
+        if (!deletedOaiHeaders.isEmpty()) {
+            logger.debug("Removing {} deleted document(s).", deletedOaiHeaders.size());
+            documentsDeleted.add(deletedOaiHeaders.size());
+        }
+        return remainingOaiHeaders;
+    }
+
+    /**
+     * Look up the header last modified dates of the documents already in persistence with a single query. The
+     * lookup is skipped if {@link #skipUnchanged} is not set.
+     *
+     * @param oaiHeaders the headers to look up the documents of
+     * @return the header last modified dates by record identifier, empty if the lookup failed
+     */
+    private Map<String, Date> getStoredLastModified(List<OaiHeader> oaiHeaders) {
+        if (!skipUnchanged) {
+            return Collections.emptyMap();
+        }
+
+        try {
+            return persistenceService.getReportingDocumentsHeaderLastModified(recordIdentifiers(oaiHeaders));
+        } catch (PersistenceException e) {
+            logger.warn("Could not look up stored ReportingDocuments, requesting all METS documents: {}",
+                    e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Look up the dates the documents already in persistence have last been fetched with a single query. The
+     * lookup is skipped if {@link #useConditionalRequests} is not set.
+     *
+     * @param oaiHeaders the headers to look up the documents of
+     * @return the fetch dates by record identifier, empty if the lookup failed
+     */
+    private Map<String, Date> getLastFetched(List<OaiHeader> oaiHeaders) {
+        if (!useConditionalRequests || oaiHeaders.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        try {
+            return persistenceService.getReportingDocumentsLastFetched(recordIdentifiers(oaiHeaders));
+        } catch (PersistenceException e) {
+            logger.warn("Could not look up stored ReportingDocuments, requesting METS documents unconditionally: {}",
+                    e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * @param oaiHeaders          the headers to process
+     * @param storedLastModified  header last modified dates of the documents in persistence by record identifier
+     * @param oaiHeadersProcessed receives the headers whose documents are up to date
+     * @return the headers whose documents have to be requested, all headers if {@link #skipUnchanged} is not set
+     */
+    private List<OaiHeader> withoutUnchanged(List<OaiHeader> oaiHeaders, Map<String, Date> storedLastModified,
+                                             List<OaiHeader> oaiHeadersProcessed) {
+        if (!skipUnchanged) {
+            return oaiHeaders;
+        }
+
+        List<OaiHeader> oaiHeadersToRequest = new ArrayList<>(oaiHeaders.size());
+        for (OaiHeader header : oaiHeaders) {
+            Date lastModified = storedLastModified.get(header.getRecordIdentifier());
+            if (lastModified != null && !header.getDatestamp().after(lastModified)) {
+                oaiHeadersProcessed.add(header);
+            } else {
+                oaiHeadersToRequest.add(header);
+            }
+        }
+        if (!oaiHeadersProcessed.isEmpty()) {
+            logger.debug("Skipping {} unchanged METS document(s).", oaiHeadersProcessed.size());
+            documentsUnchanged.add(oaiHeadersProcessed.size());
+        }
+        return oaiHeadersToRequest;
+    }
+
+    /**
+     * Request and parse the METS documents of the given {@link OaiHeader}s on the worker pool. Requests
+     * to the METS dissemination service are throttled by the shared {@link #rateLimiter}.
+     * <p>
+     * If interrupted, the remaining requests are cancelled. Documents that have been processed so far are
+     * still handed back to be persisted, headers of cancelled requests are left in persistence.
+     *
+     * @param workerPool          the pool to run the requests on
+     * @param oaiHeadersToProcess the headers to request METS documents for
+     * @param lastFetched         fetch dates of the documents in persistence by record identifier
+     * @param reportingDocuments  receives the successfully parsed documents in header order
+     * @param oaiHeadersProcessed receives the headers that have been processed, successfully or not
+     */
+    private void harvestConcurrently(ExecutorService workerPool, List<OaiHeader> oaiHeadersToProcess,
+                                     final Map<String, Date> lastFetched,
+                                     List<ReportingDocumentMetadata> reportingDocuments,
+                                     List<OaiHeader> oaiHeadersProcessed) {
+
+        List<Future<ReportingDocumentMetadata>> results = new ArrayList<>(oaiHeadersToProcess.size());
+        for (final OaiHeader header : oaiHeadersToProcess) {
+            results.add(workerPool.submit(new Callable<ReportingDocumentMetadata>() {
+                @Override
+                public ReportingDocumentMetadata call() throws InterruptedException {
+                    rateLimiter.acquire();
+                    return harvest(header, lastFetched);
+                }
+            }));
+        }
+
+        boolean interrupted = false;
+        Iterator<OaiHeader> headers = oaiHeadersToProcess.iterator();
+        for (Future<ReportingDocumentMetadata> result : results) {
+            OaiHeader header = headers.next();
+            if (interrupted && (!result.isDone() || result.isCancelled())) {
                 continue;
             }
 
-            // request METS dissemination
-            List<ReportingDocumentMetadata> reportingDocuments = new LinkedList<>();
-            List<OaiHeader> oaiHeadersProcessed = new LinkedList<>();
-            for (OaiHeader header : oaiHeadersToProcess) {
-                ReportingDocumentMetadata reportingDoc = harvest(header);
+            try {
+                ReportingDocumentMetadata reportingDoc = result.get();
                 if (reportingDoc != null) {
                     reportingDocuments.add(reportingDoc);
                 }
                 oaiHeadersProcessed.add(header);
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for METS dissemination results: {}", e.getMessage());
+                interrupted = true;
+                for (Future<ReportingDocumentMetadata> pending : results) {
+                    pending.cancel(true);
+                }
+            } catch (ExecutionException | CancellationException e) {
+                // the worker has been interrupted before sending its request, header remains unprocessed
+                logger.debug("METS document for id '{}' has not been requested.", header.getRecordIdentifier());
+            }
+        }
+    }
 
-                // wait between 2 requests. If interrupted, do not process
-                // the remaining oaiHeadersToProcess (but persist the
-                // documents processed so far.)
-                if (!waitForNextRun()) {
-                    break;
+    /**
+     * Request and parse the METS documents of the given {@link OaiHeader}s using {@link #asyncHttpClient}, keeping
+     * up to {@link #maxRequestsInFlight} requests outstanding until their responses are parsed. Responses are
+     * received by the client's I/O threads and parsed on the calling thread as they complete, while further
+     * requests are in flight. Requests to the METS dissemination service are throttled by the shared
+     * {@link #rateLimiter}.
+     * <p>
+     * If interrupted, no further requests are sent and the outstanding ones are cancelled. Documents that have
+     * been processed so far are still handed back to be persisted, headers of outstanding requests are left in
+     * persistence. The interrupt status of the thread is restored.
+     *
+     * @param oaiHeadersToProcess the headers to request METS documents for
+     * @param lastFetched         fetch dates of the documents in persistence by record identifier
+     * @param reportingDocuments  receives the successfully parsed documents in header order
+     * @param oaiHeadersProcessed receives the headers that have been processed, successfully or not
+     */
+    private void harvestAsynchronously(List<OaiHeader> oaiHeadersToProcess, Map<String, Date> lastFetched,
+                                       List<ReportingDocumentMetadata> reportingDocuments,
+                                       List<OaiHeader> oaiHeadersProcessed) {
+
+        List<OaiHeader> headers = new ArrayList<>(oaiHeadersToProcess);
+        ReportingDocumentMetadata[] results = new ReportingDocumentMetadata[headers.size()];
+        boolean[] processed = new boolean[headers.size()];
+        final BlockingQueue<AsyncResponse> completions = new LinkedBlockingQueue<>();
+        List<Future<HttpResponse>> requests = new ArrayList<>(headers.size());
+
+        // a request counts against maxRequestsInFlight until its response has been parsed, so no more than
+        // maxRequestsInFlight response bodies are buffered at any time
+        int sent = 0;
+        int received = 0;
+        try {
+            for (OaiHeader header : headers) {
+                rateLimiter.acquire();
+
+                // parse the responses completed so far, then wait while the maximum number is outstanding
+                AsyncResponse completed;
+                while ((completed = completions.poll()) != null) {
+                    handleAsyncResponse(completed, headers, results, processed);
+                    received++;
                 }
+                while (sent - received >= maxRequestsInFlight) {
+                    handleAsyncResponse(completions.take(), headers, results, processed);
+                    received++;
+                }
+
+                final int index = sent;
+                final Timer.Context requestTime = requestTimer.time();
+                requests.add(asyncHttpClient.execute(createRequest(header, lastFetched),
+                        new FutureCallback<HttpResponse>() {
+                            @Override
+                            public void completed(HttpResponse response) {
+                                requestTime.close();
+                                completions.add(new AsyncResponse(index, response, null));
+                            }
+
+                            @Override
+                            public void failed(Exception ex) {
+                                requestTime.close();
+                                completions.add(new AsyncResponse(index, null, ex));
+                            }
+
+                            @Override
+                            public void cancelled() {
+                                completions.add(new AsyncResponse(index, null, null));
+                            }
+                        }));
+                sent++;
+            }
+
+            while (received < sent) {
+                handleAsyncResponse(completions.take(), headers, results, processed);
+                received++;
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for METS dissemination results: {}", e.getMessage());
+            // free the connections of the outstanding requests, but keep the responses that are already complete
+            for (Future<HttpResponse> request : requests) {
+                request.cancel(true);
+            }
+            AsyncResponse completed;
+            while ((completed = completions.poll()) != null) {
+                handleAsyncResponse(completed, headers, results, processed);
+            }
+            Thread.currentThread().interrupt();
+        }
 
+        for (int index = 0; index < headers.size(); index++) {
+            if (processed[index]) {
+                if (results[index] != null) {
+                    reportingDocuments.add(results[index]);
+                }
+                oaiHeadersProcessed.add(headers.get(index));
             }
+        }
+    }
 
-            // store results in persistence
+    private void handleAsyncResponse(AsyncResponse asyncResponse, List<OaiHeader> headers,
+                                     ReportingDocumentMetadata[] results, boolean[] processed) {
+        OaiHeader header = headers.get(asyncResponse.index);
+        if (asyncResponse.response != null) {
             try {
-                persistenceService.addOrUpdateReportingDocuments(reportingDocuments);
-                persistenceService.removeOaiHeadersIfUnmodified(oaiHeadersProcessed);
-            } catch (PersistenceException e) {
-                // TODO @Ralf: what should we do here? Different Messages
-                // for both persistence operations?
-                // it may happen that we successfully store all
-                // ReportingDocumentHeaders but something goes wrong when
-                // removing OaiHeaders. Putting both in one transaction
-                // doesn't seem required since the persistence is
-                // consistent even if we process all OaiHeaders again.
-                logger.error("Could not persist ReportingDocumentHeaders: ", e);
+                results[asyncResponse.index] = handleResponse(asyncResponse.response, header);
+            } catch (Exception ex) {
+                logger.error(errorMsgWithRecordIdentifier(header) + ensureMessage(ex));
+                countFailure("io");
             }
+            processed[asyncResponse.index] = true;
+        } else if (asyncResponse.failure != null) {
+            logger.error(errorMsgWithRecordIdentifier(header) + ensureMessage(asyncResponse.failure));
+            countFailure("io");
+            processed[asyncResponse.index] = true;
+        } else {
+            // the request has been cancelled, header remains unprocessed
+            logger.debug("METS document for id '{}' has not been requested.", header.getRecordIdentifier());
+        }
+    }
 
-            // sleep 
-            waitForNextRun();
+    private ReportingDocumentMetadata harvest(OaiHeader header, Map<String, Date> lastFetched) {
+        ReportingDocumentMetadata reportingDocument = null;
 
-        } while (isRunning());
+        try (CloseableHttpResponse httpResponse = execute(createRequest(header, lastFetched))) {
+            reportingDocument = handleResponse(httpResponse, header);
+        } catch (Exception ex) {
+            logger.error(errorMsgWithRecordIdentifier(header) + ensureMessage(ex));
+            countFailure("io");
+        }
+        return reportingDocument;
     }
 
-    private ReportingDocumentMetadata harvest(OaiHeader header) {
-        URI uri = buildMetsRequestURI(header.getRecordIdentifier());
-        HttpGet httpGet = new HttpGet(uri);
+    /**
+     * Execute the request and record the time until the response headers have been received.
+     */
+    private CloseableHttpResponse execute(HttpGet request) throws IOException {
+        try (Timer.Context time = requestTimer.time()) {
+            return httpClient.execute(request);
+        }
+    }
+
+    /**
+     * @param cause short name of the cause, e.g. {@code io} or {@code http.404}
+     */
+    private void countFailure(String cause) {
+        metricsRegistry.counter("mets.failures." + cause).increment();
+    }
+
+    /**
+     * @param header             the header to request the METS document for
+     * @param lastFetched fetch dates of the documents in persistence by record identifier
+     * @return the request, conditional if {@link #useConditionalRequests} is set and the document has been fetched
+     * before
+     */
+    private HttpGet createRequest(OaiHeader header, Map<String, Date> lastFetched) {
+        HttpGet httpGet = new HttpGet(buildMetsRequestURI(header.getRecordIdentifier()));
+        Date ifModifiedSince = lastFetched.get(header.getRecordIdentifier());
+        if (useConditionalRequests && ifModifiedSince != null) {
+            httpGet.setHeader(HttpHeaders.IF_MODIFIED_SINCE, DateUtils.formatDate(ifModifiedSince));
+        }
+        return httpGet;
+    }
+
+    /**
+     * @param httpResponse response of the METS dissemination service
+     * @param header       the header the METS document has been requested for
+     * @return the {@link ReportingDocumentMetadata} parsed from the response or {@code null} if the document has
+     * not been modified, the response was not successful or could not be parsed
+     * @throws IOException if the response content could not be read
+     */
+    private ReportingDocumentMetadata handleResponse(HttpResponse httpResponse, OaiHeader header)
+            throws IOException {
         ReportingDocumentMetadata reportingDocument = null;
-        String errorMsgWithRecordIdentifier = "METS document for id '" + header.getRecordIdentifier() + "' could not be processed.";
 
-        try (CloseableHttpResponse httpResponse = httpClient.execute(httpGet)) {
-            if (httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                HttpEntity httpEntity = httpResponse.getEntity();
-                if (httpEntity != null) {
-                    reportingDocument = handleXmlResult(httpEntity.getContent(), header);
-                } else {
-                    logger.error("{} {}", errorMsgWithRecordIdentifier, ERROR_MSG_EMPTY_RESPONSE_FROM_METS_DISSEMINATION_SERVICE);
-                }
+        if (httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+            HttpEntity httpEntity = decompress(httpResponse.getEntity());
+            if (httpEntity != null) {
+                reportingDocument = withLastFetched(handleXmlResult(httpEntity.getContent(), header), httpResponse);
+                // the extractor may stop early, read the rest so the connection can be kept alive
+                EntityUtils.consumeQuietly(httpEntity);
             } else {
-                logger.error("{} {} {} {}" , errorMsgWithRecordIdentifier, ERROR_MSG_UNEXPECTED_HTTP_RESPONSE,
-                        httpResponse.getStatusLine().getStatusCode(), httpResponse.getStatusLine().getReasonPhrase());
+                logger.error("{} {}", errorMsgWithRecordIdentifier(header), ERROR_MSG_EMPTY_RESPONSE_FROM_METS_DISSEMINATION_SERVICE);
+                countFailure("empty");
             }
-        } catch (Exception ex) {
-            logger.error(errorMsgWithRecordIdentifier + ensureMessage(ex));
+        } else if (httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+            logger.debug("METS document for id '{}' has not been modified.", header.getRecordIdentifier());
+            documentsNotModified.increment();
+        } else {
+            logger.error("{} {} {} {}" , errorMsgWithRecordIdentifier(header), ERROR_MSG_UNEXPECTED_HTTP_RESPONSE,
+                    httpResponse.getStatusLine().getStatusCode(), httpResponse.getStatusLine().getReasonPhrase());
+            countFailure("http." + httpResponse.getStatusLine().getStatusCode());
         }
         return reportingDocument;
     }
 
+    /**
+     * The date to send as {@code If-Modified-Since} next time is taken from the response, so it is on the clock of
+     * the dissemination service: its {@code Last-Modified} header or, if missing, its {@code Date} header.
+     *
+     * @param reportingDocument the document parsed from the response, may be {@code null}
+     * @param httpResponse      the successful response of the METS dissemination service
+     * @return the document with the fetch date of the response, {@code null} if reportingDocument is {@code null}
+     */
+    private ReportingDocumentMetadata withLastFetched(ReportingDocumentMetadata reportingDocument,
+                                                      HttpResponse httpResponse) {
+        if (reportingDocument == null) {
+            return null;
+        }
+        Date lastFetched = parseDateHeader(httpResponse, HttpHeaders.LAST_MODIFIED);
+        if (lastFetched == null) {
+            lastFetched = parseDateHeader(httpResponse, HttpHeaders.DATE);
+        }
+        return new ReportingDocumentMetadata(reportingDocument.getRecordIdentifier(),
+                reportingDocument.getMandator(), reportingDocument.getDocumentType(),
+                reportingDocument.getDistributionDate(), reportingDocument.getHeaderLastModified(), lastFetched);
+    }
+
+    private Date parseDateHeader(HttpResponse httpResponse, String name) {
+        Header header = httpResponse.getFirstHeader(name);
+        return header != null ? DateUtils.parseDate(header.getValue()) : null;
+    }
+
+    /**
+     * The blocking client decompresses responses transparently, the non-blocking client does not.
+     *
+     * @param httpEntity the entity as received, may be {@code null}
+     * @return the entity decompressing its content if it is gzip or deflate encoded, the entity itself otherwise
+     */
+    private HttpEntity decompress(HttpEntity httpEntity) {
+        if (httpEntity == null || httpEntity.getContentEncoding() == null) {
+            return httpEntity;
+        }
+        String contentEncoding = httpEntity.getContentEncoding().getValue();
+        if ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GzipDecompressingEntity(httpEntity);
+        }
+        if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            return new DeflateDecompressingEntity(httpEntity);
+        }
+        return httpEntity;
+    }
+
+    private List<String> recordIdentifiers(List<OaiHeader> oaiHeaders) {
+        List<String> recordIdentifiers = new ArrayList<>(oaiHeaders.size());
+        for (OaiHeader header : oaiHeaders) {
+            recordIdentifiers.add(header.getRecordIdentifier());
+        }
+        return recordIdentifiers;
+    }
+
+    private String errorMsgWithRecordIdentifier(OaiHeader header) {
+        return "METS document for id '" + header.getRecordIdentifier() + "' could not be processed.";
+    }
+
     /**
      * @param content
      * @param header
      * @return the {@link ReportingDocumentMetadata} parsed from METS XML or
      *         {@code null} if any error occurred (e.g.
      */
-    private ReportingDocumentMetadata handleXmlResult(InputStream content, OaiHeader header) {
+    // package-private for the parser benchmarks
+    ReportingDocumentMetadata handleXmlResult(InputStream content, OaiHeader header) {
 
         ReportingDocumentMetadata reportingDoc = null;
-        try {
-            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            documentBuilderFactory.setNamespaceAware(true);
-            Document document = documentBuilderFactory.newDocumentBuilder().parse(content);
-
-            // TODO nice-to-have: validate httpEntity.getContent() against schema - is it valid mets?
-
-            String documentType = extractDocumentType(document);
-            Date distributionDate = extractDistributionDate(document);
-            String mandator = extractMandator(document);
-
-            reportingDoc = new ReportingDocumentMetadata(header.getRecordIdentifier(), mandator, documentType,
-                    distributionDate, header.getDatestamp());
+        try (Timer.Context time = parseTimer.time()) {
+            if (useStreamingParser) {
+                reportingDoc = streamingExtractor.extract(content, header.getRecordIdentifier(),
+                        header.getDatestamp());
+            } else {
+                reportingDoc = parseDocument(content, header);
+            }
 
         } catch (SAXException | IOException | ParserConfigurationException | XPathExpressionException
-                | IllegalArgumentException ex) {
+                | XMLStreamException | IllegalArgumentException ex) {
             logger.error("METS document for id '{}' could not be parsed or contains incomplete data: {}",
                     getLocalIdentifier(header.getRecordIdentifier()), ensureMessage(ex));
+            countFailure("parse");
         }
 
+        if (reportingDoc != null) {
+            documentsParsed.increment();
+        }
         return reportingDoc;
     }
 
-    private Date extractDistributionDate(Document document) throws XPathExpressionException {
+    /**
+     * Parse the METS document into a DOM and extract the reporting data using XPath. This is the fallback
+     * to {@link MetsStaxExtractor} if the streaming parser is disabled.
+     */
+    private ReportingDocumentMetadata parseDocument(InputStream content, OaiHeader header)
+            throws SAXException, IOException, ParserConfigurationException, XPathExpressionException,
+            IllegalArgumentException {
+
+        Document document = xmlParserCache.getDocumentBuilder().parse(content);
+
+        // TODO nice-to-have: validate httpEntity.getContent() against schema - is it valid mets?
+
+        String documentType = extractDocumentType(document);
+        Date distributionDate = extractDistributionDate(document);
+        String mandator = extractMandator(document);
+
+        return new ReportingDocumentMetadata(header.getRecordIdentifier(), mandator, documentType,
+                distributionDate, header.getDatestamp());
+    }
 
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        xPath.setNamespaceContext(namespaces);
+    private Date extractDistributionDate(Document document) throws XPathExpressionException {
 
-        XPathExpression xSelectDistributionDate = xPath.compile(XPATH_DISTRIBUTION_DATE);
+        XPathExpression xSelectDistributionDate = xmlParserCache.getExpression(XPATH_DISTRIBUTION_DATE);
         String distributionDateString = (String) xSelectDistributionDate.evaluate(document, XPathConstants.STRING);
         Date distributionDate = new Date(new DateTime(distributionDateString).getMillis());
 
@@ -232,43 +805,45 @@ public class MetsProcessor extends TerminateableRunnable {
 
     private String extractDocumentType(Document document) throws XPathExpressionException {
 
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        xPath.setNamespaceContext(namespaces);
-
-        XPathExpression xSelectQucosaDocumentType = xPath.compile(XPATH_DOCUMENT_TYPE);
+        XPathExpression xSelectQucosaDocumentType = xmlParserCache.getExpression(XPATH_DOCUMENT_TYPE);
         String qucosaDocumentType = (String) xSelectQucosaDocumentType.evaluate(document, XPathConstants.STRING);
 
         return qucosaDocumentType;
     }
 
     private String extractMandator(Document document) throws XPathExpressionException {
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        xPath.setNamespaceContext(namespaces);
-
-        XPathExpression xSelectMandator = xPath.compile(XPATH_MANDATOR);
+        XPathExpression xSelectMandator = xmlParserCache.getExpression(XPATH_MANDATOR);
         String mandator = (String) xSelectMandator.evaluate(document, XPathConstants.STRING);
         return mandator;
     }
 
     /**
-     * Sleep for {@link #pollInterval} if {@link #moreOAIHeadersToProcess} is
-     * {@code false}.
-     * 
+     * Sleep for {@link #pollInterval}. If notifications are enabled, wake up as soon as new {@link OaiHeader}s
+     * are added to persistence. Otherwise, if a handoff queue is configured, wake up as soon as a header is
+     * handed over.
+     *
      * @return {@code false} iff interrupted while waiting, or {@code true} in
      *         any other case.
      */
     private boolean waitForNextRun() {
-        long waitTime;
-        if(moreOAIHeadersToProcess) {
-            waitTime = minimumWaittimeBetweenTwoRequests.getMillis();
-        } else {
-            waitTime = pollInterval.getMillis();
-            //TODO would this be useful to see in log?
-            logger.info("Nothing to be done. Going to sleep for {} millis", waitTime);
+        long waitTime = pollInterval.getMillis();
+        //TODO would this be useful to see in log?
+        logger.info("Nothing to be done. Going to sleep for {} millis", waitTime);
+
+        if (useNotifications) {
+            return waitForNotification(waitTime);
         }
 
         try {
-            TimeUnit.MILLISECONDS.sleep(waitTime);
+            if (handoffQueue != null && leaseOwner == null) {
+                // wake up as soon as the harvester hands over a header
+                OaiHeader header = handoffQueue.poll(waitTime, TimeUnit.MILLISECONDS);
+                if (header != null) {
+                    handedOverHeaders.add(header);
+                }
+            } else {
+                TimeUnit.MILLISECONDS.sleep(waitTime);
+            }
             return true;
         } catch (InterruptedException e) {
             logger.warn("Interrupted while waiting for next METS run: {}", e.getMessage());
@@ -276,6 +851,39 @@ public class MetsProcessor extends TerminateableRunnable {
         }
     }
 
+    /**
+     * Wait for new {@link OaiHeader}s in slices of at most {@link #NOTIFICATION_WAIT_SLICE}, so termination
+     * is noticed in time even though waiting for a notification can't be interrupted.
+     */
+    private boolean waitForNotification(long waitTime) {
+        long deadline = System.currentTimeMillis() + waitTime;
+        try {
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0 && isRunning()) {
+                if (persistenceService.awaitOaiHeadersAdded(
+                        Duration.millis(Math.min(remaining, NOTIFICATION_WAIT_SLICE.getMillis())))) {
+                    logger.debug("Woken up by new OaiHeaders.");
+                    return true;
+                }
+                if (Thread.interrupted()) {
+                    logger.warn("Interrupted while waiting for next METS run.");
+                    return false;
+                }
+            }
+            return true;
+        } catch (PersistenceException e) {
+            // fall back to polling
+            logger.warn("Could not wait for new OaiHeaders, polling instead: {}", e.getMessage());
+            try {
+                TimeUnit.MILLISECONDS.sleep(Math.max(0, deadline - System.currentTimeMillis()));
+                return true;
+            } catch (InterruptedException ie) {
+                logger.warn("Interrupted while waiting for next METS run: {}", ie.getMessage());
+                return false;
+            }
+        }
+    }
+
     private URI buildMetsRequestURI(String oaiId) {
 
         UriBuilder builder = UriBuilder.fromUri(uri).queryParam("pid", getLocalIdentifier(oaiId));
@@ -297,6 +905,22 @@ public class MetsProcessor extends TerminateableRunnable {
         return message;
     }
 
+    /**
+     * Outcome of a request of {@link #asyncHttpClient}: either a response, a failure or neither if the request has
+     * been cancelled.
+     */
+    private static class AsyncResponse {
+        private final int index;
+        private final HttpResponse response;
+        private final Exception failure;
+
+        AsyncResponse(int index, HttpResponse response, Exception failure) {
+            this.index = index;
+            this.response = response;
+            this.failure = failure;
+        }
+    }
+
     /**
      * taken from
      * http://stackoverflow.com/questions/6390339/how-to-query-xml-using-namespaces-in-java-with-xpath
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.fedora.mets;
+
+import de.qucosa.fedora.oai.OaiHeader;
+import de.qucosa.metrics.MetricsRegistry;
+import de.qucosa.persistence.PersistenceService;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.joda.time.Duration;
+
+import java.net.URI;
+import java.util.concurrent.BlockingQueue;
+
+public class MetsProcessorBuilder {
+
+    public static final Duration DEFAULT_POLLING_INTERVAL = Duration.standardMinutes(10);
+    public static final Duration DEFAULT_MINIMUM_WAITTIME_BETWEEN_TWO_REQUESTS = Duration.standardSeconds(1);
+    public static final boolean DEFAULT_USE_STREAMING_PARSER = true;
+    public static final int DEFAULT_WORKERS = 1;
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final Duration DEFAULT_LEASE_DURATION = Duration.standardMinutes(10);
+    public static final boolean DEFAULT_USE_NOTIFICATIONS = false;
+    public static final int DEFAULT_MAX_REQUESTS_IN_FLIGHT = 50;
+    public static final boolean DEFAULT_SKIP_UNCHANGED = false;
+    public static final boolean DEFAULT_USE_CONDITIONAL_REQUESTS = false;
+
+    private final URI metsDisseminationUri;
+    private final CloseableHttpClient httpClient;
+    private final PersistenceService persistenceService;
+
+    private Duration pollingInterval = DEFAULT_POLLING_INTERVAL;
+    private Duration minimumWaittimeBetweenTwoRequests = DEFAULT_MINIMUM_WAITTIME_BETWEEN_TWO_REQUESTS;
+    private boolean useStreamingParser = DEFAULT_USE_STREAMING_PARSER;
+    private int workers = DEFAULT_WORKERS;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private String leaseOwner = null;
+    private Duration leaseDuration = DEFAULT_LEASE_DURATION;
+    private boolean useNotifications = DEFAULT_USE_NOTIFICATIONS;
+    private BlockingQueue<OaiHeader> handoffQueue = null;
+    private CloseableHttpAsyncClient asyncHttpClient = null;
+    private int maxRequestsInFlight = DEFAULT_MAX_REQUESTS_IN_FLIGHT;
+    private boolean skipUnchanged = DEFAULT_SKIP_UNCHANGED;
+    private boolean useConditionalRequests = DEFAULT_USE_CONDITIONAL_REQUESTS;
+    private MetricsRegistry metricsRegistry = new MetricsRegistry();
+
+    /**
+     * @param metsDisseminationUri the METS dissemination service's URI
+     * @param httpClient           to be used by {@link MetsProcessor} for communication with the METS
+     *                             dissemination service
+     * @param persistenceService   to be used by {@link MetsProcessor} to read {@link de.qucosa.fedora.oai.OaiHeader}s
+     *                             and persist {@link ReportingDocumentMetadata}
+     */
+    public MetsProcessorBuilder(URI metsDisseminationUri, CloseableHttpClient httpClient,
+                                PersistenceService persistenceService) {
+        this.metsDisseminationUri = metsDisseminationUri;
+        this.httpClient = httpClient;
+        this.persistenceService = persistenceService;
+    }
+
+    public MetsProcessor build() {
+        return new MetsProcessor(metsDisseminationUri, pollingInterval, minimumWaittimeBetweenTwoRequests,
+                persistenceService, httpClient, useStreamingParser, workers, pageSize,
+                leaseOwner, leaseDuration, useNotifications, handoffQueue, asyncHttpClient, maxRequestsInFlight,
+                skipUnchanged, useConditionalRequests, metricsRegistry);
+    }
+
+    /**
+     * @param pollingInterval time to wait before polling persistence again if there is nothing to process
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setPollingInterval(Duration pollingInterval) {
+        this.pollingInterval = pollingInterval;
+        return this;
+    }
+
+    /**
+     * @param minimumWaittimeBetweenTwoRequests time to wait between two requests to the METS dissemination service.
+     *                                          The limit applies to all workers together.
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setMinimumWaittimeBetweenTwoRequests(Duration minimumWaittimeBetweenTwoRequests) {
+        this.minimumWaittimeBetweenTwoRequests = minimumWaittimeBetweenTwoRequests;
+        return this;
+    }
+
+    /**
+     * Extract reporting data from METS documents with a single-pass StAX parser that stops reading as soon
+     * as all values are found, instead of building a DOM and evaluating XPath expressions on it.
+     *
+     * @param useStreamingParser {@code true} to use the streaming parser, {@code false} to use the DOM parser.
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setStreamingParser(boolean useStreamingParser) {
+        this.useStreamingParser = useStreamingParser;
+        return this;
+    }
+
+    /**
+     * @param workers number of METS documents to request and parse concurrently, must be at least 1
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setWorkers(int workers) {
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * @param pageSize maximum number of {@link de.qucosa.fedora.oai.OaiHeader}s to read from persistence and
+     *                 process at once, must be at least 1
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Claim {@link de.qucosa.fedora.oai.OaiHeader}s before processing them, so several {@link MetsProcessor}s
+     * can share one database. Each processor needs a unique lease owner.
+     *
+     * @param leaseOwner name to claim headers with, or {@code null} to process headers without claiming them
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setLeaseOwner(String leaseOwner) {
+        this.leaseOwner = leaseOwner;
+        return this;
+    }
+
+    /**
+     * @param leaseDuration time after which claimed but unprocessed headers can be claimed by another
+     *                      {@link MetsProcessor}. Must be longer than it takes to process one page.
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setLeaseDuration(Duration leaseDuration) {
+        this.leaseDuration = leaseDuration;
+        return this;
+    }
+
+    /**
+     * Wake up as soon as new {@link de.qucosa.fedora.oai.OaiHeader}s are added to persistence instead of
+     * sleeping for the full polling interval. The polling interval remains the maximum time to wait.
+     *
+     * @param useNotifications {@code true} to wait for notifications from persistence.
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setNotifications(boolean useNotifications) {
+        this.useNotifications = useNotifications;
+        return this;
+    }
+
+    /**
+     * Process headers handed over by an {@link de.qucosa.fedora.oai.OaiHarvester} in the same process before
+     * reading headers from persistence. Headers are removed from persistence after processing just like headers
+     * read from persistence. Ignored if a lease owner is set.
+     *
+     * @param handoffQueue queue shared with the harvester, or {@code null} to read headers from persistence only.
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setHandoffQueue(BlockingQueue<OaiHeader> handoffQueue) {
+        this.handoffQueue = handoffQueue;
+        return this;
+    }
+
+    /**
+     * Request METS documents with a non-blocking client instead of the blocking client and the workers. The
+     * number of concurrent requests is limited by {@link #setMaxRequestsInFlight(int)} instead of the number of
+     * workers.
+     *
+     * @param asyncHttpClient started client to be used by {@link MetsProcessor} for communication with the METS
+     *                        dissemination service, or {@code null} to use the blocking client.
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setAsyncHttpClient(CloseableHttpAsyncClient asyncHttpClient) {
+        this.asyncHttpClient = asyncHttpClient;
+        return this;
+    }
+
+    /**
+     * @param maxRequestsInFlight maximum number of outstanding requests of the non-blocking client, must be at
+     *                            least 1. Ignored if no non-blocking client is set.
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setMaxRequestsInFlight(int maxRequestsInFlight) {
+        this.maxRequestsInFlight = maxRequestsInFlight;
+        return this;
+    }
+
+    /**
+     * Don't request METS documents whose {@link ReportingDocumentMetadata#getHeaderLastModified()} in persistence
+     * is not older than the datestamp of the header, e.g. after headers have been harvested again. Their headers
+     * are removed from persistence right away.
+     *
+     * @param skipUnchanged {@code true} to look up the documents of each page in persistence before requesting them.
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+        return this;
+    }
+
+    /**
+     * Request METS documents already in persistence with an {@code If-Modified-Since} header set to their
+     * {@link ReportingDocumentMetadata#getLastFetched()}, the {@code Last-Modified} or {@code Date} of the response
+     * they have last been fetched with. If the dissemination service answers {@code 304 Not Modified}, the header
+     * is removed without updating the document.
+     *
+     * @param useConditionalRequests {@code true} to send conditional requests.
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setConditionalRequests(boolean useConditionalRequests) {
+        this.useConditionalRequests = useConditionalRequests;
+        return this;
+    }
+
+    /**
+     * @param metricsRegistry receives the request, parsing and failure metrics of the processor. By default they
+     *                        are kept in a registry of its own.
+     * @return this {@link MetsProcessorBuilder} instance, never {@code null}.
+     */
+    public MetsProcessorBuilder setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+        return this;
+    }
+}
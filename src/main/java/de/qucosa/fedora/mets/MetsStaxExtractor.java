@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.fedora.mets;
+
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+
+/**
+ * Extracts the data relevant for reporting from a METS document in a single StAX pass. Reading stops as
+ * soon as the mandator, the document type and the distribution date have been found, so large MODS or
+ * PREMIS sections following them are never read.
+ * <p>
+ * The extracted values are the same the {@link MetsProcessor}'s XPath expressions select: the first
+ * {@code mets:metsHdr/mets:agent[@ROLE='EDITOR']/mets:name}, the first
+ * {@code mets:structMap[@TYPE='LOGICAL']/mets:div/@TYPE} and the first
+ * {@code mods:originInfo[@eventType='distribution']/mods:dateIssued}.
+ */
+class MetsStaxExtractor {
+
+    private static final String METS_NAMESPACE = "http://www.loc.gov/METS/";
+    private static final String MODS_NAMESPACE = "http://www.loc.gov/mods/v3";
+
+    /*
+     * Markers for the open elements the extractor is interested in. Any other element is OTHER.
+     */
+    private static final int OTHER = 0;
+    private static final int METS_HDR = 1;
+    private static final int EDITOR_AGENT = 2;
+    private static final int LOGICAL_STRUCT_MAP = 3;
+    private static final int DISTRIBUTION_ORIGIN_INFO = 4;
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    /**
+     * @param content            the METS document
+     * @param recordIdentifier   the unique identifier of the item
+     * @param headerLastModified the date the item's metadata has been updated in the repository
+     * @return the {@link ReportingDocumentMetadata} parsed from the METS document, never {@code null}
+     * @throws XMLStreamException       if the content is not well-formed XML
+     * @throws IllegalArgumentException if the document does not contain all required data or the
+     *                                  distribution date can't be parsed
+     */
+    ReportingDocumentMetadata extract(InputStream content, String recordIdentifier, Date headerLastModified)
+            throws XMLStreamException, IllegalArgumentException {
+
+        String mandator = null;
+        String documentType = null;
+        String distributionDate = null;
+
+        Deque<Integer> openElements = new ArrayDeque<>();
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(content);
+        try {
+            while (reader.hasNext() && (mandator == null || documentType == null || distributionDate == null)) {
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    openElements.pop();
+
+                } else if (event == XMLStreamConstants.START_ELEMENT) {
+                    int parent = (openElements.isEmpty()) ? OTHER : openElements.peek();
+                    String namespace = reader.getNamespaceURI();
+                    String localName = reader.getLocalName();
+                    int marker = OTHER;
+
+                    if (METS_NAMESPACE.equals(namespace)) {
+                        if ("metsHdr".equals(localName)) {
+                            marker = METS_HDR;
+                        } else if ("agent".equals(localName) && parent == METS_HDR
+                                && "EDITOR".equals(reader.getAttributeValue(null, "ROLE"))) {
+                            marker = EDITOR_AGENT;
+                        } else if ("name".equals(localName) && parent == EDITOR_AGENT && mandator == null) {
+                            // getElementText() consumes the end tag, so the element is not pushed
+                            mandator = reader.getElementText();
+                            continue;
+                        } else if ("structMap".equals(localName)
+                                && "LOGICAL".equals(reader.getAttributeValue(null, "TYPE"))) {
+                            marker = LOGICAL_STRUCT_MAP;
+                        } else if ("div".equals(localName) && parent == LOGICAL_STRUCT_MAP && documentType == null) {
+                            documentType = reader.getAttributeValue(null, "TYPE");
+                        }
+
+                    } else if (MODS_NAMESPACE.equals(namespace)) {
+                        if ("originInfo".equals(localName)
+                                && "distribution".equals(reader.getAttributeValue(null, "eventType"))) {
+                            marker = DISTRIBUTION_ORIGIN_INFO;
+                        } else if ("dateIssued".equals(localName) && parent == DISTRIBUTION_ORIGIN_INFO
+                                && distributionDate == null) {
+                            distributionDate = reader.getElementText();
+                            continue;
+                        }
+                    }
+
+                    openElements.push(marker);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return new ReportingDocumentMetadata(recordIdentifier, StringUtils.defaultString(mandator),
+                StringUtils.defaultString(documentType),
+                new Date(new DateTime(StringUtils.defaultString(distributionDate)).getMillis()), headerLastModified);
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -32,6 +32,8 @@ public class ReportingDocumentMetadata {
 
     private final Date headerLastModified;
 
+    private final Date lastFetched;
+
     
     
     /**
@@ -45,6 +47,23 @@ public class ReportingDocumentMetadata {
      */
     public ReportingDocumentMetadata(String recordIdentifier, String mandator, String documentType,
                                     Date distributionDate, Date headerLastModified)  throws IllegalArgumentException {
+        this(recordIdentifier, mandator, documentType, distributionDate, headerLastModified, null);
+    }
+
+    /**
+     * @param recordIdentifier   the unique identifier of this item in a repository
+     * @param mandator           the mandator this item is related to
+     * @param documentType       a document type such as article, book, issue
+     * @param distributionDate   the date this item has been published in the repository 
+     * @param headerLastModified the date this item's metadata has been updated in the repository
+     * @param lastFetched        the date of the METS document as reported by the dissemination service when it has
+     *                           been fetched, may be {@code null}
+     * @throws IllegalArgumentException if recordIdentifier, mandator or documentType is whitespace, empty ("")
+     *                           or {@code null} or if distributionDate or headerLastModified is {@code null}
+     */
+    public ReportingDocumentMetadata(String recordIdentifier, String mandator, String documentType,
+                                    Date distributionDate, Date headerLastModified, Date lastFetched)
+            throws IllegalArgumentException {
 
         if (StringUtils.isBlank(recordIdentifier))
             throw new IllegalArgumentException("Parameter recordIdentifier must not be '" + recordIdentifier + "'.");
@@ -62,6 +81,7 @@ public class ReportingDocumentMetadata {
         this.documentType = documentType;
         this.distributionDate = distributionDate;
         this.headerLastModified = headerLastModified;
+        this.lastFetched = lastFetched;
     }
 
     /**
@@ -99,6 +119,14 @@ public class ReportingDocumentMetadata {
         return headerLastModified;
     }
 
+    /**
+     * @return the date of the METS document as reported by the dissemination service when it has been fetched,
+     * to be sent as {@code If-Modified-Since} with the next request. {@code null} if unknown.
+     */
+    public Date getLastFetched() {
+        return lastFetched;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -106,6 +134,7 @@ public class ReportingDocumentMetadata {
         result = prime * result + ((distributionDate == null) ? 0 : distributionDate.hashCode());
         result = prime * result + ((documentType == null) ? 0 : documentType.hashCode());
         result = prime * result + ((headerLastModified == null) ? 0 : headerLastModified.hashCode());
+        result = prime * result + ((lastFetched == null) ? 0 : lastFetched.hashCode());
         result = prime * result + ((mandator == null) ? 0 : mandator.hashCode());
         result = prime * result + ((recordIdentifier == null) ? 0 : recordIdentifier.hashCode());
         return result;
@@ -135,6 +164,11 @@ public class ReportingDocumentMetadata {
                 return false;
         } else if (!headerLastModified.equals(other.headerLastModified))
             return false;
+        if (lastFetched == null) {
+            if (other.lastFetched != null)
+                return false;
+        } else if (!lastFetched.equals(other.lastFetched))
+            return false;
         if (mandator == null) {
             if (other.mandator != null)
                 return false;
@@ -152,7 +186,7 @@ public class ReportingDocumentMetadata {
     public String toString() {
         return "ReportingDocumentMetadata [recordIdentifier=" + recordIdentifier + ", mandator=" + mandator
                 + ", documentType=" + documentType + ", distributionDate=" + distributionDate + ", headerLastModified="
-                + headerLastModified + "]";
+                + headerLastModified + ", lastFetched=" + lastFetched + "]";
     }
 
     
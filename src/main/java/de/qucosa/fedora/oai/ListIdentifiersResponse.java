@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.fedora.oai;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The data {@link OaiHarvester} needs from one page of an OAI-PMH ListIdentifiers response, independent
+ * of the parser that extracted it.
+ */
+final class ListIdentifiersResponse {
+
+    private final Map<String, String> oaiErrors;
+    private final Date responseDate;
+    private final String resumptionToken;
+    private final Date resumptionTokenExpirationDate;
+    private final List<OaiHeader> headers;
+
+    /**
+     * @param oaiErrors                     OAI-PMH error codes mapped to their messages, may be empty but
+     *                                      never {@code null}
+     * @param responseDate                  the responseDate of the OAI response, never {@code null}
+     * @param resumptionToken               either {@code null} if there is no resumptionToken, or empty
+     *                                      String "" if the response contains an empty resumptionToken or a
+     *                                      String with length() > 0 containing the resumptionTokens's value.
+     * @param resumptionTokenExpirationDate the resumption token's expiration date, may be {@code null}
+     * @param headers                       the headers contained in the response, in document order
+     */
+    ListIdentifiersResponse(Map<String, String> oaiErrors, Date responseDate, String resumptionToken,
+                            Date resumptionTokenExpirationDate, List<OaiHeader> headers) {
+        this.oaiErrors = oaiErrors;
+        this.responseDate = responseDate;
+        this.resumptionToken = resumptionToken;
+        this.resumptionTokenExpirationDate = resumptionTokenExpirationDate;
+        this.headers = headers;
+    }
+
+    Map<String, String> getOaiErrors() {
+        return oaiErrors;
+    }
+
+    Date getResponseDate() {
+        return responseDate;
+    }
+
+    String getResumptionToken() {
+        return resumptionToken;
+    }
+
+    Date getResumptionTokenExpirationDate() {
+        return resumptionTokenExpirationDate;
+    }
+
+    List<OaiHeader> getHeaders() {
+        return headers;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.fedora.oai;
+
+import org.apache.commons.lang3.StringUtils;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads an OAI-PMH ListIdentifiers response in a single pass using StAX. In contrast to building a DOM,
+ * only the {@link OaiHeader}s themselves are kept in memory, regardless of the size of the page.
+ * <p>
+ * Elements are matched by their local name, so the parser behaves like the XPath expressions
+ * {@code //error}, {@code //responseDate}, {@code //resumptionToken} and {@code //header} evaluated on
+ * a document that was parsed without namespace awareness.
+ */
+final class ListIdentifiersStaxParser {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    /**
+     * @param content the OAI-PMH response
+     * @return the data extracted from the response, never {@code null}
+     * @throws XMLStreamException       if the content is not well-formed XML
+     * @throws IllegalArgumentException if the responseDate or a header's datestamp can't be parsed or a
+     *                                  header has no identifier.
+     */
+    ListIdentifiersResponse parse(InputStream content) throws XMLStreamException, IllegalArgumentException {
+
+        Map<String, String> oaiErrors = new HashMap<>();
+        String responseDate = null;
+        String resumptionToken = null;
+        String resumptionTokenExpirationDate = null;
+        List<OaiHeader> headers = new LinkedList<>();
+
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(content);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+
+                switch (reader.getLocalName()) {
+                    case "responseDate":
+                        String date = reader.getElementText();
+                        if (responseDate == null) {
+                            responseDate = date;
+                        }
+                        break;
+                    case "error":
+                        String errorCode = StringUtils.defaultString(reader.getAttributeValue(null, "code"));
+                        oaiErrors.put(errorCode, reader.getElementText());
+                        break;
+                    case "resumptionToken":
+                        if (resumptionToken == null) {
+                            resumptionTokenExpirationDate = reader.getAttributeValue(null, "expirationDate");
+                            resumptionToken = reader.getElementText().trim();
+                        }
+                        break;
+                    case "header":
+                        headers.add(parseHeader(reader));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return new ListIdentifiersResponse(oaiErrors,
+                DatatypeConverter.parseDateTime(StringUtils.defaultString(responseDate)).getTime(),
+                resumptionToken, parseNullableDateTime(resumptionTokenExpirationDate), headers);
+    }
+
+    /**
+     * Reads a header element up to its end tag. The reader must be positioned on the header's start tag.
+     */
+    private OaiHeader parseHeader(XMLStreamReader reader) throws XMLStreamException {
+
+        boolean statusIsDeleted = "deleted".equalsIgnoreCase(reader.getAttributeValue(null, "status"));
+        String recordIdentifier = null;
+        String datestamp = null;
+        List<String> setSpec = new LinkedList<>();
+
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "identifier":
+                        recordIdentifier = reader.getElementText();
+                        break;
+                    case "datestamp":
+                        datestamp = reader.getElementText();
+                        break;
+                    case "setSpec":
+                        setSpec.add(reader.getElementText());
+                        break;
+                    default:
+                        depth++;
+                        break;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+
+        Date datestampDate = DatatypeConverter.parseDateTime(StringUtils.defaultString(datestamp)).getTime();
+        return new OaiHeader(recordIdentifier, datestampDate, setSpec, statusIsDeleted);
+    }
+
+    private Date parseNullableDateTime(String timestamp) throws IllegalArgumentException {
+        Date date;
+        if (StringUtils.isBlank(timestamp)) {
+            date = null;
+        } else {
+            date = DatatypeConverter.parseDateTime(timestamp).getTime();
+        }
+        return date;
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
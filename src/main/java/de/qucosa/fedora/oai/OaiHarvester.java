@@ -16,9 +16,14 @@
 
 package de.qucosa.fedora.oai;
 
+import de.qucosa.metrics.Counter;
+import de.qucosa.metrics.MetricsRegistry;
+import de.qucosa.metrics.Summary;
+import de.qucosa.metrics.Timer;
 import de.qucosa.persistence.PersistenceException;
 import de.qucosa.persistence.PersistenceService;
 import de.qucosa.util.TerminateableRunnable;
+import de.qucosa.util.XmlParserCache;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.http.HttpEntity;
@@ -26,6 +31,7 @@ import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
 import org.joda.time.Duration;
 import org.joda.time.format.PeriodFormatter;
 import org.joda.time.format.PeriodFormatterBuilder;
@@ -39,13 +45,11 @@ import org.xml.sax.SAXException;
 
 import javax.ws.rs.core.UriBuilder;
 import javax.xml.bind.DatatypeConverter;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
@@ -58,6 +62,12 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 public class OaiHarvester extends TerminateableRunnable {
@@ -94,9 +104,44 @@ public class OaiHarvester extends TerminateableRunnable {
     private final URI uri;
     private final SimpleDateFormat uriTimestampFormat;
     private final boolean useFC3CompatibilityMode;
-    private List<OaiHeader> harvestedHeaders = new LinkedList<>();
+    private final boolean useStreamingParser;
+    private final ListIdentifiersStaxParser streamingParser = new ListIdentifiersStaxParser();
+    private final XmlParserCache xmlParserCache = new XmlParserCache(false, null);
+
+    /**
+     * If true, only the harvester holding the harvester lock in persistence is harvesting.
+     */
+    private final boolean useLeaderElection;
+    private final String harvesterLockName;
+
+    /**
+     * Optional queue to hand over harvested headers to a consumer in the same process, or {@code null}.
+     */
+    private final BlockingQueue<OaiHeader> handoffQueue;
+
+    /**
+     * If true, the next page of a paginated response is requested while the current page is persisted.
+     */
+    private final boolean usePrefetch;
+
+    /**
+     * Number of date range slices harvested in parallel if there is no last run, 1 to harvest in a single chain.
+     */
+    private final int bootstrapSlices;
+
+    /**
+     * The OAI set to harvest or {@code null} to harvest the whole repository.
+     */
+    private final String setSpec;
     
     private final CloseableHttpClient httpClient;
+
+    private final Timer identifyRequestTimer;
+    private final Timer listIdentifiersRequestTimer;
+    private final Timer parseTimer;
+    private final Summary headersPerPage;
+    private final Counter headersFiltered;
+    private final Counter failedRequests;
     
     /**
      * If true, the last run was not successful and no OaiRunResult has been written to persistence.
@@ -107,7 +152,9 @@ public class OaiHarvester extends TerminateableRunnable {
     protected OaiHarvester(URI harvestingUri, Duration pollInterval, Duration minimumWaittimeBetweenTwoRequests, 
                            OaiHeaderFilter oaiHeaderFilter, PersistenceService persistenceService, 
                            Duration oaiRunResultHistoryLength, boolean useFC3CompatibilityMode,
-                           CloseableHttpClient httpClient) {
+                           boolean useStreamingParser, boolean useLeaderElection,
+                           BlockingQueue<OaiHeader> handoffQueue, boolean usePrefetch, int bootstrapSlices,
+                           String setSpec, CloseableHttpClient httpClient, MetricsRegistry metricsRegistry) {
 
         this.uri = harvestingUri;
         this.pollInterval = pollInterval;
@@ -117,7 +164,20 @@ public class OaiHarvester extends TerminateableRunnable {
         this.oaiHeaderFilter = oaiHeaderFilter;
         this.useFC3CompatibilityMode = useFC3CompatibilityMode;
         this.uriTimestampFormat = (useFC3CompatibilityMode) ? FCREPO3_TIMESTAMP_FORMAT : DEFAULT_URI_TIMESTAMP_FORMAT;
+        this.useStreamingParser = useStreamingParser;
+        this.useLeaderElection = useLeaderElection;
+        this.harvesterLockName = "OaiHarvester " + harvestingUri + ((setSpec == null) ? "" : " set " + setSpec);
+        this.handoffQueue = handoffQueue;
+        this.usePrefetch = usePrefetch;
+        this.bootstrapSlices = bootstrapSlices;
+        this.setSpec = setSpec;
         this.httpClient = httpClient;
+        this.identifyRequestTimer = metricsRegistry.timer("oai.http.identify");
+        this.listIdentifiersRequestTimer = metricsRegistry.timer("oai.http.listidentifiers");
+        this.parseTimer = metricsRegistry.timer("oai.parse");
+        this.headersPerPage = metricsRegistry.summary("oai.page.headers");
+        this.headersFiltered = metricsRegistry.counter("oai.headers.filtered");
+        this.failedRequests = metricsRegistry.counter("oai.failures");
     }
 
     @Override
@@ -127,7 +187,11 @@ public class OaiHarvester extends TerminateableRunnable {
                 .appendSuffix("min", "min").appendSeparator(":").appendSecondsWithOptionalMillis()
                 .appendSuffix("sec", "sec").toFormatter();
         String interval = formatter.print(this.pollInterval.toPeriod());
-        this.logger.info("Harvesting URL: {} every {}", this.uri.toASCIIString(), interval);
+        if (setSpec == null) {
+            this.logger.info("Harvesting URL: {} every {}", this.uri.toASCIIString(), interval);
+        } else {
+            this.logger.info("Harvesting set '{}' of URL: {} every {}", setSpec, this.uri.toASCIIString(), interval);
+        }
 
         try {
             harvestLoop();
@@ -137,38 +201,423 @@ public class OaiHarvester extends TerminateableRunnable {
     }
 
     private void harvestLoop() {
-        do {
-            final OaiRunResult lastRun = getLastrunParameters();
-            if (waitForNextRun(lastRun)) {
+        ExecutorService prefetchExecutor = (usePrefetch) ? Executors.newSingleThreadExecutor() : null;
+        Future<HarvestedPage> prefetchedPage = null;
+        try {
+            do {
+                if (!holdsHarvesterLock()) {
+                    prefetchedPage = cancel(prefetchedPage);
+                    waitForHarvesterLock();
+                    continue;
+                }
 
-                final OaiRunResult currentRun = harvest(lastRun);
+                final HarvestedPage page;
+                if (prefetchedPage != null) {
+                    // the previous page has been checkpointed, its successor is already on its way
+                    page = awaitPrefetchedPage(prefetchedPage);
+                    prefetchedPage = null;
+                } else {
+                    final OaiRunResult lastRun = getLastrunParameters();
+                    // slices are not tracked per set, so only the whole repository is bootstrapped in slices
+                    if (!lastRun.hasTimestampOfRun() && bootstrapSlices > 1 && setSpec == null) {
+                        if (!bootstrap()) {
+                            waitForBootstrapRetry();
+                        }
+                        continue;
+                    }
+                    // the lock may have been lost while waiting
+                    page = (waitForNextRun(lastRun) && holdsHarvesterLock()) ? harvest(lastRun) : null;
+                }
+                if (page == null) {
+                    continue;
+                }
 
+                final OaiRunResult currentRun = page.getRunResult();
                 if (currentRun.hasTimestampOfRun()) {
 
-                    harvestedHeaders = oaiHeaderFilter.filterOaiHeaders(harvestedHeaders);
+                    if (prefetchExecutor != null && currentRun.hasResumptionToken()) {
+                        prefetchedPage = prefetchExecutor.submit(prefetch(currentRun));
+                    }
+
+                    List<OaiHeader> harvestedHeaders = filter(page.getHeaders());
 
                     try {
                         persistenceService.addOrUpdateOaiHeaders(new LinkedList<>(harvestedHeaders));
-                        harvestedHeaders = new LinkedList<>();
+                        handOver(harvestedHeaders);
 
                         try {
                             persistenceService.storeOaiRunResult(currentRun);
                         } catch (PersistenceException exception) {
                             logger.error("The status of the current run could not be persisted, "
                                     + "the previous OaiRunResult remains the most recent one.", exception);
+                            // continue from the last checkpoint instead of the prefetched page
+                            prefetchedPage = cancel(prefetchedPage);
                         }
                         lastRunResultedInError = false;
 
                     } catch (PersistenceException exception) {
                         logger.error("Harvested headers could not be persisted. This run was not successful, "
                                 + "the previous OaiRunResult is still the most recent one. ", exception);
+                        prefetchedPage = cancel(prefetchedPage);
                     }
                 } else {
                     lastRunResultedInError = true;
                 }
                 cleanupOaiRunResultsInPersistence(currentRun);
+            } while (isRunning());
+        } finally {
+            if (prefetchExecutor != null) {
+                prefetchExecutor.shutdownNow();
+            }
+            if (useLeaderElection) {
+                persistenceService.releaseLock(harvesterLockName);
+            }
+        }
+    }
+
+    /**
+     * Request the page following {@code currentRun} after {@link #minimumWaittimeBetweenTwoRequests}, as
+     * {@link #waitForNextRun(OaiRunResult)} would for a paginated response.
+     *
+     * @param currentRun the run result containing the resumption token of the page to request
+     * @return the task requesting the next page
+     */
+    private Callable<HarvestedPage> prefetch(final OaiRunResult currentRun) {
+        return new Callable<HarvestedPage>() {
+            @Override
+            public HarvestedPage call() throws InterruptedException {
+                TimeUnit.MILLISECONDS.sleep(minimumWaittimeBetweenTwoRequests.getMillis());
+                return harvest(currentRun);
+            }
+        };
+    }
+
+    /**
+     * @param prefetchedPage the pending prefetch
+     * @return the prefetched page or {@code null} if the prefetch has been interrupted or failed
+     */
+    private HarvestedPage awaitPrefetchedPage(Future<HarvestedPage> prefetchedPage) {
+        try {
+            return prefetchedPage.get();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for prefetched OAI page: {}", e.getMessage());
+            prefetchedPage.cancel(true);
+        } catch (ExecutionException e) {
+            logger.warn("Prefetching the next OAI page failed.", e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * @param prefetchedPage pending prefetch or {@code null}
+     * @return always {@code null}
+     */
+    private Future<HarvestedPage> cancel(Future<HarvestedPage> prefetchedPage) {
+        if (prefetchedPage != null) {
+            prefetchedPage.cancel(true);
+        }
+        return null;
+    }
+
+    /**
+     * Offer persisted headers to the {@link #handoffQueue} without blocking. Headers that don't fit are
+     * picked up from persistence by the consumer.
+     *
+     * @param headers headers that have been persisted
+     */
+    private void handOver(List<OaiHeader> headers) {
+        if (handoffQueue == null) {
+            return;
+        }
+        int offered = 0;
+        for (OaiHeader header : headers) {
+            if (!handoffQueue.offer(header)) {
+                logger.debug("Handoff queue is full, {} of {} OaiHeaders are left to persistence only.",
+                        headers.size() - offered, headers.size());
+                break;
             }
-        } while (isRunning());
+            offered++;
+        }
+    }
+
+    /**
+     * @return {@code true} if leader election is disabled or this harvester holds the harvester lock,
+     * i.e. no other harvester of the same OAI data provider is running on any node.
+     */
+    private boolean holdsHarvesterLock() {
+        if (!useLeaderElection) {
+            return true;
+        }
+        try {
+            return persistenceService.tryAcquireLock(harvesterLockName);
+        } catch (PersistenceException e) {
+            logger.error("Could not acquire harvester lock.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Another harvester is running. Sleep for {@link #pollInterval} before trying to take over.
+     */
+    private void waitForHarvesterLock() {
+        logger.debug("Harvester lock '{}' is held by another node. Retrying in {} millis.", harvesterLockName,
+                pollInterval.getMillis());
+        try {
+            TimeUnit.MILLISECONDS.sleep(pollInterval.getMillis());
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for harvester lock: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Harvest the whole OAI data provider in {@link #bootstrapSlices} date range slices in parallel, each slice
+     * following its own resumption token chain. The progress of every slice is persisted as
+     * {@link OaiSliceRunResult}, so an interrupted initial harvest resumes each slice where it stopped and a
+     * badResumptionToken restarts only the affected slice. Once all slices are completed, an {@link OaiRunResult}
+     * is stored to continue with incremental harvesting.
+     *
+     * @return {@code true} if the initial harvest has been completed.
+     */
+    private boolean bootstrap() {
+        List<OaiSliceRunResult> slices;
+        try {
+            slices = persistenceService.getOaiSliceRunResults();
+            if (slices.isEmpty()) {
+                Date earliestDatestamp = requestEarliestDatestamp();
+                if (earliestDatestamp == null) {
+                    return false;
+                }
+                slices = createSlices(earliestDatestamp, now());
+                for (OaiSliceRunResult slice : slices) {
+                    persistenceService.storeOaiSliceRunResult(slice);
+                }
+                logger.info("Starting initial harvest in {} date range slices.", slices.size());
+            } else {
+                logger.info("Resuming initial harvest in {} date range slices.", slices.size());
+            }
+        } catch (PersistenceException exception) {
+            logger.error("Could not prepare the date range slices of the initial harvest.", exception);
+            return false;
+        }
+
+        ExecutorService sliceExecutor = Executors.newFixedThreadPool(slices.size());
+        try {
+            List<Future<Date>> pendingSlices = new LinkedList<>();
+            Date nextFromTimestamp = null;
+            for (OaiSliceRunResult slice : slices) {
+                if (!slice.isCompleted()) {
+                    pendingSlices.add(sliceExecutor.submit(harvestSlice(slice)));
+                }
+                if (nextFromTimestamp == null || slice.getUntil().after(nextFromTimestamp)) {
+                    nextFromTimestamp = slice.getUntil();
+                }
+            }
+
+            boolean completed = true;
+            Date responseDate = null;
+            for (Future<Date> pendingSlice : pendingSlices) {
+                Date sliceResponseDate = awaitSlice(pendingSlice);
+                if (sliceResponseDate == null) {
+                    completed = false;
+                } else if (responseDate == null || sliceResponseDate.after(responseDate)) {
+                    responseDate = sliceResponseDate;
+                }
+            }
+            if (!completed) {
+                logger.warn("Initial harvest has not been completed, unfinished slices are resumed in the next run.");
+                return false;
+            }
+
+            // all slices may have been completed before a restart, without any response in this run
+            Date timestampOfRun = now();
+            OaiRunResult runResult = new OaiRunResult(timestampOfRun,
+                    (responseDate == null) ? timestampOfRun : responseDate, null, null, nextFromTimestamp);
+            persistenceService.storeOaiRunResult(runResult);
+            persistenceService.removeOaiSliceRunResults();
+            lastRunResultedInError = false;
+            logger.info("Initial harvest completed, continuing from {}.", nextFromTimestamp);
+            return true;
+
+        } catch (PersistenceException exception) {
+            logger.error("The status of the initial harvest could not be persisted.", exception);
+            return false;
+        } finally {
+            sliceExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Split the datestamp range into {@link #bootstrapSlices} slices of equal length. Subsequent slices share
+     * their boundary timestamp: 'until' is inclusive, so the boundary is harvested twice rather than not at all
+     * if the data provider truncates it. In Fedora Commons 3 compatibility mode, the data provider ignores the
+     * time part of the timestamps, so slices are at least one day long to not request the same day repeatedly.
+     *
+     * @param earliestDatestamp the data provider's earliest datestamp
+     * @param until             the 'until' parameter of the last slice
+     * @return the slices, ordered by 'from', at least one
+     */
+    private List<OaiSliceRunResult> createSlices(Date earliestDatestamp, Date until) {
+        long range = until.getTime() - earliestDatestamp.getTime();
+        long minimumSliceLength = (useFC3CompatibilityMode) ? TimeUnit.DAYS.toMillis(1) : TimeUnit.SECONDS.toMillis(1);
+        int sliceCount = (int) Math.max(1, Math.min(bootstrapSlices, range / minimumSliceLength));
+        long sliceLength = range / sliceCount;
+
+        List<OaiSliceRunResult> slices = new LinkedList<>();
+        for (int i = 0; i < sliceCount; i++) {
+            Date sliceFrom = new Date(earliestDatestamp.getTime() + i * sliceLength);
+            Date sliceUntil = (i == sliceCount - 1) ? until
+                    : new Date(earliestDatestamp.getTime() + (i + 1) * sliceLength);
+            slices.add(new OaiSliceRunResult(i, sliceFrom, sliceUntil, null, false));
+        }
+        return slices;
+    }
+
+    /**
+     * @param slice the slice to harvest, starting at its resumption token if there is one
+     * @return the task harvesting all remaining pages of the slice. It returns the response date of the last page
+     * or {@code null} if the slice has not been completed.
+     */
+    private Callable<Date> harvestSlice(final OaiSliceRunResult slice) {
+        return new Callable<Date>() {
+            @Override
+            public Date call() throws PersistenceException, InterruptedException {
+                OaiSliceRunResult current = slice;
+                while (isRunning() && holdsHarvesterLock()) {
+                    ListIdentifiersResponse response = requestListIdentifiers(buildSliceRequestURI(current));
+                    if (response == null) {
+                        return null;
+                    }
+
+                    Map<String, String> oaiErrorsFound = response.getOaiErrors();
+                    String nextResumptionToken = null;
+                    if (oaiErrorsFound.isEmpty()) {
+                        nextResumptionToken = response.getResumptionToken();
+
+                    } else if (oaiErrorsFound.containsKey(OAI_PMH_ERROR_BAD_RESUMPTION_TOKEN)) {
+                        logger.warn("Resumption token of slice {} was invalid or unknown to server. "
+                                + "Restarting the slice from its first page.", current.getSliceIndex());
+                        current = new OaiSliceRunResult(current.getSliceIndex(), current.getFrom(),
+                                current.getUntil(), null, false);
+                        persistenceService.storeOaiSliceRunResult(current);
+                        TimeUnit.MILLISECONDS.sleep(minimumWaittimeBetweenTwoRequests.getMillis());
+                        continue;
+
+                    } else if (!oaiErrorsFound.containsKey(OAI_PMH_ERROR_NO_RECORDS_MATCH)) {
+                        logger.error("OAI data provider sent an error that cant be handled in slice {}. "
+                                + "Unknown errors are: {}", current.getSliceIndex(), oaiErrorsFound.toString());
+                        return null;
+                    }
+
+                    List<OaiHeader> harvestedHeaders = filter(response.getHeaders());
+                    persistenceService.addOrUpdateOaiHeaders(new LinkedList<>(harvestedHeaders));
+                    handOver(harvestedHeaders);
+
+                    boolean completed = StringUtils.isBlank(nextResumptionToken);
+                    current = new OaiSliceRunResult(current.getSliceIndex(), current.getFrom(), current.getUntil(),
+                            (completed) ? null : nextResumptionToken, completed);
+                    persistenceService.storeOaiSliceRunResult(current);
+                    if (completed) {
+                        logger.debug("Slice {} of initial harvest completed.", current.getSliceIndex());
+                        return response.getResponseDate();
+                    }
+
+                    TimeUnit.MILLISECONDS.sleep(minimumWaittimeBetweenTwoRequests.getMillis());
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @param pendingSlice the slice being harvested
+     * @return the response date of the slice's last page or {@code null} if the slice has not been completed
+     */
+    private Date awaitSlice(Future<Date> pendingSlice) {
+        try {
+            return pendingSlice.get();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for slice of initial harvest: {}", e.getMessage());
+            pendingSlice.cancel(true);
+        } catch (ExecutionException e) {
+            logger.error("Harvesting a slice of the initial harvest failed.", e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * The initial harvest has not been completed. Sleep for {@link #pollInterval} before resuming it.
+     */
+    private void waitForBootstrapRetry() {
+        try {
+            TimeUnit.MILLISECONDS.sleep(pollInterval.getMillis());
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting to resume initial harvest: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Request the earliest datestamp of the data provider using the Identify verb.
+     *
+     * @return the earliest datestamp or {@code null} if it could not be requested.
+     */
+    private Date requestEarliestDatestamp() {
+        URI identifyUri = UriBuilder.fromUri(uri).queryParam("verb", "Identify").build();
+        logger.debug("Requesting {}", identifyUri.toASCIIString());
+
+        try (CloseableHttpResponse httpResponse = execute(new HttpGet(identifyUri), identifyRequestTimer)) {
+            if (httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                HttpEntity httpEntity = httpResponse.getEntity();
+                if (httpEntity != null) {
+                    Document document = xmlParserCache.getDocumentBuilder().parse(httpEntity.getContent());
+                    EntityUtils.consumeQuietly(httpEntity);
+                    XPathExpression xSelectEarliestDatestamp = xmlParserCache.getExpression("//earliestDatestamp");
+                    String earliestDatestamp = (String) xSelectEarliestDatestamp.evaluate(document,
+                            XPathConstants.STRING);
+                    Date date = parseNullableDateTime(StringUtils.trim(earliestDatestamp));
+                    if (date == null) {
+                        logger.error("Identify response did not contain an earliestDatestamp.");
+                    }
+                    return date;
+                } else {
+                    logger.error("Got empty response from OAI service.");
+                }
+            } else {
+                logger.error("Unexpected OAI service response: {} {}", httpResponse.getStatusLine().getStatusCode(),
+                        httpResponse.getStatusLine().getReasonPhrase());
+            }
+        } catch (Exception ex) {
+            logger.error(ensureMessage(ex));
+        }
+        failedRequests.increment();
+        return null;
+    }
+
+    /**
+     * @param uri the ListIdentifiers request
+     * @return the parsed response or {@code null} if the request failed.
+     */
+    private ListIdentifiersResponse requestListIdentifiers(URI uri) {
+        logger.debug("Requesting {}", uri.toASCIIString());
+
+        try (CloseableHttpResponse httpResponse = execute(new HttpGet(uri), listIdentifiersRequestTimer)) {
+            if (httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                HttpEntity httpEntity = httpResponse.getEntity();
+                if (httpEntity != null) {
+                    ListIdentifiersResponse response = parseListIdentifiers(httpEntity.getContent());
+                    EntityUtils.consumeQuietly(httpEntity);
+                    return response;
+                } else {
+                    logger.error("Got empty response from OAI service.");
+                }
+            } else {
+                logger.error("Unexpected OAI service response: {} {}", httpResponse.getStatusLine().getStatusCode(),
+                        httpResponse.getStatusLine().getReasonPhrase());
+            }
+        } catch (Exception ex) {
+            logger.error(ensureMessage(ex));
+        }
+        failedRequests.increment();
+        return null;
     }
 
     private void cleanupOaiRunResultsInPersistence(OaiRunResult currentOaiRunResult) {
@@ -236,7 +685,7 @@ public class OaiHarvester extends TerminateableRunnable {
         }
     }
 
-    private OaiRunResult harvest(OaiRunResult lastRunResult) {
+    private HarvestedPage harvest(OaiRunResult lastRunResult) {
         Date startTimeOfCurrentRun = now();
         URI uri = buildOaiRequestURI(lastRunResult);
 
@@ -247,14 +696,17 @@ public class OaiHarvester extends TerminateableRunnable {
         logger.debug("Requesting {}", uri.toASCIIString());
 
         HttpGet httpGet = new HttpGet(uri);
-        OaiRunResult result = EMPTY_OAI_RUN_RESULT;
+        HarvestedPage result = new HarvestedPage(EMPTY_OAI_RUN_RESULT, new LinkedList<OaiHeader>());
         
-        try (CloseableHttpResponse httpResponse = httpClient.execute(httpGet)) {
+        try (CloseableHttpResponse httpResponse = execute(httpGet, listIdentifiersRequestTimer)) {
             if (httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
                 HttpEntity httpEntity = httpResponse.getEntity();
                 if (httpEntity != null) {
                     // TODO nice-to-have validate httpEntity.getContent() against schema - is it valid OAI-PMH?
                     result = handleXmlResult(httpEntity.getContent(), startTimeOfCurrentRun, lastRunResult);
+                    // read the rest of the response so the connection can be kept alive
+                    EntityUtils.consumeQuietly(httpEntity);
+                    return result;
                 } else {
                     logger.error("Got empty response from OAI service.");
                 }
@@ -265,6 +717,7 @@ public class OaiHarvester extends TerminateableRunnable {
         } catch (Exception ex) {
             logger.error(ensureMessage(ex));
         }
+        failedRequests.increment();
         return result;
     }
 
@@ -285,7 +738,8 @@ public class OaiHarvester extends TerminateableRunnable {
 
     private OaiRunResult getLastrunParameters() {
 
-        OaiRunResult result = persistenceService.getLastOaiRunResult();
+        OaiRunResult result = (setSpec == null) ? persistenceService.getLastOaiRunResult()
+                : persistenceService.getLastOaiRunResult(setSpec);
 
         if (result == null) {
             result = EMPTY_OAI_RUN_RESULT;
@@ -296,7 +750,7 @@ public class OaiHarvester extends TerminateableRunnable {
 
     /**
      * Build ListIdentifiers URI to request OAI data provider, using the
-     * resumptionToken from lastrun (if there was one) or from-parameter
+     * resumptionToken from lastrun (if there was one) or set- and from-parameter
      *
      * @param lastrun
      * @return
@@ -309,14 +763,48 @@ public class OaiHarvester extends TerminateableRunnable {
         } else {
             builder.queryParam("metadataPrefix", "oai_dc");
 
+            if (setSpec != null) {
+                builder.queryParam("set", setSpec);
+            }
             if (lastrun.hasNextFromTimestamp()) {
-                builder.queryParam("from", uriTimestampFormat.format(lastrun.getNextFromTimestamp()));
+                builder.queryParam("from", formatUriTimestamp(lastrun.getNextFromTimestamp()));
             }
         }
 
         return builder.build();
     }
 
+    /**
+     * Build ListIdentifiers URI to request the next page of a date range slice, using the slice's
+     * resumptionToken (if there is one) or its from- and until-parameters
+     *
+     * @param slice
+     * @return
+     */
+    private URI buildSliceRequestURI(OaiSliceRunResult slice) {
+        UriBuilder builder = UriBuilder.fromUri(uri).queryParam("verb", "ListIdentifiers");
+
+        if (slice.hasResumptionToken()) {
+            builder.queryParam("resumptionToken", slice.getResumptionToken());
+        } else {
+            builder.queryParam("metadataPrefix", "oai_dc")
+                    .queryParam("from", formatUriTimestamp(slice.getFrom()))
+                    .queryParam("until", formatUriTimestamp(slice.getUntil()));
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * @param timestamp the timestamp to format
+     * @return the timestamp formatted by {@link #uriTimestampFormat}, which is shared by all slices and harvesters
+     */
+    private String formatUriTimestamp(Date timestamp) {
+        synchronized (uriTimestampFormat) {
+            return uriTimestampFormat.format(timestamp);
+        }
+    }
+
     /**
      * See file /doc/HarvesterResumptionLogic.xlsx, sheet "OaiRunResult processing" for details on how the new 
      * {@link OaiRunResult} is created, based on lastRunResult, resumptionToken flow control (and OAI-PMH errors) 
@@ -324,25 +812,37 @@ public class OaiHarvester extends TerminateableRunnable {
      * @param content
      * @param startTimeOfCurrentRun
      * @param lastRunResult
-     * @return
+     * @return the new {@link OaiRunResult} and the headers contained in the response
      * @throws ParserConfigurationException
      * @throws IOException
      * @throws SAXException
      * @throws XPathExpressionException
+     * @throws XMLStreamException
      * @throws IllegalArgumentException
      */
-    private OaiRunResult handleXmlResult(InputStream content, Date startTimeOfCurrentRun, OaiRunResult lastRunResult)
+    // package-private for the parser benchmarks
+    HarvestedPage handleXmlResult(InputStream content, Date startTimeOfCurrentRun, OaiRunResult lastRunResult)
             throws ParserConfigurationException, IOException, SAXException, XPathExpressionException,
-            IllegalArgumentException {
+            XMLStreamException, IllegalArgumentException {
 
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        Document document = documentBuilderFactory.newDocumentBuilder().parse(content);
+        ListIdentifiersResponse response = parseListIdentifiers(content);
 
-        Map<String, String> oaiErrorsFound = extractOaiErrors(document);
-        Date currentResponseDate = extractResponseDate(document, startTimeOfCurrentRun);
-        String currentResumptionToken = extractResumptionToken(document);
-        Date currentResumptionTokenExpirationDate = extractResumptionTokenExpirationDate(document);
-        extractOaiHeaderElements(document);
+        Map<String, String> oaiErrorsFound = response.getOaiErrors();
+        if (!oaiErrorsFound.isEmpty()) {
+            logger.debug("Response contained OAI errors: {}", oaiErrorsFound.toString());
+        }
+        Date currentResponseDate = response.getResponseDate();
+        checkServerTimeDifference(currentResponseDate, startTimeOfCurrentRun);
+        String currentResumptionToken = response.getResumptionToken();
+        Date currentResumptionTokenExpirationDate = response.getResumptionTokenExpirationDate();
+
+        logger.debug("{} header elements in OAI result", response.getHeaders().size());
+        List<OaiHeader> harvestedHeaders = new LinkedList<>();
+        for (OaiHeader receivedHeader : response.getHeaders()) {
+            boolean added = harvestedHeaders.add(receivedHeader);
+            if (added)
+                logger.debug("Added OAI header to list: {}", receivedHeader);
+        }
 
         // handle OAI-PMH errors and resumptionToken flow control
         // (see also
@@ -439,16 +939,75 @@ public class OaiHarvester extends TerminateableRunnable {
             }
         }
 
-        return new OaiRunResult(startTimeOfCurrentRun, currentResponseDate, currentResumptionToken,
-                currentResumptionTokenExpirationDate, nextFromTimestamp);
+        return new HarvestedPage(new OaiRunResult(startTimeOfCurrentRun, currentResponseDate, currentResumptionToken,
+                currentResumptionTokenExpirationDate, nextFromTimestamp, setSpec), harvestedHeaders);
+    }
+
+    /**
+     * @param content the OAI-PMH response
+     * @return the data extracted from the response, never {@code null}
+     * @throws ParserConfigurationException
+     * @throws IOException
+     * @throws SAXException
+     * @throws XPathExpressionException
+     * @throws XMLStreamException
+     * @throws IllegalArgumentException
+     */
+    private ListIdentifiersResponse parseListIdentifiers(InputStream content) throws ParserConfigurationException,
+            IOException, SAXException, XPathExpressionException, XMLStreamException, IllegalArgumentException {
+        ListIdentifiersResponse response;
+        try (Timer.Context time = parseTimer.time()) {
+            response = (useStreamingParser) ? streamingParser.parse(content) : parseDocument(content);
+        }
+        headersPerPage.update(response.getHeaders().size());
+        return response;
+    }
+
+    /**
+     * Execute the request and record the time until the response headers have been received.
+     */
+    private CloseableHttpResponse execute(HttpGet request, Timer requestTimer) throws IOException {
+        try (Timer.Context time = requestTimer.time()) {
+            return httpClient.execute(request);
+        }
+    }
+
+    /**
+     * @param headers the harvested headers
+     * @return the headers accepted by {@link #oaiHeaderFilter}
+     */
+    private List<OaiHeader> filter(List<OaiHeader> headers) {
+        List<OaiHeader> acceptedHeaders = oaiHeaderFilter.filterOaiHeaders(headers);
+        headersFiltered.add(headers.size() - acceptedHeaders.size());
+        return acceptedHeaders;
+    }
+
+    /**
+     * Parse the response into a DOM and extract its content using XPath. This is the fallback to
+     * {@link ListIdentifiersStaxParser} if the streaming parser is disabled.
+     *
+     * @param content the OAI-PMH response
+     * @return the data extracted from the response, never {@code null}
+     * @throws ParserConfigurationException
+     * @throws IOException
+     * @throws SAXException
+     * @throws XPathExpressionException
+     * @throws IllegalArgumentException
+     */
+    private ListIdentifiersResponse parseDocument(InputStream content) throws ParserConfigurationException,
+            IOException, SAXException, XPathExpressionException, IllegalArgumentException {
+
+        Document document = xmlParserCache.getDocumentBuilder().parse(content);
+
+        return new ListIdentifiersResponse(extractOaiErrors(document), extractResponseDate(document),
+                extractResumptionToken(document), extractResumptionTokenExpirationDate(document),
+                extractOaiHeaderElements(document));
     }
 
     private Map<String, String> extractOaiErrors(Document document) throws XPathExpressionException {
 
         Map<String, String> oaiErrorsFound = new HashMap<>();
-        XPath xPath = XPathFactory.newInstance().newXPath();
-
-        XPathExpression xSelectHeader = xPath.compile("//error");
+        XPathExpression xSelectHeader = xmlParserCache.getExpression("//error");
         NodeList errorNodes = (NodeList) xSelectHeader.evaluate(document, XPathConstants.NODESET);
 
         for (int i = 0; i < errorNodes.getLength(); i++) {
@@ -463,16 +1022,11 @@ public class OaiHarvester extends TerminateableRunnable {
             }
         }
 
-        if (!oaiErrorsFound.isEmpty()) {
-            logger.debug("Response contained OAI errors: ", oaiErrorsFound.toString());
-        }
-
         return oaiErrorsFound;
     }
 
     private Date extractResumptionTokenExpirationDate(Document document) throws XPathExpressionException {
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        XPathExpression xSelectExpirationDate = xPath.compile("//resumptionToken/@expirationDate");
+        XPathExpression xSelectExpirationDate = xmlParserCache.getExpression("//resumptionToken/@expirationDate");
         String resumptionExpiration = (String) xSelectExpirationDate.evaluate(document, XPathConstants.STRING);
         Date resumptionTokenExpirationDate = parseNullableDateTime(resumptionExpiration);
         return resumptionTokenExpirationDate;
@@ -490,11 +1044,10 @@ public class OaiHarvester extends TerminateableRunnable {
      */
     private String extractResumptionToken(Document document) throws XPathExpressionException {
         String resumptionToken = null;
-        XPath xPath = XPathFactory.newInstance().newXPath();
+        XPathExpression xSelectResumptionToken = xmlParserCache.getExpression("//resumptionToken");
 
-        Node node = (Node) xPath.evaluate("//resumptionToken", document, XPathConstants.NODE);
+        Node node = (Node) xSelectResumptionToken.evaluate(document, XPathConstants.NODE);
         if (node != null) {
-            XPathExpression xSelectResumptionToken = xPath.compile("//resumptionToken");
             resumptionToken = (String) xSelectResumptionToken.evaluate(document, XPathConstants.STRING);
             if (resumptionToken != null) {
                 resumptionToken = resumptionToken.trim();
@@ -504,33 +1057,31 @@ public class OaiHarvester extends TerminateableRunnable {
         return resumptionToken;
     }
 
-    private Date extractResponseDate(Document document, Date startTimeOfCurrentRun) throws XPathExpressionException {
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        XPathExpression xSelectResponseDate = xPath.compile("//responseDate");
+    private Date extractResponseDate(Document document) throws XPathExpressionException {
+        XPathExpression xSelectResponseDate = xmlParserCache.getExpression("//responseDate");
         String responseDateString = (String) xSelectResponseDate.evaluate(document, XPathConstants.STRING);
-        Date responseDate = DatatypeConverter.parseDateTime(responseDateString).getTime();
+        return DatatypeConverter.parseDateTime(responseDateString).getTime();
+    }
 
+    private void checkServerTimeDifference(Date responseDate, Date startTimeOfCurrentRun) {
         long serverTimeDifferenceMillis = Math.abs(responseDate.getTime() - startTimeOfCurrentRun.getTime());
         if (serverTimeDifferenceMillis > SERVER_TIME_DIFFERENCE_WARNING_MILLIS) {
             logger.warn("Local server time and remote server time have a huge difference of "
                     + DurationFormatUtils.formatDuration(serverTimeDifferenceMillis, "d 'days,' HH'h':mm'm':ss's'"));
         }
-        return responseDate;
     }
 
     /**
-     * Use XPath to generate {@link OaiHeader} objects from the document and add
-     * them to {@link #harvestedHeaders}.
+     * Use XPath to generate {@link OaiHeader} objects from the document.
      *
      * @param document
+     * @return the headers in document order, list may be empty but never {@code null}.
      * @throws XPathExpressionException
      */
-    private void extractOaiHeaderElements(Document document) throws XPathExpressionException {
-        XPath xPath = XPathFactory.newInstance().newXPath();
-
-        XPathExpression xSelectHeader = xPath.compile("//header");
+    private List<OaiHeader> extractOaiHeaderElements(Document document) throws XPathExpressionException {
+        List<OaiHeader> headers = new LinkedList<>();
+        XPathExpression xSelectHeader = xmlParserCache.getExpression("//header");
         NodeList headerNodes = (NodeList) xSelectHeader.evaluate(document, XPathConstants.NODESET);
-        logger.debug("{} header elements in OAI result", headerNodes.getLength());
 
         for (int i = 0; i < headerNodes.getLength(); i++) {
             Node singleHeaderNode = headerNodes.item(i);
@@ -555,12 +1106,10 @@ public class OaiHarvester extends TerminateableRunnable {
                 // OaiHeader receivedHeader = new OaiHeader(recordIdentifier,
                 // datestampDate, statusIsDeleted);
 
-                boolean added = harvestedHeaders.add(receivedHeader);
-                if (added)
-                    logger.debug("Added OAI header to list: {}", receivedHeader);
-
+                headers.add(receivedHeader);
             }
         }
+        return headers;
     }
 
     /**
@@ -578,4 +1127,24 @@ public class OaiHarvester extends TerminateableRunnable {
         return date;
     }
 
+    /**
+     * The result of one ListIdentifiers request: the new {@link OaiRunResult} and the headers it contained.
+     */
+    static class HarvestedPage {
+        private final OaiRunResult runResult;
+        private final List<OaiHeader> headers;
+
+        HarvestedPage(OaiRunResult runResult, List<OaiHeader> headers) {
+            this.runResult = runResult;
+            this.headers = headers;
+        }
+
+        OaiRunResult getRunResult() {
+            return runResult;
+        }
+
+        List<OaiHeader> getHeaders() {
+            return headers;
+        }
+    }
 }
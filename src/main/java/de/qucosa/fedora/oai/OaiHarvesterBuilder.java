@@ -16,6 +16,7 @@
 
 package de.qucosa.fedora.oai;
 
+import de.qucosa.metrics.MetricsRegistry;
 import de.qucosa.persistence.PersistenceService;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.joda.time.Duration;
@@ -23,11 +24,16 @@ import org.joda.time.Duration;
 import java.net.URI;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 
 public class OaiHarvesterBuilder {
 
     // TODO public ok, so everybody can see the defaults?
     public static final boolean DEFAULT_FCREPO3_COMPATIBILITY_MODE = true;
+    public static final boolean DEFAULT_USE_STREAMING_PARSER = true;
+    public static final boolean DEFAULT_USE_LEADER_ELECTION = false;
+    public static final boolean DEFAULT_USE_PREFETCH = false;
+    public static final int DEFAULT_BOOTSTRAP_SLICES = 1;
     public static final Duration DEFAULT_POLLING_INTERVAL = Duration.standardMinutes(5);
     public static final Duration MINIMUM_POLLING_INTERVAL = Duration.standardSeconds(1);
     public static final Duration MINIMUM_WAITTIME_BETWEEN_TWO_REQUESTS = Duration.standardSeconds(1);
@@ -47,6 +53,13 @@ public class OaiHarvesterBuilder {
     private Duration oaiRunResultHistory = DEFAULT_OAI_RUN_RESULT_HISTORY_LENGTH;
     private Duration pollingInterval = DEFAULT_POLLING_INTERVAL;
     private boolean useFC3CompatibilityMode = DEFAULT_FCREPO3_COMPATIBILITY_MODE;
+    private boolean useStreamingParser = DEFAULT_USE_STREAMING_PARSER;
+    private boolean useLeaderElection = DEFAULT_USE_LEADER_ELECTION;
+    private BlockingQueue<OaiHeader> handoffQueue = null;
+    private boolean usePrefetch = DEFAULT_USE_PREFETCH;
+    private int bootstrapSlices = DEFAULT_BOOTSTRAP_SLICES;
+    private String setSpec = null;
+    private MetricsRegistry metricsRegistry = new MetricsRegistry();
 
     /**
      * @param uriToHarvest the OAI service provider's URI  
@@ -61,7 +74,8 @@ public class OaiHarvesterBuilder {
 
     public OaiHarvester build() {
         return new OaiHarvester(uriToHarvest, pollingInterval, MINIMUM_WAITTIME_BETWEEN_TWO_REQUESTS, oaiHeaderFilter,
-                persistenceService, oaiRunResultHistory, useFC3CompatibilityMode, httpClient);
+                persistenceService, oaiRunResultHistory, useFC3CompatibilityMode, useStreamingParser, useLeaderElection,
+                handoffQueue, usePrefetch, bootstrapSlices, setSpec, httpClient, metricsRegistry);
     }
 
     /**
@@ -109,6 +123,93 @@ public class OaiHarvesterBuilder {
         return this;
     }
 
+    /**
+     * Parse OAI responses with a single-pass StAX parser instead of building a DOM and evaluating
+     * XPath expressions on it. The streaming parser does not keep the whole response in memory.
+     *
+     * @param useStreamingParser {@code true} to use the streaming parser, {@code false} to use the DOM parser.
+     * @return this {@link OaiHarvesterBuilder} instance, never {@code null}.
+     */
+    public OaiHarvesterBuilder setStreamingParser(boolean useStreamingParser) {
+        this.useStreamingParser = useStreamingParser;
+        return this;
+    }
+
+    /**
+     * Harvest only if holding the harvester lock in persistence, so only one of several nodes sharing the same
+     * persistence harvests the OAI data provider. If the node holding the lock dies, another one takes over.
+     *
+     * @param useLeaderElection {@code true} to harvest only while holding the harvester lock.
+     * @return this {@link OaiHarvesterBuilder} instance, never {@code null}.
+     */
+    public OaiHarvesterBuilder setLeaderElection(boolean useLeaderElection) {
+        this.useLeaderElection = useLeaderElection;
+        return this;
+    }
+
+    /**
+     * Hand over harvested headers to a consumer in the same process, in addition to persisting them. Headers
+     * are offered without blocking, so a full queue never slows down harvesting; the consumer has to read
+     * headers that did not fit from persistence.
+     *
+     * @param handoffQueue bounded queue shared with the consumer, or {@code null} to persist headers only.
+     * @return this {@link OaiHarvesterBuilder} instance, never {@code null}.
+     */
+    public OaiHarvesterBuilder setHandoffQueue(BlockingQueue<OaiHeader> handoffQueue) {
+        this.handoffQueue = handoffQueue;
+        return this;
+    }
+
+    /**
+     * Request the next page of a paginated response while the current page is filtered and persisted. The
+     * {@link OaiRunResult} of a page is still stored only after its headers have been persisted, so an
+     * interrupted harvest resumes from the last persisted page.
+     *
+     * @param usePrefetch {@code true} to request the next page in the background.
+     * @return this {@link OaiHarvesterBuilder} instance, never {@code null}.
+     */
+    public OaiHarvesterBuilder setPrefetch(boolean usePrefetch) {
+        this.usePrefetch = usePrefetch;
+        return this;
+    }
+
+    /**
+     * Split the initial harvest, if there is no {@link OaiRunResult} in persistence, into date range slices
+     * from the data provider's earliest datestamp until now. The slices are harvested in parallel, each by its
+     * own resumption token chain, and their progress is persisted separately. If {@code bootstrapSlices} is
+     * less than 2, the initial harvest uses a single chain like any other run.
+     *
+     * @param bootstrapSlices number of slices to harvest in parallel
+     * @return this {@link OaiHarvesterBuilder} instance, never {@code null}.
+     */
+    public OaiHarvesterBuilder setBootstrapSlices(int bootstrapSlices) {
+        this.bootstrapSlices = Math.max(1, bootstrapSlices);
+        return this;
+    }
+
+    /**
+     * Harvest only the given OAI set. The harvester keeps its own {@link OaiRunResult} checkpoints with
+     * {@link OaiRunResult#getSetSpec()}, so several harvesters of different sets of the same OAI data provider
+     * can run in parallel. Date range slices of the initial harvest are used for the whole repository only.
+     *
+     * @param setSpec the OAI set to harvest or {@code null} to harvest the whole repository.
+     * @return this {@link OaiHarvesterBuilder} instance, never {@code null}.
+     */
+    public OaiHarvesterBuilder setSetSpec(String setSpec) {
+        this.setSpec = setSpec;
+        return this;
+    }
+
+    /**
+     * @param metricsRegistry receives the request, parsing and filter metrics of the harvester. By default they
+     *                        are kept in a registry of its own.
+     * @return this {@link OaiHarvesterBuilder} instance, never {@code null}.
+     */
+    public OaiHarvesterBuilder setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+        return this;
+    }
+
     public PersistenceService getPersistenceService() {
         return persistenceService;
     }
@@ -133,5 +234,33 @@ public class OaiHarvesterBuilder {
         return useFC3CompatibilityMode;
     }
 
+    public boolean isUseStreamingParser() {
+        return useStreamingParser;
+    }
+
+    public boolean isUseLeaderElection() {
+        return useLeaderElection;
+    }
+
+    public BlockingQueue<OaiHeader> getHandoffQueue() {
+        return handoffQueue;
+    }
+
+    public boolean isUsePrefetch() {
+        return usePrefetch;
+    }
+
+    public int getBootstrapSlices() {
+        return bootstrapSlices;
+    }
+
+    public String getSetSpec() {
+        return setSpec;
+    }
+
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
     
 }
@@ -25,7 +25,8 @@ import java.util.Date;
  * <p>
  * An immutable OaiRunResult always has a time stamp when this run was executed
  * and the servers responseDate. Optional parameters are OAI resumption token
- * and the resumption token's expiration date.
+ * and the resumption token's expiration date, and the OAI set the run was
+ * restricted to.
  */
 public final class OaiRunResult {
 
@@ -55,6 +56,14 @@ public final class OaiRunResult {
     private final Date timestampOfRun;
 
     /**
+     * the value of the 'set' parameter or {@code null} if the whole repository was requested
+     */
+    private final String setSpec;
+
+    /**
+     * Same as {@code OaiRunResult(timestampOfRun, responseDate, resumptionToken, resumptionTokenExpirationDate,
+     * nextFromTimestamp, null)}, the result of a run requesting the whole repository.
+     *
      * @param timestampOfRun                time stamp when this run was executed
      * @param responseDate                  time stamp received from OAI data provider that was requested.
      * @param resumptionToken               the OAI resumption token received. either {@code null} if
@@ -77,6 +86,25 @@ public final class OaiRunResult {
     public OaiRunResult(Date timestampOfRun, Date responseDate, String resumptionToken,
                         Date resumptionTokenExpirationDate, Date nextFromTimestamp)
             throws IllegalArgumentException {
+        this(timestampOfRun, responseDate, resumptionToken, resumptionTokenExpirationDate, nextFromTimestamp, null);
+    }
+
+    /**
+     * @param timestampOfRun                time stamp when this run was executed
+     * @param responseDate                  time stamp received from OAI data provider that was requested.
+     * @param resumptionToken               the OAI resumption token received, see
+     *                                      {@link #OaiRunResult(Date, Date, String, Date, Date)}
+     * @param resumptionTokenExpirationDate the OAI resumption token's expiration date, may be
+     *                                      {@code null}.
+     * @param nextFromTimestamp             The timestamp of the 'from' parameter to be used in the next
+     *                                      GET request not containing a resumptionToken. May be {@code null}.
+     * @param setSpec                       the value of the 'set' parameter or {@code null} if the whole
+     *                                      repository was requested.
+     * @throws IllegalArgumentException see {@link #OaiRunResult(Date, Date, String, Date, Date)}
+     */
+    public OaiRunResult(Date timestampOfRun, Date responseDate, String resumptionToken,
+                        Date resumptionTokenExpirationDate, Date nextFromTimestamp, String setSpec)
+            throws IllegalArgumentException {
 
         if (timestampOfRun == null)
             throw new IllegalArgumentException(
@@ -96,6 +124,7 @@ public final class OaiRunResult {
         this.resumptionToken = resumptionToken;
         this.resumptionTokenExpirationDate = resumptionTokenExpirationDate;
         this.nextFromTimestamp = nextFromTimestamp;
+        this.setSpec = setSpec;
     }
 
     //TODO do we really need this empty OaiRunResult? It forces all getters to possibly return null hence every caller has to do null checks :/
@@ -105,6 +134,7 @@ public final class OaiRunResult {
         this.resumptionToken = null;
         this.resumptionTokenExpirationDate = null;
         this.nextFromTimestamp = null;
+        this.setSpec = null;
     }
 
     /**
@@ -150,6 +180,13 @@ public final class OaiRunResult {
         return nextFromTimestamp;
     }
 
+    /**
+     * @return the value of the 'set' parameter or {@code null} if the whole repository was requested.
+     */
+    public String getSetSpec() {
+        return setSpec;
+    }
+
     public boolean hasTimestampOfRun() {
         return timestampOfRun != null;
     }
@@ -166,7 +203,7 @@ public final class OaiRunResult {
     public String toString() {
         return "OaiRunResult [timestampOfRun=" + timestampOfRun + ", responseDate=" + responseDate
                 + ", resumptionToken=" + resumptionToken + ", resumptionTokenExpirationDate="
-                + resumptionTokenExpirationDate + ", nextFromTimestamp=" + nextFromTimestamp + "]";
+                + resumptionTokenExpirationDate + ", nextFromTimestamp=" + nextFromTimestamp + ", setSpec=" + setSpec + "]";
     }
 
     @Override
@@ -179,6 +216,7 @@ public final class OaiRunResult {
         result = prime * result
                 + ((resumptionTokenExpirationDate == null) ? 0 : resumptionTokenExpirationDate.hashCode());
         result = prime * result + ((timestampOfRun == null) ? 0 : timestampOfRun.hashCode());
+        result = prime * result + ((setSpec == null) ? 0 : setSpec.hashCode());
         return result;
     }
 
@@ -216,6 +254,11 @@ public final class OaiRunResult {
                 return false;
         } else if (!timestampOfRun.equals(other.timestampOfRun))
             return false;
+        if (setSpec == null) {
+            if (other.setSpec != null)
+                return false;
+        } else if (!setSpec.equals(other.setSpec))
+            return false;
         return true;
     }
 
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.fedora.oai;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.UriBuilder;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Requests the sets of an OAI data provider using the ListSets verb, following resumption tokens until the
+ * list is complete. Used to start one {@link OaiHarvester} per set.
+ */
+public class OaiSetLister {
+
+    private static final String OAI_PMH_ERROR_NO_SET_HIERARCHY = "noSetHierarchy";
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final URI uri;
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * @param uri        the OAI service provider's URI
+     * @param httpClient to be used for communication with the OAI service provider
+     */
+    public OaiSetLister(URI uri, CloseableHttpClient httpClient) {
+        this.uri = uri;
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * @return the setSpecs of all sets in the order of the responses, list may be empty if the data provider
+     * does not support sets but never {@code null}.
+     * @throws IOException if a request failed or the data provider sent an error
+     */
+    public List<String> listSets() throws IOException {
+        List<String> setSpecs = new LinkedList<>();
+        String resumptionToken = null;
+        do {
+            UriBuilder builder = UriBuilder.fromUri(uri).queryParam("verb", "ListSets");
+            if (resumptionToken != null) {
+                builder.queryParam("resumptionToken", resumptionToken);
+            }
+            URI requestUri = builder.build();
+            logger.debug("Requesting {}", requestUri.toASCIIString());
+
+            try (CloseableHttpResponse httpResponse = httpClient.execute(new HttpGet(requestUri))) {
+                if (httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                    throw new IOException("Unexpected OAI service response: "
+                            + httpResponse.getStatusLine().getStatusCode() + " "
+                            + httpResponse.getStatusLine().getReasonPhrase());
+                }
+                HttpEntity httpEntity = httpResponse.getEntity();
+                if (httpEntity == null) {
+                    throw new IOException("Got empty response from OAI service.");
+                }
+                resumptionToken = parse(httpEntity.getContent(), setSpecs);
+                EntityUtils.consumeQuietly(httpEntity);
+            } catch (XMLStreamException e) {
+                throw new IOException("Could not parse ListSets response.", e);
+            }
+        } while (StringUtils.isNotBlank(resumptionToken));
+
+        return setSpecs;
+    }
+
+    /**
+     * @param content  the ListSets response
+     * @param setSpecs receives the setSpecs contained in the response
+     * @return the resumption token or {@code null} if there is none
+     * @throws XMLStreamException if the content is not well-formed XML
+     * @throws IOException        if the response contains an OAI-PMH error other than noSetHierarchy
+     */
+    private String parse(InputStream content, List<String> setSpecs) throws XMLStreamException, IOException {
+        String resumptionToken = null;
+
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(content);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+
+                switch (reader.getLocalName()) {
+                    case "setSpec":
+                        setSpecs.add(reader.getElementText().trim());
+                        break;
+                    case "resumptionToken":
+                        resumptionToken = reader.getElementText().trim();
+                        break;
+                    case "error":
+                        String errorCode = reader.getAttributeValue(null, "code");
+                        if (OAI_PMH_ERROR_NO_SET_HIERARCHY.equals(errorCode)) {
+                            logger.warn("OAI data provider does not support sets.");
+                            return null;
+                        }
+                        throw new IOException("OAI data provider sent an error: " + errorCode + " "
+                                + reader.getElementText());
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return resumptionToken;
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.fedora.oai;
+
+import java.util.Date;
+
+/**
+ * The harvester's progress in one date range slice of the initial harvest.
+ * <p>
+ * The initial harvest splits the datestamp range of the OAI data provider into slices that are harvested in
+ * parallel, each by its own resumption token chain. An immutable OaiSliceRunResult always has the slice's
+ * 'from' and 'until' parameters. The resumption token is present while the slice's paginated response has
+ * not been harvested completely.
+ */
+public final class OaiSliceRunResult {
+
+    /**
+     * position of the slice in the datestamp range, starting with 0
+     */
+    private final int sliceIndex;
+
+    /**
+     * value of the 'from' parameter of the slice's first request
+     */
+    private final Date from;
+
+    /**
+     * value of the 'until' parameter of the slice's first request
+     */
+    private final Date until;
+
+    /**
+     * resumption token of the slice's next request, {@code null} to start from the first page
+     */
+    private final String resumptionToken;
+
+    /**
+     * {@code true} if all pages of the slice have been harvested
+     */
+    private final boolean completed;
+
+    /**
+     * @param sliceIndex      position of the slice in the datestamp range, starting with 0
+     * @param from            value of the 'from' parameter of the slice's first request
+     * @param until           value of the 'until' parameter of the slice's first request
+     * @param resumptionToken resumption token of the slice's next request, {@code null} to start from the
+     *                        first page
+     * @param completed       {@code true} if all pages of the slice have been harvested
+     * @throws IllegalArgumentException if from or until is {@code null}
+     */
+    public OaiSliceRunResult(int sliceIndex, Date from, Date until, String resumptionToken, boolean completed)
+            throws IllegalArgumentException {
+
+        if (from == null)
+            throw new IllegalArgumentException("Parameter from must not be null.");
+
+        if (until == null)
+            throw new IllegalArgumentException("Parameter until must not be null.");
+
+        this.sliceIndex = sliceIndex;
+        this.from = from;
+        this.until = until;
+        this.resumptionToken = resumptionToken;
+        this.completed = completed;
+    }
+
+    /**
+     * @return position of the slice in the datestamp range, starting with 0
+     */
+    public int getSliceIndex() {
+        return sliceIndex;
+    }
+
+    /**
+     * @return value of the 'from' parameter of the slice's first request, never {@code null}.
+     */
+    public Date getFrom() {
+        return from;
+    }
+
+    /**
+     * @return value of the 'until' parameter of the slice's first request, never {@code null}.
+     */
+    public Date getUntil() {
+        return until;
+    }
+
+    /**
+     * @return resumption token of the slice's next request. May be {@code null}.
+     */
+    public String getResumptionToken() {
+        return resumptionToken;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public boolean hasResumptionToken() {
+        return resumptionToken != null && !resumptionToken.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "OaiSliceRunResult [sliceIndex=" + sliceIndex + ", from=" + from + ", until=" + until
+                + ", resumptionToken=" + resumptionToken + ", completed=" + completed + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + sliceIndex;
+        result = prime * result + from.hashCode();
+        result = prime * result + until.hashCode();
+        result = prime * result + ((resumptionToken == null) ? 0 : resumptionToken.hashCode());
+        result = prime * result + (completed ? 1231 : 1237);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        OaiSliceRunResult other = (OaiSliceRunResult) obj;
+        if (sliceIndex != other.sliceIndex)
+            return false;
+        if (!from.equals(other.from))
+            return false;
+        if (!until.equals(other.until))
+            return false;
+        if (resumptionToken == null) {
+            if (other.resumptionToken != null)
+                return false;
+        } else if (!resumptionToken.equals(other.resumptionToken))
+            return false;
+        return completed == other.completed;
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.fedora.reporting;
+
+import de.qucosa.metrics.MetricsRegistry;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Writes the metrics of all repositories as plain text, one line per metric. The same metrics are available
+ * as MBeans in domain {@value ReportingManager#METRICS_JMX_DOMAIN}.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        MetricsRegistry metricsRegistry = (MetricsRegistry) getServletContext()
+                .getAttribute(ReportingManager.METRICS_REGISTRY_ATTRIBUTE);
+        if (metricsRegistry == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Metrics are not available.");
+            return;
+        }
+
+        resp.setContentType("text/plain");
+        resp.setCharacterEncoding("UTF-8");
+        metricsRegistry.writeText(resp.getWriter());
+    }
+}
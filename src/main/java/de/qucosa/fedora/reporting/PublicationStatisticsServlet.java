@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.fedora.reporting;
+
+import de.qucosa.persistence.PersistenceException;
+import de.qucosa.persistence.PostgrePersistenceService;
+import de.qucosa.persistence.PublicationCount;
+import de.qucosa.persistence.ReportingQueryService;
+import de.qucosa.persistence.ReportingQueryService.Period;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static de.qucosa.util.Json.quote;
+
+/**
+ * Returns the number of publications per mandator, documentType and month or year as JSON.
+ * <p>
+ * Parameters:
+ * <ul>
+ * <li>{@code from}: first day to count, {@code yyyy-MM-dd}, required</li>
+ * <li>{@code until}: first day not to count, {@code yyyy-MM-dd}, required</li>
+ * <li>{@code period}: {@code month} (default) or {@code year}</li>
+ * <li>{@code mandator}: the only mandator to count, all mandators if omitted</li>
+ * <li>{@code repository}: name of the repository, the default repository if omitted</li>
+ * </ul>
+ */
+public class PublicationStatisticsServlet extends HttpServlet {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        @SuppressWarnings("unchecked")
+        Map<String, ReportingQueryService> queryServices = (Map<String, ReportingQueryService>)
+                getServletContext().getAttribute(ReportingManager.REPORTING_QUERY_SERVICES_ATTRIBUTE);
+        if (queryServices == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Statistics are not available.");
+            return;
+        }
+
+        String repository = req.getParameter("repository");
+        ReportingQueryService queryService = queryServices.get(
+                (repository == null) ? PostgrePersistenceService.DEFAULT_REPOSITORY : repository);
+        if (queryService == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown repository '" + repository + "'.");
+            return;
+        }
+
+        Date from;
+        Date until;
+        Period period;
+        try {
+            from = parseDate(req, "from");
+            until = parseDate(req, "until");
+            String periodParameter = req.getParameter("period");
+            period = (periodParameter == null) ? Period.MONTH : Period.valueOf(periodParameter.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        String mandator = req.getParameter("mandator");
+
+        List<PublicationCount> counts;
+        try {
+            counts = queryService.countPublications(from, until, period, mandator);
+        } catch (PersistenceException e) {
+            logger.error("Could not count publications.", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Could not count publications.");
+            return;
+        }
+
+        // periods start in the time zone of the database session, which is the JVM's default time zone
+        SimpleDateFormat periodFormat = new SimpleDateFormat((period == Period.YEAR) ? "yyyy" : "yyyy-MM");
+
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        PrintWriter out = resp.getWriter();
+        out.append("{\"period\":").append(quote(period.name().toLowerCase()))
+                .append(",\"mandator\":").append(quote(mandator))
+                .append(",\"counts\":[");
+        String separator = "";
+        for (PublicationCount count : counts) {
+            out.append(separator)
+                    .append("{\"mandator\":").append(quote(count.getMandator()))
+                    .append(",\"documentType\":").append(quote(count.getDocumentType()))
+                    .append(",\"period\":").append(quote(periodFormat.format(count.getPeriodStart())))
+                    .append(",\"count\":").append(String.valueOf(count.getCount()))
+                    .append('}');
+            separator = ",";
+        }
+        out.append("]}");
+    }
+
+    /**
+     * @return start of the day in the JVM's default time zone
+     * @throws IllegalArgumentException if the parameter is missing or not a date {@code yyyy-MM-dd}
+     */
+    private Date parseDate(HttpServletRequest req, String name) throws IllegalArgumentException {
+        String value = req.getParameter(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Parameter " + name + " is required.");
+        }
+        try {
+            return LocalDate.parse(value).toDate();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Parameter " + name + " must be a date yyyy-MM-dd.", e);
+        }
+    }
+}
@@ -17,13 +17,24 @@
 package de.qucosa.fedora.reporting;
 
 import de.qucosa.fedora.mets.MetsProcessor;
+import de.qucosa.fedora.mets.MetsProcessorBuilder;
 import de.qucosa.fedora.oai.OaiHarvester;
 import de.qucosa.fedora.oai.OaiHarvesterBuilder;
+import de.qucosa.fedora.oai.OaiHeader;
+import de.qucosa.fedora.oai.OaiSetLister;
 import de.qucosa.fedora.oai.QucosaDocumentFilter;
+import de.qucosa.metrics.Gauge;
+import de.qucosa.metrics.MetricsRegistry;
 import de.qucosa.persistence.PersistenceService;
+import de.qucosa.persistence.PooledDataSourceFactory;
 import de.qucosa.persistence.PostgrePersistenceService;
+import de.qucosa.persistence.ReportingQueryService;
+import de.qucosa.util.PooledHttpClientFactory;
+import de.qucosa.util.TerminateableRunnable;
+import org.apache.commons.dbcp2.BasicDataSource;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.joda.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,8 +46,17 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static org.slf4j.MarkerFactory.getMarker;
@@ -44,88 +64,332 @@ import static org.slf4j.MarkerFactory.getMarker;
 public class ReportingManager implements ServletContextListener {
 
     public static final Marker FATAL = getMarker("FATAL");
+
+    /**
+     * Name of the servlet context attribute holding the application's {@link MetricsRegistry}.
+     */
+    public static final String METRICS_REGISTRY_ATTRIBUTE = MetricsRegistry.class.getName();
+    public static final String METRICS_JMX_DOMAIN = "de.qucosa.reporting";
+
+    /**
+     * Name of the servlet context attribute holding the application's {@link StatusMonitor}.
+     */
+    public static final String STATUS_MONITOR_ATTRIBUTE = StatusMonitor.class.getName();
+
+    /**
+     * Name of the servlet context attribute holding the {@link ReportingQueryService} of every repository by
+     * repository name.
+     */
+    public static final String REPORTING_QUERY_SERVICES_ATTRIBUTE = ReportingQueryService.class.getName();
+
+    private final MetricsRegistry metricsRegistry = new MetricsRegistry(METRICS_JMX_DOMAIN);
     private ExecutorService executorService;
+    private final List<TerminateableRunnable> runnables = new LinkedList<>();
+    private final List<PostgrePersistenceService> persistenceServices = new LinkedList<>();
+    private ScheduledExecutorService statusExecutorService;
+    private StatusMonitor statusMonitor;
+    private final Map<String, ReportingQueryService> queryServices = new ConcurrentHashMap<>();
+    private BasicDataSource dataSource;
+    private CloseableHttpClient httpClient;
+    private CloseableHttpAsyncClient asyncHttpClient;
     private Logger logger = LoggerFactory.getLogger(getClass());
 
     @Override
     public void contextInitialized(ServletContextEvent sve) {
         logger.info("Starting up...");
+        sve.getServletContext().setAttribute(METRICS_REGISTRY_ATTRIBUTE, metricsRegistry);
         try {
             ReportingProperties prop = ReportingProperties.getInstance();
 
-            // initialize OaiHarvester
-            //TODO check if PostgrePersistenceService is thread safe, use one service for all components
-            PersistenceService persistenceServiceOaiHarvester = new PostgrePersistenceService(
+            // one connection pool shared by all components of all repositories
+            dataSource = PooledDataSourceFactory.createDataSource(
                     prop.getPostgreSQLDriver(),
                     prop.getPostgreSQLDatabaseURL(),
                     prop.getPostgreSQLUser(),
-                    prop.getPostgreSQLPasswd());
+                    prop.getPostgreSQLPasswd(),
+                    prop.getPostgreSQLPoolSize(),
+                    prop.getPostgreSQLPoolIdleTimeout(),
+                    prop.getPostgreSQLPoolMaxWait(),
+                    prop.getPostgreSQLPoolValidationQuery());
+            metricsRegistry.gauge("db.pool.active", new Gauge() {
+                @Override
+                public long getValue() {
+                    return dataSource.getNumActive();
+                }
+            });
+            metricsRegistry.gauge("db.pool.idle", new Gauge() {
+                @Override
+                public long getValue() {
+                    return dataSource.getNumIdle();
+                }
+            });
+
+            // one HTTP connection pool and thread pool are shared by all repositories as well
+            PoolingHttpClientConnectionManager httpConnectionManager = PooledHttpClientFactory.createConnectionManager(
+                    prop.getHttpPoolSize(),
+                    prop.getHttpPoolSizePerRoute());
+            httpClient = PooledHttpClientFactory.createHttpClient(
+                    httpConnectionManager,
+                    prop.getHttpConnectTimeout(),
+                    prop.getHttpSocketTimeout(),
+                    prop.getHttpKeepAlive(),
+                    prop.getHttpCompression());
+            executorService = Executors.newCachedThreadPool();
+            statusMonitor = new StatusMonitor(dataSource, httpConnectionManager);
+
+            Map<String, ReportingProperties> repositories = new LinkedHashMap<>();
+            if (prop.getRepositoryNames().isEmpty()) {
+                repositories.put(PostgrePersistenceService.DEFAULT_REPOSITORY, prop);
+            } else {
+                for (String repository : prop.getRepositoryNames()) {
+                    repositories.put(repository, prop.forRepository(repository));
+                }
+            }
+
+            // resolve the sets of all repositories first, so the pool size can be checked before anything starts
+            Map<String, List<String>> setSpecs = new HashMap<>();
+            for (Map.Entry<String, ReportingProperties> repository : repositories.entrySet()) {
+                ReportingProperties repositoryProp = repository.getValue();
+                setSpecs.put(repository.getKey(), resolveOaiSets(repositoryProp.getOaiSets(),
+                        new URI(repositoryProp.getOaiDataProviderURL())));
+            }
+            checkPoolSize(prop.getPostgreSQLPoolSize(), repositories, setSpecs);
 
-            URI uriToHarvestOAI = new URI(prop.getOaiDataProviderURL());
+            for (Map.Entry<String, ReportingProperties> repository : repositories.entrySet()) {
+                logger.info("Starting repository '{}'", repository.getKey());
+                startRepository(repository.getKey(), repository.getValue(), setSpecs.get(repository.getKey()));
+            }
 
-            //TODO is httpClient closed on shutdown?
-            CloseableHttpClient httpClientOaiHarvester = HttpClients.createMinimal();
+            // the status snapshot is refreshed in the background, so requests never wait for the database
+            statusExecutorService = Executors.newSingleThreadScheduledExecutor();
+            statusExecutorService.scheduleAtFixedRate(statusMonitor, 0,
+                    StatusMonitor.DEFAULT_REFRESH_INTERVAL.getMillis(), TimeUnit.MILLISECONDS);
+            sve.getServletContext().setAttribute(STATUS_MONITOR_ATTRIBUTE, statusMonitor);
+            sve.getServletContext().setAttribute(REPORTING_QUERY_SERVICES_ATTRIBUTE, queryServices);
 
-            OaiHarvester oaiHarvester = new OaiHarvesterBuilder(uriToHarvestOAI, httpClientOaiHarvester, persistenceServiceOaiHarvester)
+            logger.info("Started");
+        } catch (IOException e) {
+            logger.error(FATAL, "OAI harvester was not started!", e);
+        } catch (IllegalArgumentException | URISyntaxException e) {
+            logger.error(FATAL, e.getMessage(), e);
+        } catch (SQLException e) {
+            logger.error(FATAL, "Could not connect to database!", e);
+        }
+    }
+
+    /**
+     * Start the {@link OaiHarvester}s and the {@link MetsProcessor} of one repository on {@link #executorService}.
+     *
+     * @param repository name of the repository, stored with all its data
+     * @param prop       properties of the repository
+     * @param setSpecs   the sets to harvest, a single {@code null} element to harvest the whole repository
+     * @throws SQLException       if no database connection could be obtained
+     * @throws URISyntaxException if a configured URL is invalid
+     * @throws IOException        if the non-blocking HTTP client could not be created
+     */
+    private void startRepository(String repository, ReportingProperties prop, List<String> setSpecs)
+            throws SQLException, URISyntaxException, IOException {
+
+        // metrics of the repository are kept apart by a name prefix
+        MetricsRegistry repositoryMetrics = metricsRegistry.forRepository(repository);
+
+        // the persistence service only sees the data of its repository, but borrows from the shared pool
+        PostgrePersistenceService persistenceService = new PostgrePersistenceService(dataSource, repository);
+        persistenceService.setBulkUpsertThreshold(prop.getPostgreSQLBulkUpsertThreshold());
+        persistenceService.setMetricsRegistry(repositoryMetrics);
+        persistenceServices.add(persistenceService);
+
+        // hand over harvested headers directly to the MetsProcessor. Claimed headers must be read from the
+        // database, so the queue is only used if this is the only instance processing METS documents.
+        BlockingQueue<OaiHeader> handoffQueue = null;
+        if (prop.getMetsHandoffQueueSize() > 0 && !prop.getMetsWorkClaiming()) {
+            handoffQueue = new ArrayBlockingQueue<>(prop.getMetsHandoffQueueSize());
+        }
+
+        // initialize OaiHarvester
+
+        URI uriToHarvestOAI = new URI(prop.getOaiDataProviderURL());
+
+        // one harvester per set, or a single one for the whole repository
+        for (String setSpec : setSpecs) {
+            execute(new OaiHarvesterBuilder(uriToHarvestOAI, httpClient, persistenceService)
                     .setPollingInterval(Duration.standardSeconds(prop.getOaiDataProviderPollingInterval()))
                     .setOaiHeaderFilter(new QucosaDocumentFilter())
                     .setFC3CompatibilityMode(prop.getFC3CompatibilityMode())
+                    .setStreamingParser(prop.getOaiStreamingParser())
+                    .setLeaderElection(prop.getOaiLeaderElection())
+                    .setHandoffQueue(handoffQueue)
+                    .setPrefetch(prop.getOaiPrefetch())
+                    .setBootstrapSlices(prop.getOaiBootstrapSlices())
+                    .setSetSpec(setSpec)
                     .setOaiRunResultHistory(prop.getOaiRunResultHistoryLength())
-                    .build();
+                    .setMetricsRegistry(repositoryMetrics)
+                    .build());
+        }
 
-            // initialize MetsHarvester
-            PersistenceService persistenceServiceMetsHarvester = new PostgrePersistenceService(
-                    prop.getPostgreSQLDriver(),
-                    prop.getPostgreSQLDatabaseURL(),
-                    prop.getPostgreSQLUser(),
-                    prop.getPostgreSQLPasswd());
+        // initialize MetsHarvester
+        URI metsUri = new URI(prop.getMetsDisseminationURL());
+        Duration pollInterval = Duration.standardSeconds(prop.getMetsDisseminationPollingInterval());
+        Duration minimumWaittimeBetweenTwoRequests = prop.getMetsRequestInterval();
 
-            URI metsUri = new URI(prop.getMetsDisseminationURL());
-            Duration pollInterval = Duration.standardSeconds(prop.getMetsDisseminationPollingInterval());
-            Duration minimumWaittimeBetweenTwoRequests = Duration.standardSeconds(1);
+        execute(new MetsProcessorBuilder(metsUri, httpClient, persistenceService)
+                .setPollingInterval(pollInterval)
+                .setMinimumWaittimeBetweenTwoRequests(minimumWaittimeBetweenTwoRequests)
+                .setStreamingParser(prop.getMetsStreamingParser())
+                .setWorkers(prop.getMetsWorkers())
+                .setPageSize(prop.getMetsPageSize())
+                .setLeaseOwner(prop.getMetsWorkClaiming() ? prop.getMetsLeaseOwner() : null)
+                .setLeaseDuration(prop.getMetsLeaseDuration())
+                .setNotifications(prop.getMetsNotifications())
+                .setHandoffQueue(handoffQueue)
+                .setSkipUnchanged(prop.getMetsSkipUnchanged())
+                .setConditionalRequests(prop.getMetsConditionalRequests())
+                .setAsyncHttpClient(prop.getMetsAsync() ? getAsyncHttpClient(prop) : null)
+                .setMaxRequestsInFlight(prop.getMetsMaxRequestsInFlight())
+                .setMetricsRegistry(repositoryMetrics)
+                .build());
 
-            //TODO is httpClient closed on shutdown?
-            CloseableHttpClient httpClientMetsHarvester = HttpClients.createMinimal();
+        statusMonitor.addRepository(repository, persistenceService, setSpecs, repositoryMetrics);
+        queryServices.put(repository, persistenceService);
+    }
 
-            MetsProcessor metsHarvester = new MetsProcessor(metsUri, pollInterval,
-                    minimumWaittimeBetweenTwoRequests, persistenceServiceMetsHarvester, httpClientMetsHarvester);
+    /**
+     * Run the harvester or processor on {@link #executorService}, it is terminated on shut down.
+     */
+    private void execute(TerminateableRunnable runnable) {
+        runnables.add(runnable);
+        executorService.execute(runnable);
+    }
 
-            executorService = Executors.newCachedThreadPool();
-            executorService.execute(oaiHarvester);
-            executorService.execute(metsHarvester);
+    /**
+     * Make sure the database pool can serve all components at once. Connections pinned for the whole runtime
+     * (the harvester lock and the notification listener of each repository) are never returned, and every
+     * harvester, harvesting slice and METS worker may borrow one more at the same time.
+     *
+     * @param poolSize     maximum number of connections of the pool
+     * @param repositories properties of the repositories by name
+     * @param setSpecs     the sets to harvest by repository name
+     * @throws IllegalArgumentException if the pool is too small
+     */
+    private void checkPoolSize(int poolSize, Map<String, ReportingProperties> repositories,
+                               Map<String, List<String>> setSpecs) throws IllegalArgumentException {
+        // the status monitor
+        int required = 1;
+        for (Map.Entry<String, ReportingProperties> repository : repositories.entrySet()) {
+            ReportingProperties prop = repository.getValue();
+            int pinned = (prop.getOaiLeaderElection() ? 1 : 0) + (prop.getMetsNotifications() ? 1 : 0);
+            int harvesters = setSpecs.get(repository.getKey()).size() * Math.max(1, prop.getOaiBootstrapSlices());
+            int metsWorkers = prop.getMetsAsync() ? 1 : prop.getMetsWorkers();
+            required += pinned + harvesters + metsWorkers;
+        }
 
-            logger.info("Started");
+        if (poolSize < required) {
+            throw new IllegalArgumentException("db.pool.size is " + poolSize + " but the configured repositories, "
+                    + "sets and METS workers need up to " + required + " database connections at once. "
+                    + "Increase db.pool.size.");
+        }
+        logger.info("Database pool of {} connections serves up to {} concurrent users.", poolSize, required);
+    }
 
-            Runtime.getRuntime().addShutdownHook(new Thread() {
+    /**
+     * @param prop properties to configure the client with
+     * @return the non-blocking client shared by all repositories, created and started on first use
+     * @throws IOException if the client's I/O reactor could not be created
+     */
+    private CloseableHttpAsyncClient getAsyncHttpClient(ReportingProperties prop) throws IOException {
+        if (asyncHttpClient == null) {
+            asyncHttpClient = PooledHttpClientFactory.createAsyncHttpClient(
+                    prop.getHttpPoolSize(),
+                    prop.getHttpPoolSizePerRoute(),
+                    prop.getHttpConnectTimeout(),
+                    prop.getHttpSocketTimeout(),
+                    prop.getHttpKeepAlive(),
+                    prop.getHttpCompression(),
+                    prop.getHttpAsyncIoThreads());
+        }
+        return asyncHttpClient;
+    }
 
-                @Override
-                public void run() {
-                    logger.info("Shutting down...");
-                    executorService.shutdown();
-
-                    if (!executorService.isShutdown()) {
-                        logger.info("Still processing. Waiting for orderly shut down...");
-
-                        try {
-                            executorService.awaitTermination(1, TimeUnit.MINUTES);
-                        } catch (InterruptedException e) {
-                            logger.warn("Orderly shut down was interrupted!");
-                        }
+    /**
+     * @param configuredSets the configured setSpecs, may contain {@link ReportingProperties#ALL_OAI_SETS}
+     * @param uri            the OAI service provider's URI
+     * @return the setSpecs to harvest. A single {@code null} element if the whole repository is to be harvested.
+     */
+    private List<String> resolveOaiSets(List<String> configuredSets, URI uri) {
+        List<String> setSpecs = new LinkedList<>(configuredSets);
+        if (setSpecs.remove(ReportingProperties.ALL_OAI_SETS)) {
+            try {
+                for (String setSpec : new OaiSetLister(uri, httpClient).listSets()) {
+                    if (!setSpecs.contains(setSpec)) {
+                        setSpecs.add(setSpec);
                     }
                 }
-            });
-
-        } catch (IOException e) {
-            logger.error(FATAL, "OAI harvester was not started!", e);
-        } catch (IllegalArgumentException | URISyntaxException e) {
-            logger.error(FATAL, e.getMessage(), e);
-        } catch (SQLException e) {
-            logger.error(FATAL, "SQL driver not found!", e);
+            } catch (IOException e) {
+                logger.error("Could not list the sets of the OAI data provider. Harvesting the configured sets "
+                        + "or the whole repository instead.", e);
+            }
         }
+        if (setSpecs.isEmpty()) {
+            setSpecs.add(null);
+        } else {
+            logger.info("Harvesting {} OAI sets: {}", setSpecs.size(), setSpecs);
+        }
+        return setSpecs;
     }
 
+    /**
+     * Terminate all harvesters and processors and wait for them, so they release their locks and finish their
+     * transactions, before the persistence services, the HTTP clients and the database pool are closed. Runs on shut down as well as on
+     * undeploy, so a redeployed instance starts from scratch.
+     */
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
+        logger.info("Shutting down...");
+        if (statusExecutorService != null) {
+            statusExecutorService.shutdownNow();
+        }
+
+        if (executorService != null) {
+            for (TerminateableRunnable runnable : runnables) {
+                runnable.terminate();
+            }
+            // wake up the runnables waiting for their next run, they stop once they notice the termination
+            executorService.shutdownNow();
+            try {
+                if (!executorService.awaitTermination(1, TimeUnit.MINUTES)) {
+                    logger.warn("Harvesters did not stop within a minute, closing their connections anyway.");
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Orderly shut down was interrupted!");
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // return the lock and notification connections unsubscribed before the pool is closed
+        for (PostgrePersistenceService persistenceService : persistenceServices) {
+            persistenceService.close();
+        }
+
+        try {
+            if (httpClient != null) {
+                httpClient.close();
+            }
+            if (asyncHttpClient != null) {
+                asyncHttpClient.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Could not close HTTP connection pool: {}", e.getMessage());
+        }
+
+        if (dataSource != null) {
+            try {
+                dataSource.close();
+            } catch (SQLException e) {
+                logger.warn("Could not close database connection pool: {}", e.getMessage());
+            }
+        }
+
+        metricsRegistry.unregisterMBeans();
         logger.info("Shut down completed");
     }
 
@@ -22,6 +22,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
 
 import org.joda.time.Duration;
@@ -30,6 +33,11 @@ import org.slf4j.LoggerFactory;
 
 public class ReportingProperties {
 
+    /**
+     * Value of {@code oai.sets} to harvest all sets the OAI data provider lists.
+     */
+    public static final String ALL_OAI_SETS = "*";
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private static final String DEFAULT_PROPERTIES_FILE = "/default.properties";
@@ -38,9 +46,17 @@ public class ReportingProperties {
 
     private static ReportingProperties instance;
 
-    private final Properties props = new Properties();
+    private final Properties props;
+
+    /**
+     * Prefix of the repository specific {@code oai.*} and {@code mets.*} keys, empty for the default repository.
+     */
+    private final String prefix;
 
     private ReportingProperties() throws IOException {
+        props = new Properties();
+        prefix = "";
+
         // try (InputStream in =
         // getClass().getResourceAsStream(DEFAULT_PROPERTIES_FILE);
         File f = new File("/opt/reporting/config/" + DEFAULT_PROPERTIES_FILE);
@@ -60,6 +76,11 @@ public class ReportingProperties {
         overwriteWithSystemProperties();
     }
 
+    private ReportingProperties(Properties props, String prefix) {
+        this.props = props;
+        this.prefix = prefix;
+    }
+
     public static ReportingProperties getInstance() throws IOException {
         if (ReportingProperties.instance == null) {
             instance = new ReportingProperties();
@@ -82,12 +103,31 @@ public class ReportingProperties {
     private void overwriteWithSystemProperties() {
         for (Object o : System.getProperties().keySet()) {
             String key = (String) o;
-            if (key.startsWith("db.") || key.startsWith("oai.") || key.startsWith("mets.")) {
+            if (key.startsWith("db.") || key.startsWith("http.") || key.startsWith("oai.") || key.startsWith("mets.")
+                    || key.startsWith("repo.") || key.equals("repositories")) {
                 props.setProperty(key, System.getProperty(key));
             }
         }
     }
 
+    /**
+     * @return the comma separated repository names of {@code repositories}. List is empty if only the default
+     * repository configured by the top level {@code oai.*} and {@code mets.*} keys is to be harvested.
+     */
+    public List<String> getRepositoryNames() {
+        return splitList(props.getProperty("repositories", ""));
+    }
+
+    /**
+     * @param name the repository name as listed in {@code repositories}
+     * @return view on these properties that reads {@code oai.*} and {@code mets.*} keys from
+     * {@code repo.<name>.oai.*} and {@code repo.<name>.mets.*}, falling back to the top level keys if a
+     * repository does not define a key. Database keys are shared by all repositories.
+     */
+    public ReportingProperties forRepository(String name) {
+        return new ReportingProperties(props, "repo." + name + ".");
+    }
+
     public String getPostgreSQLDatabaseURL() {
         return props.getProperty("db.url");
     }
@@ -104,27 +144,172 @@ public class ReportingProperties {
         return props.getProperty("db.passwd");
     }
 
+    public int getPostgreSQLPoolSize() {
+        return Integer.parseInt(props.getProperty("db.pool.size", "6"));
+    }
+
+    public Duration getPostgreSQLPoolIdleTimeout() {
+        return Duration.standardSeconds(Long.parseLong(props.getProperty("db.pool.idletimeoutseconds", "600")));
+    }
+
+    public Duration getPostgreSQLPoolMaxWait() {
+        return Duration.millis(Long.parseLong(props.getProperty("db.pool.maxwaitmillis", "30000")));
+    }
+
+    public String getPostgreSQLPoolValidationQuery() {
+        return props.getProperty("db.pool.validationquery", "SELECT 1");
+    }
+
+    public int getPostgreSQLBulkUpsertThreshold() {
+        return Integer.parseInt(props.getProperty("db.bulkupsertthreshold", "1000"));
+    }
+
+    public int getHttpPoolSize() {
+        return Integer.parseInt(props.getProperty("http.pool.size", "40"));
+    }
+
+    public int getHttpPoolSizePerRoute() {
+        return Integer.parseInt(props.getProperty("http.pool.sizeperroute", "20"));
+    }
+
+    public Duration getHttpConnectTimeout() {
+        return Duration.millis(Long.parseLong(props.getProperty("http.connecttimeoutmillis", "10000")));
+    }
+
+    public Duration getHttpSocketTimeout() {
+        return Duration.millis(Long.parseLong(props.getProperty("http.sockettimeoutmillis", "60000")));
+    }
+
+    public Duration getHttpKeepAlive() {
+        return Duration.standardSeconds(Long.parseLong(props.getProperty("http.keepaliveseconds", "60")));
+    }
+
+    public boolean getHttpCompression() {
+        return Boolean.parseBoolean(props.getProperty("http.compression", "true"));
+    }
+
+    public int getHttpAsyncIoThreads() {
+        return Integer.parseInt(props.getProperty("http.async.iothreads", "2"));
+    }
+
     public String getOaiDataProviderURL() {
-        return props.getProperty("oai.url");
+        return getProperty("oai.url");
     }
 
     public int getOaiDataProviderPollingInterval() {
-        return Integer.parseInt(props.getProperty("oai.pollseconds"));
+        return Integer.parseInt(getProperty("oai.pollseconds"));
     }
 
     public boolean getFC3CompatibilityMode() {
-        return Boolean.parseBoolean(props.getProperty("oai.fc3compatibility"));
+        return Boolean.parseBoolean(getProperty("oai.fc3compatibility"));
+    }
+
+    public boolean getOaiStreamingParser() {
+        return Boolean.parseBoolean(getProperty("oai.streamingparser", "true"));
+    }
+
+    public boolean getOaiLeaderElection() {
+        return Boolean.parseBoolean(getProperty("oai.leaderelection", "true"));
+    }
+
+    public boolean getOaiPrefetch() {
+        return Boolean.parseBoolean(getProperty("oai.prefetch", "false"));
+    }
+
+    public int getOaiBootstrapSlices() {
+        return Integer.parseInt(getProperty("oai.bootstrapslices", "1"));
+    }
+
+    /**
+     * @return the comma separated setSpecs of {@code oai.sets}, may contain {@link #ALL_OAI_SETS}. List is
+     * empty to harvest the whole repository.
+     */
+    public List<String> getOaiSets() {
+        return splitList(getProperty("oai.sets", ""));
     }
 
     public Duration getOaiRunResultHistoryLength() {
-        return Duration.standardHours(Long.parseLong(props.getProperty("oai.runresulthistorylengthhours")));
+        return Duration.standardHours(Long.parseLong(getProperty("oai.runresulthistorylengthhours")));
     }
 
     public String getMetsDisseminationURL() {
-        return props.getProperty("mets.url");
+        return getProperty("mets.url");
     }
 
     public int getMetsDisseminationPollingInterval() {
-        return Integer.parseInt(props.getProperty("mets.pollseconds"));
+        return Integer.parseInt(getProperty("mets.pollseconds"));
+    }
+
+    public boolean getMetsStreamingParser() {
+        return Boolean.parseBoolean(getProperty("mets.streamingparser", "true"));
+    }
+
+    public int getMetsWorkers() {
+        return Integer.parseInt(getProperty("mets.workers", "1"));
+    }
+
+    public Duration getMetsRequestInterval() {
+        return Duration.millis(Long.parseLong(getProperty("mets.requestintervalmillis", "1000")));
+    }
+
+    public int getMetsPageSize() {
+        return Integer.parseInt(getProperty("mets.pagesize", "100"));
+    }
+
+    public boolean getMetsNotifications() {
+        return Boolean.parseBoolean(getProperty("mets.notify", "true"));
+    }
+
+    public int getMetsHandoffQueueSize() {
+        return Integer.parseInt(getProperty("mets.handoffqueuesize", "0"));
+    }
+
+    public boolean getMetsWorkClaiming() {
+        return Boolean.parseBoolean(getProperty("mets.claim", "false"));
+    }
+
+    /**
+     * @return the configured lease owner or, by default, the name of the running JVM, i.e. {@code pid@hostname}
+     */
+    public String getMetsLeaseOwner() {
+        return getProperty("mets.claim.owner", ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    public Duration getMetsLeaseDuration() {
+        return Duration.standardSeconds(Long.parseLong(getProperty("mets.claim.leaseseconds", "600")));
+    }
+
+    public boolean getMetsSkipUnchanged() {
+        return Boolean.parseBoolean(getProperty("mets.skipunchanged", "true"));
+    }
+
+    public boolean getMetsConditionalRequests() {
+        return Boolean.parseBoolean(getProperty("mets.ifmodifiedsince", "false"));
+    }
+
+    public boolean getMetsAsync() {
+        return Boolean.parseBoolean(getProperty("mets.async", "false"));
+    }
+
+    public int getMetsMaxRequestsInFlight() {
+        return Integer.parseInt(getProperty("mets.async.maxinflight", "50"));
+    }
+
+    private String getProperty(String key) {
+        return getProperty(key, null);
+    }
+
+    private String getProperty(String key, String defaultValue) {
+        return props.getProperty(prefix + key, props.getProperty(key, defaultValue));
+    }
+
+    private List<String> splitList(String value) {
+        List<String> values = new LinkedList<>();
+        for (String element : value.split(",")) {
+            if (!element.trim().isEmpty()) {
+                values.add(element.trim());
+            }
+        }
+        return values;
     }
 }
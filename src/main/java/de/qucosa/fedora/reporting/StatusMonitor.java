@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.fedora.reporting;
+
+import de.qucosa.fedora.oai.OaiRunResult;
+import de.qucosa.metrics.Counter;
+import de.qucosa.metrics.Gauge;
+import de.qucosa.metrics.MetricsRegistry;
+import de.qucosa.metrics.Rate;
+import de.qucosa.persistence.PersistenceException;
+import de.qucosa.persistence.PersistenceService;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static de.qucosa.util.Json.number;
+import static de.qucosa.util.Json.quote;
+
+/**
+ * Keeps a JSON snapshot of the harvest progress of all repositories: the last {@link OaiRunResult} of every
+ * harvested set including the age of its resumption token, the OAIHeader backlog, the METS throughput and the
+ * utilization of the database and HTTP connection pools.
+ * <p>
+ * The snapshot is refreshed by {@link #run()}, which is meant to be scheduled at a fixed rate of
+ * {@link #DEFAULT_REFRESH_INTERVAL}. Reading the snapshot never touches the database. Counting the backlog scans
+ * the OAIHeaders of a repository, so it is only recounted every {@link #BACKLOG_REFRESH_INTERVAL}.
+ */
+public class StatusMonitor implements Runnable {
+
+    public static final Duration DEFAULT_REFRESH_INTERVAL = Duration.standardSeconds(5);
+    public static final Duration BACKLOG_REFRESH_INTERVAL = Duration.standardMinutes(1);
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final BasicDataSource dataSource;
+    private final PoolingHttpClientConnectionManager httpConnectionManager;
+    private final List<RepositoryStatus> repositories = new CopyOnWriteArrayList<>();
+
+    private volatile String snapshot = "{}";
+
+    /**
+     * @param dataSource            pool whose utilization is reported, may be {@code null}
+     * @param httpConnectionManager HTTP connection pool whose utilization is reported, may be {@code null}
+     */
+    public StatusMonitor(BasicDataSource dataSource, PoolingHttpClientConnectionManager httpConnectionManager) {
+        this.dataSource = dataSource;
+        this.httpConnectionManager = httpConnectionManager;
+    }
+
+    /**
+     * Add a repository to the snapshot and register a gauge {@code oai.headers.backlog} that reports the backlog
+     * of the last count.
+     *
+     * @param repository         name of the repository
+     * @param persistenceService persistence service of the repository
+     * @param setSpecs           the harvested sets, a single {@code null} element if the whole repository is
+     *                           harvested
+     * @param metricsRegistry    metrics of the repository, its METS document counters are used to compute the
+     *                           throughput
+     */
+    public void addRepository(String repository, PersistenceService persistenceService, List<String> setSpecs,
+                              MetricsRegistry metricsRegistry) {
+        final RepositoryStatus status = new RepositoryStatus(repository, persistenceService,
+                new ArrayList<>(setSpecs), metricsRegistry);
+        metricsRegistry.gauge("oai.headers.backlog", new Gauge() {
+            @Override
+            public long getValue() {
+                return status.oaiHeaderBacklog;
+            }
+        });
+        repositories.add(status);
+    }
+
+    /**
+     * @return the JSON document of the last refresh, never {@code null}
+     */
+    public String getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Refresh the snapshot. Errors are logged and reported in the snapshot, so a scheduled refresh is never
+     * cancelled.
+     */
+    @Override
+    public void run() {
+        try {
+            snapshot = createSnapshot(new Date(), System.nanoTime());
+        } catch (RuntimeException e) {
+            logger.error("Could not refresh the status snapshot.", e);
+        }
+    }
+
+    String createSnapshot(Date now, long nanoTime) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"snapshotTime\":").append(quote(now));
+
+        if (dataSource != null) {
+            int active = dataSource.getNumActive();
+            int maxTotal = dataSource.getMaxTotal();
+            json.append(",\"databasePool\":{\"active\":").append(active)
+                    .append(",\"idle\":").append(dataSource.getNumIdle())
+                    .append(",\"maxTotal\":").append(maxTotal)
+                    .append(",\"utilization\":").append(number(maxTotal > 0 ? (double) active / maxTotal : 0))
+                    .append('}');
+        }
+
+        if (httpConnectionManager != null) {
+            PoolStats stats = httpConnectionManager.getTotalStats();
+            json.append(",\"httpPool\":{\"leased\":").append(stats.getLeased())
+                    .append(",\"available\":").append(stats.getAvailable())
+                    .append(",\"pending\":").append(stats.getPending())
+                    .append(",\"max\":").append(stats.getMax())
+                    .append('}');
+        }
+
+        json.append(",\"repositories\":[");
+        String separator = "";
+        for (RepositoryStatus repository : repositories) {
+            json.append(separator);
+            repository.appendTo(json, now, nanoTime);
+            separator = ",";
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private class RepositoryStatus {
+
+        private final String name;
+        private final PersistenceService persistenceService;
+        private final List<String> setSpecs;
+        private final Counter[] metsDocuments;
+        private final Rate[] metsThroughput = {
+                new Rate(Duration.standardMinutes(1)),
+                new Rate(Duration.standardMinutes(5)),
+                new Rate(Duration.standardMinutes(15))};
+
+        private volatile long oaiHeaderBacklog = -1;
+        private boolean oaiHeaderBacklogCounted = false;
+        private long oaiHeaderBacklogNanoTime;
+
+        RepositoryStatus(String name, PersistenceService persistenceService, List<String> setSpecs,
+                         MetricsRegistry metricsRegistry) {
+            this.name = name;
+            this.persistenceService = persistenceService;
+            this.setSpecs = setSpecs;
+            // every document processed by the MetsProcessor ends up in exactly one of these counters
+            this.metsDocuments = new Counter[]{
+                    metricsRegistry.counter("mets.documents.parsed"),
+                    metricsRegistry.counter("mets.documents.notmodified"),
+                    metricsRegistry.counter("mets.documents.unchanged"),
+                    metricsRegistry.counter("mets.documents.deleted")};
+        }
+
+        void appendTo(StringBuilder json, Date now, long nanoTime) {
+            json.append("{\"name\":").append(quote(name));
+
+            json.append(",\"oaiRuns\":[");
+            String separator = "";
+            for (String setSpec : setSpecs) {
+                json.append(separator).append("{\"setSpec\":").append(quote(setSpec));
+                OaiRunResult result = persistenceService.getLastOaiRunResult(setSpec);
+                if (result != null) {
+                    appendOaiRunResult(json, result, now);
+                }
+                json.append('}');
+                separator = ",";
+            }
+            json.append(']');
+
+            long sinceLastCount = nanoTime - oaiHeaderBacklogNanoTime;
+            if (!oaiHeaderBacklogCounted
+                    || sinceLastCount >= TimeUnit.MILLISECONDS.toNanos(BACKLOG_REFRESH_INTERVAL.getMillis())) {
+                try {
+                    oaiHeaderBacklog = persistenceService.countOaiHeaders();
+                } catch (PersistenceException e) {
+                    logger.warn("Could not count OaiHeaders of repository '{}': {}", name, e.getMessage());
+                    oaiHeaderBacklog = -1;
+                }
+                oaiHeaderBacklogCounted = true;
+                oaiHeaderBacklogNanoTime = nanoTime;
+            }
+            json.append(",\"oaiHeaderBacklog\":").append(oaiHeaderBacklog);
+
+            long processed = 0;
+            for (Counter counter : metsDocuments) {
+                processed += counter.getCount();
+            }
+            for (Rate rate : metsThroughput) {
+                rate.update(processed, nanoTime);
+            }
+            json.append(",\"metsDocumentsProcessed\":").append(processed)
+                    .append(",\"metsDocumentsPerSecond\":{\"1m\":").append(number(metsThroughput[0].getPerSecond()))
+                    .append(",\"5m\":").append(number(metsThroughput[1].getPerSecond()))
+                    .append(",\"15m\":").append(number(metsThroughput[2].getPerSecond()))
+                    .append("}}");
+        }
+
+        private void appendOaiRunResult(StringBuilder json, OaiRunResult result, Date now) {
+            json.append(",\"timestampOfRun\":").append(quote(result.getTimestampOfRun()))
+                    .append(",\"responseDate\":").append(quote(result.getResponseDate()))
+                    .append(",\"nextFromTimestamp\":").append(quote(result.getNextFromTimestamp()));
+            if (result.hasResumptionToken()) {
+                // the token has been received with the response of the run
+                json.append(",\"resumptionToken\":").append(quote(result.getResumptionToken()))
+                        .append(",\"resumptionTokenAgeSeconds\":")
+                        .append(secondsBetween(result.getTimestampOfRun(), now));
+                Date expirationDate = result.getResumptionTokenExpirationDate();
+                if (expirationDate != null) {
+                    json.append(",\"resumptionTokenExpirationDate\":").append(quote(expirationDate))
+                            .append(",\"resumptionTokenExpiresInSeconds\":")
+                            .append(secondsBetween(now, expirationDate));
+                }
+            }
+        }
+    }
+
+    private static long secondsBetween(Date start, Date end) {
+        return (end.getTime() - start.getTime()) / 1000;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.fedora.reporting;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Returns the harvest progress and backlog of all repositories as JSON. The response is the last snapshot of
+ * the {@link StatusMonitor}, requests never access the database.
+ */
+public class StatusServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        StatusMonitor statusMonitor = (StatusMonitor) getServletContext()
+                .getAttribute(ReportingManager.STATUS_MONITOR_ATTRIBUTE);
+        if (statusMonitor == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Status is not available.");
+            return;
+        }
+
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.getWriter().write(statusMonitor.getSnapshot());
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named {@link Counter}s, {@link Summary}s, {@link Timer}s and {@link Gauge}s of the harvesters, processors and
+ * persistence services. Metrics are created on first use and live as long as the registry.
+ * <p>
+ * If the registry has a JMX domain, every metric is registered as MBean
+ * {@code <domain>:type=<Counter|Summary|Timer|Gauge>,name=<name>} in the platform MBean server. All metrics
+ * can also be written as text, one line per metric.
+ */
+public class MetricsRegistry {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<String, Object> metrics;
+    private final String jmxDomain;
+    private final MBeanServer mBeanServer;
+
+    /**
+     * Prefix of the names of the metrics created by this view, empty for the root registry.
+     */
+    private final String prefix;
+
+    /**
+     * Create a registry that is not exported through JMX.
+     */
+    public MetricsRegistry() {
+        this(null);
+    }
+
+    /**
+     * @param jmxDomain domain of the MBeans, {@code null} to not export the metrics through JMX
+     */
+    public MetricsRegistry(String jmxDomain) {
+        this.metrics = new ConcurrentHashMap<>();
+        this.jmxDomain = jmxDomain;
+        this.mBeanServer = (jmxDomain == null) ? null : ManagementFactory.getPlatformMBeanServer();
+        this.prefix = "";
+    }
+
+    private MetricsRegistry(MetricsRegistry registry, String prefix) {
+        this.metrics = registry.metrics;
+        this.jmxDomain = registry.jmxDomain;
+        this.mBeanServer = registry.mBeanServer;
+        this.prefix = registry.prefix + prefix;
+    }
+
+    /**
+     * @param repository name of the repository, empty for the default repository
+     * @return view on this registry that creates metrics named {@code repo.<repository>.<name>}, or this registry
+     * for the default repository
+     */
+    public MetricsRegistry forRepository(String repository) {
+        return (repository.isEmpty()) ? this : new MetricsRegistry(this, "repo." + repository + ".");
+    }
+
+    /**
+     * @param name name of the metric
+     * @return the counter of this name, created if it doesn't exist yet
+     * @throws IllegalArgumentException if there is another type of metric of this name
+     */
+    public Counter counter(String name) throws IllegalArgumentException {
+        Counter counter = lookup(name, Counter.class);
+        return (counter != null) ? counter : register(name, new Counter(), CounterMBean.class);
+    }
+
+    /**
+     * @param name name of the metric
+     * @return the summary of this name, created if it doesn't exist yet
+     * @throws IllegalArgumentException if there is another type of metric of this name
+     */
+    public Summary summary(String name) throws IllegalArgumentException {
+        Summary summary = lookup(name, Summary.class);
+        return (summary != null) ? summary : register(name, new Summary(), SummaryMBean.class);
+    }
+
+    /**
+     * @param name name of the metric
+     * @return the timer of this name, created if it doesn't exist yet
+     * @throws IllegalArgumentException if there is another type of metric of this name
+     */
+    public Timer timer(String name) throws IllegalArgumentException {
+        Timer timer = lookup(name, Timer.class);
+        return (timer != null) ? timer : register(name, new Timer(), TimerMBean.class);
+    }
+
+    /**
+     * @param name  name of the metric
+     * @param gauge the gauge to register
+     * @return the gauge of this name, {@code gauge} unless another one has been registered before
+     * @throws IllegalArgumentException if there is another type of metric of this name
+     */
+    public Gauge gauge(String name, Gauge gauge) throws IllegalArgumentException {
+        return register(name, gauge, GaugeMBean.class);
+    }
+
+    /**
+     * @return all metrics of the registry ordered by name, including those of other views
+     */
+    public SortedMap<String, Object> getMetrics() {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(metrics));
+    }
+
+    /**
+     * Write all metrics ordered by name, one line {@code <name> <key>=<value> ...} per metric.
+     *
+     * @param out receives the text
+     * @throws IOException if writing failed
+     */
+    public void writeText(Appendable out) throws IOException {
+        for (Map.Entry<String, Object> metric : getMetrics().entrySet()) {
+            String value;
+            try {
+                value = metric.getValue().toString();
+            } catch (RuntimeException e) {
+                // a gauge could not compute its value
+                value = "error=" + e.getClass().getSimpleName();
+            }
+            out.append(metric.getKey()).append(' ').append(value).append('\n');
+        }
+    }
+
+    /**
+     * Remove all MBeans of this registry from the MBean server.
+     */
+    public void unregisterMBeans() {
+        if (mBeanServer == null) {
+            return;
+        }
+        for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+            try {
+                ObjectName objectName = objectName(metric.getKey(), metric.getValue());
+                if (mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                logger.warn("Could not unregister MBean of metric {}: {}", metric.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the existing metric or {@code null}, so metrics in use are not instantiated again
+     */
+    private <T> T lookup(String name, Class<T> type) throws IllegalArgumentException {
+        Object existing = metrics.get(prefix + name);
+        if (existing != null && !type.isInstance(existing)) {
+            throw new IllegalArgumentException("Metric " + prefix + name + " is a "
+                    + existing.getClass().getSimpleName());
+        }
+        return type.cast(existing);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T, M> T register(String name, T metric, Class<M> mBeanInterface) throws IllegalArgumentException {
+        String fullName = prefix + name;
+        Object existing = metrics.putIfAbsent(fullName, metric);
+        if (existing != null) {
+            boolean sameType = (metric instanceof Gauge) ? existing instanceof Gauge
+                    : existing.getClass() == metric.getClass();
+            if (!sameType) {
+                throw new IllegalArgumentException("Metric " + fullName + " is a "
+                        + existing.getClass().getSimpleName());
+            }
+            return (T) existing;
+        }
+
+        if (mBeanServer != null) {
+            try {
+                mBeanServer.registerMBean(new StandardMBean(mBeanInterface.cast(metric), mBeanInterface),
+                        objectName(fullName, metric));
+            } catch (JMException e) {
+                logger.warn("Could not register MBean of metric {}: {}", fullName, e.getMessage());
+            }
+        }
+        return metric;
+    }
+
+    private ObjectName objectName(String name, Object metric) throws JMException {
+        String type = (metric instanceof Gauge) ? "Gauge" : metric.getClass().getSimpleName();
+        return new ObjectName(jmxDomain + ":type=" + type + ",name=" + ObjectName.quote(name));
+    }
+}
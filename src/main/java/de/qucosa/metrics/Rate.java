@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.metrics;
+
+import org.joda.time.Duration;
+
+/**
+ * Exponentially weighted moving average of the rate of events, e.g. processed documents per second over the
+ * last five minutes. Fed with the current total count in regular intervals, like the load average of Unix
+ * systems.
+ */
+public class Rate {
+
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    private final double windowSeconds;
+    private long lastCount;
+    private long lastNanos;
+    private boolean initialized = false;
+    private volatile double perSecond = 0.0;
+
+    /**
+     * @param window period the average is taken over, e.g. one, five or fifteen minutes
+     */
+    public Rate(Duration window) {
+        this.windowSeconds = window.getMillis() / 1000.0;
+    }
+
+    /**
+     * @param count    total number of events so far, e.g. {@link Counter#getCount()}
+     * @param nanoTime current value of {@link System#nanoTime()}
+     */
+    public synchronized void update(long count, long nanoTime) {
+        if (initialized) {
+            double elapsedSeconds = (nanoTime - lastNanos) / NANOS_PER_SECOND;
+            if (elapsedSeconds <= 0) {
+                return;
+            }
+            double instantRate = (count - lastCount) / elapsedSeconds;
+            double alpha = 1 - Math.exp(-elapsedSeconds / windowSeconds);
+            perSecond += alpha * (instantRate - perSecond);
+        }
+        initialized = true;
+        lastCount = count;
+        lastNanos = nanoTime;
+    }
+
+    /**
+     * @return average number of events per second
+     */
+    public double getPerSecond() {
+        return perSecond;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.metrics;
+
+import java.util.Locale;
+
+/**
+ * Number and duration of operations since start, e.g. HTTP requests or database statements.
+ * <p>
+ * Use {@link #time()} as resource of a try-with-resources statement to time its block:
+ * <pre>
+ * try (Timer.Context time = timer.time()) {
+ *     ...
+ * }
+ * </pre>
+ */
+public class Timer implements TimerMBean {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final Summary nanos = new Summary();
+
+    /**
+     * @param durationNanos duration of an operation in nanoseconds
+     */
+    public void update(long durationNanos) {
+        nanos.update(durationNanos);
+    }
+
+    /**
+     * @return a context that records the time from now until it is closed
+     */
+    public Context time() {
+        return new Context();
+    }
+
+    @Override
+    public long getCount() {
+        return nanos.getCount();
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return nanos.getSum() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return nanos.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return nanos.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "count=%d totalMillis=%.3f meanMillis=%.3f maxMillis=%.3f", getCount(),
+                getTotalMillis(), getMeanMillis(), getMaxMillis());
+    }
+
+    /**
+     * Times the operation from its creation until {@link #close()}.
+     */
+    public final class Context implements AutoCloseable {
+
+        private final long startNanos = System.nanoTime();
+        private boolean closed = false;
+
+        /**
+         * Record the duration, only the first call has an effect.
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                update(System.nanoTime() - startNanos);
+            }
+        }
+    }
+}
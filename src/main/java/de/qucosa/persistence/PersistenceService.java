@@ -19,18 +19,28 @@ package de.qucosa.persistence;
 import de.qucosa.fedora.mets.ReportingDocumentMetadata;
 import de.qucosa.fedora.oai.OaiHeader;
 import de.qucosa.fedora.oai.OaiRunResult;
+import de.qucosa.fedora.oai.OaiSliceRunResult;
+import org.joda.time.Duration;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 public interface PersistenceService {
 
     /**
-     * @return The details of the last run or {@code null} if there isn't any
-     * last run.
+     * @return The details of the last run requesting the whole repository or {@code null} if there isn't any
+     * last run. Same as {@code getLastOaiRunResult(null)}.
      */
     OaiRunResult getLastOaiRunResult();
 
+    /**
+     * @param setSpec the OAI set the run was restricted to or {@code null} for the whole repository
+     * @return The details of the last run with the given {@link OaiRunResult#getSetSpec()} or {@code null} if
+     * there isn't any last run.
+     */
+    OaiRunResult getLastOaiRunResult(String setSpec);
+
     /**
      * @param oaiRunResult the data to be persisted. 
      * @throws PersistenceException if any error occurred.
@@ -41,14 +51,39 @@ public interface PersistenceService {
      * Delete all {@link OaiRunResult}s whose
      * {@link OaiRunResult#getTimestampOfRun()} is older than
      * oldestResultToKeep. <br />
-     * The most recently inserted {@link OaiRunResult} is never removed, even if
-     * older than the oldestResultToKeep.
+     * The most recently inserted {@link OaiRunResult} of each
+     * {@link OaiRunResult#getSetSpec()} is never removed, even if older than
+     * the oldestResultToKeep.
      *
      * @param oldestResultToKeep the timestamp of run of the oldest OaiRunResult to keep.
      * @throws PersistenceException if any error occurred.
      */
     void cleanupOaiRunResults(Date oldestResultToKeep) throws PersistenceException;
 
+    /**
+     * @return the progress of all date range slices of an unfinished initial harvest, ordered by
+     * {@link OaiSliceRunResult#getSliceIndex()}. List may be empty but never {@code null}.
+     * @throws PersistenceException if any error occurred.
+     */
+//    @NonNull
+    List<OaiSliceRunResult> getOaiSliceRunResults() throws PersistenceException;
+
+    /**
+     * Persist the progress of a date range slice. If the persistence layer already contains an
+     * {@link OaiSliceRunResult} with the same {@link OaiSliceRunResult#getSliceIndex()}, it is replaced.
+     *
+     * @param sliceRunResult the data to be persisted.
+     * @throws PersistenceException if any error occurred.
+     */
+    void storeOaiSliceRunResult(OaiSliceRunResult sliceRunResult) throws PersistenceException;
+
+    /**
+     * Delete all {@link OaiSliceRunResult}s, to be called once the initial harvest has been completed.
+     *
+     * @throws PersistenceException if any error occurred.
+     */
+    void removeOaiSliceRunResults() throws PersistenceException;
+
     /**
      * Persist all {@link OaiHeader}s. If the persistence layer already contains
      * a {@link OaiHeader} object that matches
@@ -60,8 +95,19 @@ public interface PersistenceService {
     void addOrUpdateOaiHeaders(List<OaiHeader> headers) throws PersistenceException;
 
     /**
-     * Get {@link OaiHeader}s from persistence. At most 100 headers are
-     * returned.
+     * Block until {@link OaiHeader}s have been added or updated by {@link #addOrUpdateOaiHeaders(List)}, by any
+     * process sharing the persistence layer, or until the timeout elapses. Headers added before the first call
+     * are not notified, so callers have to check for headers before waiting.
+     *
+     * @param timeout maximum time to wait
+     * @return {@code true} if headers have been added, {@code false} if the timeout elapsed.
+     * @throws PersistenceException if any error occurred.
+     */
+    boolean awaitOaiHeadersAdded(Duration timeout) throws PersistenceException;
+
+    /**
+     * Get {@link OaiHeader}s from persistence, oldest first. At most 100 headers are
+     * returned. Same as {@code getOaiHeaders(null, null, 100)}.
      *
      * @return {@link OaiHeader}s from persistence, list my be empty but never {@code null}.
      * @throws PersistenceException if any error occurred.
@@ -69,6 +115,51 @@ public interface PersistenceService {
 //    @NonNull
     List<OaiHeader> getOaiHeaders() throws PersistenceException;
 
+    /**
+     * Get one page of {@link OaiHeader}s from persistence, ordered by
+     * {@link OaiHeader#getDatestamp()} and {@link OaiHeader#getRecordIdentifier()}.
+     * Only headers sorting after the given position are returned. To get the next
+     * page, pass the datestamp and record identifier of the last header of the
+     * current page.
+     *
+     * @param afterDatestamp        datestamp of the last header of the previous page or {@code null} to
+     *                              start with the oldest header
+     * @param afterRecordIdentifier record identifier of the last header of the previous page. Ignored if
+     *                              afterDatestamp is {@code null}.
+     * @param limit                 maximum number of headers to return
+     * @return {@link OaiHeader}s from persistence, list my be empty but never {@code null}.
+     * @throws PersistenceException if any error occurred.
+     */
+//    @NonNull
+    List<OaiHeader> getOaiHeaders(Date afterDatestamp, String afterRecordIdentifier, int limit)
+            throws PersistenceException;
+
+    /**
+     * Count the {@link OaiHeader}s in persistence, i.e. the records waiting for their METS document to be
+     * processed.
+     *
+     * @return number of {@link OaiHeader}s, including claimed ones.
+     * @throws PersistenceException if any error occurred.
+     */
+    int countOaiHeaders() throws PersistenceException;
+
+    /**
+     * Claim up to {@code limit} of the oldest {@link OaiHeader}s that are not claimed by anyone else. A claim
+     * expires after {@code leaseDuration}; expired claims can be taken over. Concurrent callers never get the
+     * same header unless a claim expired. Adding or updating a header with
+     * {@link #addOrUpdateOaiHeaders(List)} releases its claim.
+     *
+     * @param leaseOwner    unique name of the caller
+     * @param leaseDuration time after which the claim expires
+     * @param limit         maximum number of headers to claim
+     * @return the claimed {@link OaiHeader}s ordered by {@link OaiHeader#getDatestamp()} and
+     * {@link OaiHeader#getRecordIdentifier()}, list my be empty but never {@code null}.
+     * @throws PersistenceException if any error occurred.
+     */
+//    @NonNull
+    List<OaiHeader> claimOaiHeaders(String leaseOwner, Duration leaseDuration, int limit)
+            throws PersistenceException;
+
     /**
      * Deletes the {@link OaiHeader}s. An {@link OaiHeader} is removed from
      * persistence iff it <b>equals</b> an object in the {@code headersToRemove}. All
@@ -97,4 +188,55 @@ public interface PersistenceService {
     //  @NonNull    
     void addOrUpdateReportingDocuments(List<ReportingDocumentMetadata> reportingDocuments)
             throws PersistenceException;
+
+    /**
+     * Delete the {@link ReportingDocumentMetadata} objects of records that have been deleted from the repository.
+     * Record identifiers not found in persistence are ignored.
+     *
+     * @param recordIdentifiers record identifiers of the documents to delete
+     * @throws PersistenceException if any error occurred. No document has been deleted in this case.
+     */
+    void removeReportingDocuments(List<String> recordIdentifiers) throws PersistenceException;
+
+    /**
+     * Look up the {@link ReportingDocumentMetadata#getHeaderLastModified()} of several documents at once.
+     *
+     * @param recordIdentifiers record identifiers of the documents to look up
+     * @return the header last modified dates by record identifier. Documents not in persistence are missing from
+     * the map. Map may be empty but never {@code null}.
+     * @throws PersistenceException if any error occurred.
+     */
+//    @NonNull
+    Map<String, Date> getReportingDocumentsHeaderLastModified(List<String> recordIdentifiers)
+            throws PersistenceException;
+
+    /**
+     * Look up the {@link ReportingDocumentMetadata#getLastFetched()} of several documents at once.
+     *
+     * @param recordIdentifiers record identifiers of the documents to look up
+     * @return the fetch dates by record identifier. Documents not in persistence or without a fetch date are
+     * missing from the map. Map may be empty but never {@code null}.
+     * @throws PersistenceException if any error occurred.
+     */
+//    @NonNull
+    Map<String, Date> getReportingDocumentsLastFetched(List<String> recordIdentifiers)
+            throws PersistenceException;
+
+    /**
+     * Try to take the named lock. A lock is held by at most one {@link PersistenceService} instance across all
+     * processes sharing the persistence layer, until it is released or the holder dies. Calling this method while
+     * holding the lock verifies that the lock is still held and takes it again if it has been lost.
+     *
+     * @param lockName name of the lock
+     * @return {@code true} if this instance holds the lock, {@code false} if it is held by someone else.
+     * @throws PersistenceException if any error occurred.
+     */
+    boolean tryAcquireLock(String lockName) throws PersistenceException;
+
+    /**
+     * Release the named lock if held by this instance.
+     *
+     * @param lockName name of the lock
+     */
+    void releaseLock(String lockName);
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.persistence;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.joda.time.Duration;
+
+/**
+ * Creates the connection pool shared by all {@link PostgrePersistenceService} instances of the application.
+ */
+public class PooledDataSourceFactory {
+
+    /**
+     * @param driver          class name of the JDBC driver
+     * @param url             JDBC url of the database
+     * @param databaseUser    user to connect with
+     * @param databasePassword password of the user
+     * @param poolSize        maximum number of open connections, must be at least 1
+     * @param idleTimeout     time after which an idle connection is closed
+     * @param maxWait         maximum time to wait for a free connection if all connections are in use, must be
+     *                        positive. Borrowing fails with an {@link java.sql.SQLException} afterwards instead of
+     *                        blocking forever.
+     * @param validationQuery query to validate a connection before it is borrowed from the pool, or {@code null}
+     *                        to use the JDBC4 {@code Connection.isValid()} check
+     * @return a new pool. It has to be closed on shutdown.
+     * @throws IllegalArgumentException if url, databaseUser or databasePassword is {@code null}, poolSize
+     *                                  is less than 1 or maxWait is not positive
+     */
+    public static BasicDataSource createDataSource(String driver, String url, String databaseUser,
+                                                   String databasePassword, int poolSize, Duration idleTimeout,
+                                                   Duration maxWait, String validationQuery)
+            throws IllegalArgumentException {
+        if (url == null) {
+            throw new IllegalArgumentException("parameter url must not be null");
+        }
+        if (databaseUser == null) {
+            throw new IllegalArgumentException("parameter databaseUser must not be null");
+        }
+        if (databasePassword == null) {
+            throw new IllegalArgumentException("parameter databasePassword must not be null");
+        }
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("parameter poolSize must be at least 1");
+        }
+        if (maxWait.getMillis() <= 0) {
+            throw new IllegalArgumentException("parameter maxWait must be positive");
+        }
+
+        BasicDataSource dataSource = new BasicDataSource();
+        dataSource.setDriverClassName(driver);
+        dataSource.setUrl(url);
+        dataSource.setUsername(databaseUser);
+        dataSource.setPassword(databasePassword);
+
+        dataSource.setMaxTotal(poolSize);
+        dataSource.setMaxIdle(poolSize);
+        dataSource.setMinIdle(0);
+        dataSource.setMaxWaitMillis(maxWait.getMillis());
+
+        // idle connections are closed by the evictor, which runs twice per idle timeout
+        dataSource.setMinEvictableIdleTimeMillis(idleTimeout.getMillis());
+        dataSource.setTimeBetweenEvictionRunsMillis(Math.max(1000, idleTimeout.getMillis() / 2));
+
+        if (validationQuery != null && !validationQuery.isEmpty()) {
+            dataSource.setValidationQuery(validationQuery);
+        }
+        dataSource.setTestOnBorrow(true);
+
+        return dataSource;
+    }
+}
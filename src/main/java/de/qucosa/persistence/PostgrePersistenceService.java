@@ -16,6 +16,11 @@
 
 package de.qucosa.persistence;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.sql.Array;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -24,26 +29,96 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.joda.time.Duration;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.postgresql.copy.PGCopyOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.qucosa.fedora.mets.ReportingDocumentMetadata;
 import de.qucosa.fedora.oai.OaiHeader;
 import de.qucosa.fedora.oai.OaiRunResult;
+import de.qucosa.fedora.oai.OaiSliceRunResult;
+import de.qucosa.metrics.MetricsRegistry;
+import de.qucosa.metrics.Timer;
+
+/**
+ * {@link PersistenceService} backed by a PostgreSQL database. Instances do not hold any state besides the
+ * connection configuration and may be shared between threads.
+ * <p>
+ * Every instance is scoped to one repository: it only reads, writes and removes rows whose "repository" column
+ * matches its own, so several repositories can be harvested into the same database using one instance each.
+ * <p>
+ * As {@link ReportingQueryService} it answers the publication statistics of its repository. The number of
+ * documents per month is kept in "PublicationStatistics", which is updated in the same transaction as
+ * "ReportingDocuments", so statistics of whole months don't scan the documents.
+ */
+public class PostgrePersistenceService implements PersistenceService, ReportingQueryService {
 
-public class PostgrePersistenceService implements PersistenceService {
+    public static final int DEFAULT_BULK_UPSERT_THRESHOLD = 1000;
+    public static final String DEFAULT_REPOSITORY = "";
+    private static final int LOCK_VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final String OAI_HEADER_NOTIFICATION_CHANNEL = "oai_header_added";
 
     private final String databasePassword;
     private final String databaseUser;
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final String url;
 
+    /**
+     * Value of the "repository" column of all rows read or written by this instance.
+     */
+    private final String repository;
+
+    /**
+     * If not {@code null}, connections are borrowed from this (usually pooled) data source instead of being
+     * opened via {@link DriverManager}.
+     */
+    private final DataSource dataSource;
+
+    /**
+     * Minimum number of headers to use {@code COPY} instead of a batch of single row upserts in
+     * {@link #addOrUpdateOaiHeaders(List)}.
+     */
+    private int bulkUpsertThreshold = DEFAULT_BULK_UPSERT_THRESHOLD;
+
+    private MetricsRegistry metricsRegistry = new MetricsRegistry();
+
+    /**
+     * Connection holding all session-level advisory locks of this instance, borrowed while at least one lock is
+     * held. The locks are released as soon as its session ends.
+     */
+    private Connection lockConnection = null;
+
+    /**
+     * Names of the locks held by {@link #lockConnection}.
+     */
+    private final Set<String> heldLocks = new HashSet<>();
+
+    /**
+     * Connection listening for notifications on new OaiHeaders, created on first use.
+     */
+    private Connection listenConnection = null;
+    private final Object listenMonitor = new Object();
+
     /**
      * @param url              as required by
      *                         {@link DriverManager#getConnection(String, String, String)}
@@ -57,6 +132,23 @@ public class PostgrePersistenceService implements PersistenceService {
      */
     public PostgrePersistenceService(String driver, String url, String databaseUser,
                                      String databasePassword) throws IllegalArgumentException, SQLException {
+        this(driver, url, databaseUser, databasePassword, DEFAULT_REPOSITORY);
+    }
+
+    /**
+     * @param url              as required by
+     *                         {@link DriverManager#getConnection(String, String, String)}
+     * @param databaseUser     as required by
+     *                         {@link DriverManager#getConnection(String, String, String)}
+     * @param databasePassword as required by
+     *                         {@link DriverManager#getConnection(String, String, String)}
+     * @param repository       name of the repository this instance is scoped to
+     * @throws IllegalArgumentException if any parameter is {@code null}
+     * @throws SQLException    in case credentials can't be used to extablish a database connection
+     * to the url or a database access error occurs
+     */
+    public PostgrePersistenceService(String driver, String url, String databaseUser, String databasePassword,
+                                     String repository) throws IllegalArgumentException, SQLException {
         if (url == null) {
             throw new IllegalArgumentException("parameter url must not be null");
         }
@@ -66,6 +158,9 @@ public class PostgrePersistenceService implements PersistenceService {
         if (databasePassword == null) {
             throw new IllegalArgumentException("parameter databasePassword must not be null");
         }
+        if (repository == null) {
+            throw new IllegalArgumentException("parameter repository must not be null");
+        }
 
         try {
             Class.forName(driver);
@@ -76,6 +171,8 @@ public class PostgrePersistenceService implements PersistenceService {
         this.url = url;
         this.databaseUser = databaseUser;
         this.databasePassword = databasePassword;
+        this.dataSource = null;
+        this.repository = repository;
 
         logger.debug(String.format("Attempt to connect to `%s` with user `%s`", url, databaseUser));
 
@@ -84,6 +181,61 @@ public class PostgrePersistenceService implements PersistenceService {
         con.close();
     }
 
+    /**
+     * @param dataSource to borrow connections from. Closing the data source is up to the caller.
+     * @throws IllegalArgumentException if dataSource is {@code null}
+     * @throws SQLException    in case no connection can be obtained from the data source
+     */
+    public PostgrePersistenceService(DataSource dataSource) throws IllegalArgumentException, SQLException {
+        this(dataSource, DEFAULT_REPOSITORY);
+    }
+
+    /**
+     * @param dataSource to borrow connections from. Closing the data source is up to the caller.
+     * @param repository name of the repository this instance is scoped to
+     * @throws IllegalArgumentException if any parameter is {@code null}
+     * @throws SQLException    in case no connection can be obtained from the data source
+     */
+    public PostgrePersistenceService(DataSource dataSource, String repository)
+            throws IllegalArgumentException, SQLException {
+        if (dataSource == null) {
+            throw new IllegalArgumentException("parameter dataSource must not be null");
+        }
+        if (repository == null) {
+            throw new IllegalArgumentException("parameter repository must not be null");
+        }
+
+        this.url = null;
+        this.databaseUser = null;
+        this.databasePassword = null;
+        this.dataSource = dataSource;
+        this.repository = repository;
+
+        // check data source configuration and throw SQLException if a database access error occurs
+        Connection con = dataSource.getConnection();
+        con.close();
+    }
+
+    /**
+     * Must be called before the service is shared between threads.
+     *
+     * @param bulkUpsertThreshold minimum number of headers to store with {@code COPY} and a single set-based merge
+     *                            instead of a batch of single row upserts
+     */
+    public void setBulkUpsertThreshold(int bulkUpsertThreshold) {
+        this.bulkUpsertThreshold = bulkUpsertThreshold;
+    }
+
+    /**
+     * Must be called before the service is shared between threads.
+     *
+     * @param metricsRegistry receives a timer {@code db.<method>} per method accessing the database. By default
+     *                        they are kept in a registry of its own.
+     */
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -92,16 +244,31 @@ public class PostgrePersistenceService implements PersistenceService {
     @Override
 //    @Nullable
     public OaiRunResult getLastOaiRunResult() {
+        return getLastOaiRunResult(null);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#getLastOaiRunResult(java.lang.String)
+     */
+    @Override
+//    @Nullable
+    public OaiRunResult getLastOaiRunResult(String setSpec) {
 
         OaiRunResult oaiRunResult = null;
 
         String errorMsg = "Could not fetch OAI run result data from database. "
                 + "Returning the default (null) as if there was no OAI run result in the database. ";
 
-        String stm = "SELECT \"timestampOfRun\", \"responseDate\", \"resumptionToken\", \"resumptionTokenExpirationDate\", \"nextFromTimestamp\" FROM \"OAIRunResult\" order by \"ID\" desc limit 1";
+        // the index on ("repository", "setSpec", "ID") answers both statements
+        String stm = (setSpec == null)
+                ? "SELECT \"timestampOfRun\", \"responseDate\", \"resumptionToken\", \"resumptionTokenExpirationDate\", \"nextFromTimestamp\" FROM \"OAIRunResult\" WHERE \"repository\" = ? AND \"setSpec\" IS NULL order by \"ID\" desc limit 1"
+                : "SELECT \"timestampOfRun\", \"responseDate\", \"resumptionToken\", \"resumptionTokenExpirationDate\", \"nextFromTimestamp\" FROM \"OAIRunResult\" WHERE \"repository\" = ? AND \"setSpec\" = ? order by \"ID\" desc limit 1";
 
-        try (Connection con = DriverManager.getConnection(url, databaseUser, databasePassword);
-             PreparedStatement pst = con.prepareStatement(stm);
+        try (Timer.Context time = time("getLastOaiRunResult");
+             Connection con = getConnection();
+             PreparedStatement pst = prepareLastOaiRunResultStatement(con, stm, setSpec);
              ResultSet rs = pst.executeQuery()) {
 
             int rowCount = 0;
@@ -122,7 +289,7 @@ public class PostgrePersistenceService implements PersistenceService {
 
                 oaiRunResult = new OaiRunResult(lastRun, responseDate, rs.getString("resumptionToken"),
                         convertNullableSQLTimestampToJavaDate(rs.getTimestamp("resumptionTokenExpirationDate")),
-                        convertNullableSQLTimestampToJavaDate(rs.getTimestamp("nextFromTimestamp")));
+                        convertNullableSQLTimestampToJavaDate(rs.getTimestamp("nextFromTimestamp")), setSpec);
 
             }
 
@@ -138,6 +305,16 @@ public class PostgrePersistenceService implements PersistenceService {
         return oaiRunResult;
     }
 
+    private PreparedStatement prepareLastOaiRunResultStatement(Connection con, String stm, String setSpec)
+            throws SQLException {
+        PreparedStatement pst = con.prepareStatement(stm);
+        pst.setString(1, repository);
+        if (setSpec != null) {
+            pst.setString(2, setSpec);
+        }
+        return pst;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -150,9 +327,10 @@ public class PostgrePersistenceService implements PersistenceService {
 
         //TODO check oaiRunResult == null; throw NPE or PersistenceException?
 
-        String insertStm = "INSERT INTO \"OAIRunResult\"(\"timestampOfRun\", \"responseDate\", \"resumptionToken\", \"resumptionTokenExpirationDate\", \"nextFromTimestamp\") VALUES(?, ?, ?, ?, ?)";
+        String insertStm = "INSERT INTO \"OAIRunResult\"(\"timestampOfRun\", \"responseDate\", \"resumptionToken\", \"resumptionTokenExpirationDate\", \"nextFromTimestamp\", \"setSpec\", \"repository\") VALUES(?, ?, ?, ?, ?, ?, ?)";
 
-        try (Connection con = DriverManager.getConnection(url, databaseUser, databasePassword);
+        try (Timer.Context time = time("storeOaiRunResult");
+             Connection con = getConnection();
              PreparedStatement pst = con.prepareStatement(insertStm)) {
 
             pst.setTimestamp(1, convertNullableJAVADateToSQLTimestamp(oaiRunResult.getTimestampOfRun()));
@@ -160,6 +338,8 @@ public class PostgrePersistenceService implements PersistenceService {
             pst.setString(3, oaiRunResult.getResumptionToken());
             pst.setTimestamp(4, convertNullableJAVADateToSQLTimestamp(oaiRunResult.getResumptionTokenExpirationDate()));
             pst.setTimestamp(5, convertNullableJAVADateToSQLTimestamp(oaiRunResult.getNextFromTimestamp()));
+            pst.setString(6, oaiRunResult.getSetSpec());
+            pst.setString(7, repository);
             pst.executeUpdate();
 
         } catch (SQLException e) {
@@ -173,45 +353,103 @@ public class PostgrePersistenceService implements PersistenceService {
 
         //TODO check oldestResultToKeep == null; throw NPE or PersistenceException?
 
-        Integer lastOaiRunResultIDtoKeep = null;
-        String getID = "SELECT \"ID\" FROM \"OAIRunResult\" order by \"ID\" desc limit 1";
+        // keep the most recent result of every set, i.e. the last checkpoint of each harvester
+        String deleteHistory = "DELETE FROM \"OAIRunResult\" WHERE \"repository\" = ? AND \"timestampOfRun\" <= ? AND \"ID\" NOT IN (SELECT max(\"ID\") FROM \"OAIRunResult\" WHERE \"repository\" = ? GROUP BY \"setSpec\")";
 
-        try (Connection con = DriverManager.getConnection(url, databaseUser, databasePassword);
-             PreparedStatement pst = con.prepareStatement(getID);
-             ResultSet rs = pst.executeQuery()) {
+        try (Timer.Context time = time("cleanupOaiRunResults");
+             Connection con = getConnection();
+             PreparedStatement pst = con.prepareStatement(deleteHistory)) {
 
-            int rowCount = 0;
-            while (rs.next()) {
-                ++rowCount;
-                lastOaiRunResultIDtoKeep = rs.getInt("ID");
-            }
-            if (rowCount == 0) {
-                logger.debug("Could not fetch any OAI run result from database.");
-            }
+            pst.setString(1, repository);
+            pst.setTimestamp(2, convertNullableJAVADateToSQLTimestamp(oldestResultToKeep));
+            pst.setString(3, repository);
+            int result = pst.executeUpdate();
+
+            logger.debug("Number of deleted OaiRunResults: " + result);
 
         } catch (SQLException e) {
+            throw new PersistenceException("Could not delete OaiRunResults from database.", e);
+        }
+    }
 
-            throw new PersistenceException("Could not fetch OAI run result to keep from database.", e);
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#getOaiSliceRunResults()
+     */
+    @Override
+    public List<OaiSliceRunResult> getOaiSliceRunResults() throws PersistenceException {
+        List<OaiSliceRunResult> sliceRunResults = new LinkedList<>();
+
+        String stm = "SELECT \"sliceIndex\", \"from\", \"until\", \"resumptionToken\", \"completed\" FROM \"OAISliceRunResult\" WHERE \"repository\" = ? ORDER BY \"sliceIndex\"";
+
+        try (Timer.Context time = time("getOaiSliceRunResults");
+             Connection con = getConnection();
+             PreparedStatement pst = con.prepareStatement(stm)) {
+
+            pst.setString(1, repository);
+
+            try (ResultSet rs = pst.executeQuery()) {
+                while (rs.next()) {
+                    sliceRunResults.add(new OaiSliceRunResult(rs.getInt("sliceIndex"),
+                            convertNullableSQLTimestampToJavaDate(rs.getTimestamp("from")),
+                            convertNullableSQLTimestampToJavaDate(rs.getTimestamp("until")),
+                            rs.getString("resumptionToken"), rs.getBoolean("completed")));
+                }
+            }
+
+        } catch (SQLException e) {
+            throw new PersistenceException("Could not fetch OaiSliceRunResults from database.", e);
         }
 
-        //
-        if (lastOaiRunResultIDtoKeep != null) {
+        return sliceRunResults;
+    }
 
-            String deleteHistory = "DELETE FROM \"OAIRunResult\" WHERE \"timestampOfRun\" <= ? AND \"ID\" != ?";
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#storeOaiSliceRunResult(de.qucosa.fedora.oai.OaiSliceRunResult)
+     */
+    @Override
+    public void storeOaiSliceRunResult(OaiSliceRunResult sliceRunResult) throws PersistenceException {
 
-            try (Connection con = DriverManager.getConnection(url, databaseUser, databasePassword);
-                 PreparedStatement pst = con.prepareStatement(deleteHistory)) {
+        String stm = "INSERT INTO \"OAISliceRunResult\" (\"sliceIndex\", \"from\", \"until\", \"resumptionToken\", \"completed\", \"repository\") VALUES (?, ?, ?, ?, ?, ?) ON CONFLICT (\"repository\", \"sliceIndex\") DO UPDATE SET \"from\" = EXCLUDED.\"from\", \"until\" = EXCLUDED.\"until\", \"resumptionToken\" = EXCLUDED.\"resumptionToken\", \"completed\" = EXCLUDED.\"completed\"";
 
-                pst.setTimestamp(1, convertNullableJAVADateToSQLTimestamp(oldestResultToKeep));
-                pst.setInt(2, lastOaiRunResultIDtoKeep);
-                int result = pst.executeUpdate();
+        try (Timer.Context time = time("storeOaiSliceRunResult");
+             Connection con = getConnection();
+             PreparedStatement pst = con.prepareStatement(stm)) {
 
-                logger.debug("Number of deleted OaiRunResults: " + result);
+            pst.setInt(1, sliceRunResult.getSliceIndex());
+            pst.setTimestamp(2, convertNullableJAVADateToSQLTimestamp(sliceRunResult.getFrom()));
+            pst.setTimestamp(3, convertNullableJAVADateToSQLTimestamp(sliceRunResult.getUntil()));
+            pst.setString(4, sliceRunResult.getResumptionToken());
+            pst.setBoolean(5, sliceRunResult.isCompleted());
+            pst.setString(6, repository);
+            pst.executeUpdate();
 
-            } catch (SQLException e) {
-                throw new PersistenceException("Could not delete OaiRunResults from database.", e);
-            }
+        } catch (SQLException e) {
+            throw new PersistenceException("Could not store OaiSliceRunResult in database.", e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#removeOaiSliceRunResults()
+     */
+    @Override
+    public void removeOaiSliceRunResults() throws PersistenceException {
+
+        try (Timer.Context time = time("removeOaiSliceRunResults");
+             Connection con = getConnection();
+             PreparedStatement pst = con.prepareStatement("DELETE FROM \"OAISliceRunResult\" WHERE \"repository\" = ?")) {
 
+            pst.setString(1, repository);
+            int result = pst.executeUpdate();
+            logger.debug("Number of deleted OaiSliceRunResults: " + result);
+
+        } catch (SQLException e) {
+            throw new PersistenceException("Could not delete OaiSliceRunResults from database.", e);
         }
     }
 
@@ -220,11 +458,17 @@ public class PostgrePersistenceService implements PersistenceService {
 
         //TODO check headers == null; throw NPE or PersistenceException?
 
+        if (headers.size() >= bulkUpsertThreshold) {
+            bulkAddOrUpdateOaiHeaders(headers);
+            return;
+        }
+
         String basicErrorMsg = "Could not store all OaiHeaders in database. ";
-        String stm = "INSERT INTO \"OAIHeader\" (\"recordIdentifier\", \"datestamp\" , \"setSpec\", \"statusIsDeleted\") VALUES (?, ?, ?, ?) ON CONFLICT (\"recordIdentifier\") DO UPDATE SET \"datestamp\" = ?, \"setSpec\" = ?, \"statusIsDeleted\" = ?";
+        String stm = "INSERT INTO \"OAIHeader\" (\"recordIdentifier\", \"datestamp\" , \"setSpec\", \"statusIsDeleted\", \"repository\") VALUES (?, ?, ?, ?, ?) ON CONFLICT (\"repository\", \"recordIdentifier\") DO UPDATE SET \"datestamp\" = ?, \"setSpec\" = ?, \"statusIsDeleted\" = ?, \"leaseOwner\" = NULL, \"leaseExpiration\" = NULL";
         int[] results = {};
 
-        try (Connection con = DriverManager.getConnection(url, databaseUser, databasePassword);
+        try (Timer.Context time = time("addOrUpdateOaiHeaders");
+             Connection con = getConnection();
              PreparedStatement pst = con.prepareStatement(stm)) {
 
             con.setAutoCommit(false);
@@ -239,16 +483,18 @@ public class PostgrePersistenceService implements PersistenceService {
                 pst.setArray(3, setSpecArray);
 
                 pst.setBoolean(4, header.isStatusIsDeleted());
-                pst.setTimestamp(5, datestamp);
+                pst.setString(5, repository);
+                pst.setTimestamp(6, datestamp);
 
-                pst.setArray(6, setSpecArray);
+                pst.setArray(7, setSpecArray);
 
-                pst.setBoolean(7, header.isStatusIsDeleted());
+                pst.setBoolean(8, header.isStatusIsDeleted());
                 pst.addBatch();
 
             }
 
             results = pst.executeBatch();
+            notifyOaiHeadersAdded(con, headers);
             con.commit();
 
         } catch (SQLException e) {
@@ -279,53 +525,219 @@ public class PostgrePersistenceService implements PersistenceService {
         }
     }
 
+    /**
+     * Upsert a large number of {@link OaiHeader}s in one round trip. The headers are streamed into a session
+     * local staging table using {@code COPY}, which is then merged into "OAIHeader" by a single statement.
+     * If a record identifier occurs more than once, the last header wins, just like in the batched upsert.
+     *
+     * @param headers the headers to add or update
+     * @throws PersistenceException if any error occurred. No header has been stored in this case.
+     */
+    private void bulkAddOrUpdateOaiHeaders(List<OaiHeader> headers) throws PersistenceException {
+
+        String basicErrorMsg = "Could not store all OaiHeaders in database. ";
+
+        // temporary tables are neither WAL-logged nor visible to other sessions, so concurrent bulk upserts
+        // on different pooled connections can't interfere. The table is emptied on commit and reused by
+        // the next bulk upsert on the same connection.
+        String createStagingTable = "CREATE TEMPORARY TABLE IF NOT EXISTS \"OAIHeaderStaging\" (\"ordinal\" integer NOT NULL, \"recordIdentifier\" character varying(256) NOT NULL, \"datestamp\" timestamp with time zone NOT NULL, \"setSpec\" character varying(256)[], \"statusIsDeleted\" boolean) ON COMMIT DELETE ROWS";
+        String copy = "COPY \"OAIHeaderStaging\" (\"ordinal\", \"recordIdentifier\", \"datestamp\", \"setSpec\", \"statusIsDeleted\") FROM STDIN WITH (FORMAT csv)";
+        String merge = "INSERT INTO \"OAIHeader\" (\"repository\", \"recordIdentifier\", \"datestamp\", \"setSpec\", \"statusIsDeleted\") SELECT DISTINCT ON (\"recordIdentifier\") CAST(? AS character varying), \"recordIdentifier\", \"datestamp\", \"setSpec\", \"statusIsDeleted\" FROM \"OAIHeaderStaging\" ORDER BY \"recordIdentifier\", \"ordinal\" DESC ON CONFLICT (\"repository\", \"recordIdentifier\") DO UPDATE SET \"datestamp\" = EXCLUDED.\"datestamp\", \"setSpec\" = EXCLUDED.\"setSpec\", \"statusIsDeleted\" = EXCLUDED.\"statusIsDeleted\", \"leaseOwner\" = NULL, \"leaseExpiration\" = NULL";
+
+        SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS'+00'");
+        timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        try (Timer.Context time = time("bulkAddOrUpdateOaiHeaders");
+             Connection con = getConnection()) {
+
+            con.setAutoCommit(false);
+
+            try (Statement st = con.createStatement()) {
+                st.execute(createStagingTable);
+            }
+
+            PGConnection pgConnection = con.unwrap(PGConnection.class);
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new PGCopyOutputStream(pgConnection, copy), StandardCharsets.UTF_8))) {
+
+                int ordinal = 0;
+                for (OaiHeader header : headers) {
+                    writer.write(Integer.toString(ordinal++));
+                    writer.write(',');
+                    writer.write(quoteCsv(header.getRecordIdentifier()));
+                    writer.write(',');
+                    writer.write(timestampFormat.format(header.getDatestamp()));
+                    writer.write(',');
+                    writer.write(quoteCsv(toArrayLiteral(header.getSetSpec())));
+                    writer.write(',');
+                    writer.write(header.isStatusIsDeleted() ? "t" : "f");
+                    writer.write('\n');
+                }
+            }
+
+            int result;
+            try (PreparedStatement pst = con.prepareStatement(merge)) {
+                pst.setString(1, repository);
+                result = pst.executeUpdate();
+            }
+            notifyOaiHeadersAdded(con, headers);
+            con.commit();
+
+            logger.debug("Bulk upserted {} OaiHeaders, {} distinct records.", headers.size(), result);
+
+        } catch (SQLException | IOException e) {
+            throw new PersistenceException(basicErrorMsg, e);
+        }
+    }
+
+    /**
+     * Notify listeners waiting in {@link #awaitOaiHeadersAdded(Duration)}. The notification is delivered when the
+     * transaction of the given connection commits, so listeners never wake up before the headers are visible.
+     * Its payload is the repository, so listeners can ignore headers of other repositories.
+     *
+     * @param con     connection with an open transaction
+     * @param headers headers added or updated in the transaction
+     * @throws SQLException if a database access error occurs
+     */
+    private void notifyOaiHeadersAdded(Connection con, List<OaiHeader> headers) throws SQLException {
+        if (headers.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement pst = con.prepareStatement("SELECT pg_notify(?, ?)")) {
+            pst.setString(1, OAI_HEADER_NOTIFICATION_CHANNEL);
+            pst.setString(2, repository);
+            pst.execute();
+        }
+    }
+
     /*
      * (non-Javadoc)
      *
-     * @see de.qucosa.persistence.PersistenceService#getOaiHeaders()
+     * @see de.qucosa.persistence.PersistenceService#awaitOaiHeadersAdded(org.joda.time.Duration)
      */
     @Override
-    public List<OaiHeader> getOaiHeaders() throws PersistenceException {
-        List<OaiHeader> headers = new LinkedList<>();
+    public boolean awaitOaiHeadersAdded(Duration timeout) throws PersistenceException {
+        synchronized (listenMonitor) {
+            try {
+                if (listenConnection != null && !listenConnection.isValid(LOCK_VALIDATION_TIMEOUT_SECONDS)) {
+                    logger.warn("Lost connection listening for new OaiHeaders, reconnecting.");
+                    releaseListenConnection();
+                }
+                if (listenConnection == null) {
+                    listenConnection = getConnection();
+                    listenConnection.setAutoCommit(true);
+                    try (Statement st = listenConnection.createStatement()) {
+                        st.execute("LISTEN " + OAI_HEADER_NOTIFICATION_CHANNEL);
+                    }
+                }
 
-        String stm = "SELECT \"recordIdentifier\", \"datestamp\" , \"setSpec\", \"statusIsDeleted\" from \"OAIHeader\" LIMIT 100";
+                // a timeout of 0 would block until the next notification
+                int timeoutMillis = (int) Math.max(1, Math.min(Integer.MAX_VALUE, timeout.getMillis()));
+                PGNotification[] notifications = listenConnection.unwrap(PGConnection.class)
+                        .getNotifications(timeoutMillis);
+                if (notifications != null) {
+                    for (PGNotification notification : notifications) {
+                        if (repository.equals(notification.getParameter())) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
 
-        try (Connection con = DriverManager.getConnection(url, databaseUser, databasePassword);
-             PreparedStatement pst = con.prepareStatement(stm);
-             ResultSet rs = pst.executeQuery()) {
+            } catch (SQLException e) {
+                if (listenConnection != null) {
+                    releaseListenConnection();
+                }
+                throw new PersistenceException("Could not wait for new OaiHeaders.", e);
+            }
+        }
+    }
 
-            int rowCount = 0;
-            while (rs.next()) {
-                ++rowCount;
+    /**
+     * Unsubscribe {@link #listenConnection} and return it to the pool. Otherwise the next borrower would keep
+     * collecting notifications nobody reads. If unsubscribing fails, the connection is removed from the pool.
+     */
+    private void releaseListenConnection() {
+        try (Statement st = listenConnection.createStatement()) {
+            st.execute("UNLISTEN *");
+            // drop the notifications received before unsubscribing
+            listenConnection.unwrap(PGConnection.class).getNotifications();
+            closeQuietly(listenConnection);
+        } catch (SQLException e) {
+            logger.debug("Could not unsubscribe from notifications: {}", e.getMessage());
+            invalidateQuietly(listenConnection);
+        }
+        listenConnection = null;
+    }
 
-                String recordIdentifier = rs.getString("recordIdentifier");
-                if (recordIdentifier == null) {
-                    logger.error("'recordIdentifier' must not be null. Skipping this OaiHeader.");
-                    continue;
-                }
+    /**
+     * Release the connections this service keeps for itself, the one listening for notifications and the one
+     * holding the locks. Locks still held are released. The service must not be used afterwards.
+     */
+    public void close() {
+        synchronized (listenMonitor) {
+            if (listenConnection != null) {
+                releaseListenConnection();
+            }
+        }
 
-                Date datestamp = convertNullableSQLTimestampToJavaDate(rs.getTimestamp("datestamp"));
-                if (datestamp == null) {
-                    logger.error("'datestamp' must not be null. Skipping OaiHeader with recordIdentifier '{}'",
-                            recordIdentifier);
-                    continue;
+        synchronized (this) {
+            if (lockConnection != null) {
+                try (PreparedStatement pst = lockConnection.prepareStatement("SELECT pg_advisory_unlock_all()")) {
+                    pst.execute();
+                    logger.info("Released locks {}.", heldLocks);
+                    closeQuietly(lockConnection);
+                } catch (SQLException e) {
+                    logger.warn("Could not release locks {}: {}", heldLocks, e.getMessage());
+                    invalidateQuietly(lockConnection);
                 }
+                heldLocks.clear();
+                lockConnection = null;
+            }
+        }
+    }
 
-                Array z = rs.getArray("setSpec");
-                List<String> setSpec = new LinkedList<>();
-                if (z != null) {
-                    String[] setSpecArray = (String[]) z.getArray();
-                    Collections.addAll(setSpec, setSpecArray);
-                }
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#getOaiHeaders()
+     */
+    @Override
+    public List<OaiHeader> getOaiHeaders() throws PersistenceException {
+        return getOaiHeaders(null, null, 100);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#getOaiHeaders(java.util.Date, java.lang.String, int)
+     */
+    @Override
+    public List<OaiHeader> getOaiHeaders(Date afterDatestamp, String afterRecordIdentifier, int limit)
+            throws PersistenceException {
+        List<OaiHeader> headers = new LinkedList<>();
+
+        // the row value comparison is answered by the index on ("repository", "datestamp", "recordIdentifier")
+        String stm = (afterDatestamp == null)
+                ? "SELECT \"recordIdentifier\", \"datestamp\" , \"setSpec\", \"statusIsDeleted\" from \"OAIHeader\" WHERE \"repository\" = ? ORDER BY \"datestamp\", \"recordIdentifier\" LIMIT ?"
+                : "SELECT \"recordIdentifier\", \"datestamp\" , \"setSpec\", \"statusIsDeleted\" from \"OAIHeader\" WHERE \"repository\" = ? AND (\"datestamp\", \"recordIdentifier\") > (?, ?) ORDER BY \"datestamp\", \"recordIdentifier\" LIMIT ?";
 
-                OaiHeader actualHeader = new OaiHeader(recordIdentifier, datestamp, setSpec,
-                        rs.getBoolean("statusIsDeleted"));
-                headers.add(actualHeader);
+        try (Timer.Context time = time("getOaiHeaders");
+             Connection con = getConnection();
+             PreparedStatement pst = con.prepareStatement(stm)) {
 
+            int index = 1;
+            pst.setString(index++, repository);
+            if (afterDatestamp != null) {
+                pst.setTimestamp(index++, convertNullableJAVADateToSQLTimestamp(afterDatestamp));
+                pst.setString(index++, (afterRecordIdentifier == null) ? "" : afterRecordIdentifier);
             }
+            pst.setInt(index, limit);
 
-            if (rowCount == 0) {
-                logger.debug("There are currently no OaiHeaders in database.");
+            try (ResultSet rs = pst.executeQuery()) {
+                if (readOaiHeaders(rs, headers) == 0) {
+                    logger.debug("There are currently no OaiHeaders in database.");
+                }
             }
 
         } catch (SQLException e) {
@@ -335,6 +747,75 @@ public class PostgrePersistenceService implements PersistenceService {
         return headers;
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#countOaiHeaders()
+     */
+    @Override
+    public int countOaiHeaders() throws PersistenceException {
+        try (Timer.Context time = time("countOaiHeaders");
+             Connection con = getConnection();
+             PreparedStatement pst = con.prepareStatement(
+                     "SELECT COUNT(*) FROM \"OAIHeader\" WHERE \"repository\" = ?")) {
+
+            pst.setString(1, repository);
+            try (ResultSet rs = pst.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+
+        } catch (SQLException e) {
+            throw new PersistenceException("Could not count OaiHeaders in database.", e);
+        }
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#claimOaiHeaders(java.lang.String, org.joda.time.Duration, int)
+     */
+    @Override
+    public List<OaiHeader> claimOaiHeaders(String leaseOwner, Duration leaseDuration, int limit)
+            throws PersistenceException {
+        List<OaiHeader> headers = new LinkedList<>();
+
+        // rows locked by a concurrent claim are skipped instead of waited for, so concurrent callers
+        // get disjoint sets of headers. Lease expiration is based on the database clock only.
+        String stm = "UPDATE \"OAIHeader\" SET \"leaseOwner\" = ?, \"leaseExpiration\" = now() + ? * interval '1 millisecond' WHERE \"repository\" = ? AND \"recordIdentifier\" IN (SELECT \"recordIdentifier\" FROM \"OAIHeader\" WHERE \"repository\" = ? AND (\"leaseExpiration\" IS NULL OR \"leaseExpiration\" < now()) ORDER BY \"datestamp\", \"recordIdentifier\" LIMIT ? FOR UPDATE SKIP LOCKED) RETURNING \"recordIdentifier\", \"datestamp\" , \"setSpec\", \"statusIsDeleted\"";
+
+        try (Timer.Context time = time("claimOaiHeaders");
+             Connection con = getConnection();
+             PreparedStatement pst = con.prepareStatement(stm)) {
+
+            pst.setString(1, leaseOwner);
+            pst.setLong(2, leaseDuration.getMillis());
+            pst.setString(3, repository);
+            pst.setString(4, repository);
+            pst.setInt(5, limit);
+
+            try (ResultSet rs = pst.executeQuery()) {
+                if (readOaiHeaders(rs, headers) == 0) {
+                    logger.debug("There are currently no unclaimed OaiHeaders in database.");
+                }
+            }
+
+        } catch (SQLException e) {
+            throw new PersistenceException("Could not claim OaiHeaders in database.", e);
+        }
+
+        // RETURNING does not preserve the order of the subquery
+        Collections.sort(headers, new Comparator<OaiHeader>() {
+            @Override
+            public int compare(OaiHeader h1, OaiHeader h2) {
+                int result = h1.getDatestamp().compareTo(h2.getDatestamp());
+                return (result != 0) ? result : h1.getRecordIdentifier().compareTo(h2.getRecordIdentifier());
+            }
+        });
+
+        return headers;
+    }
 
     /*
      * (non-Javadoc)
@@ -348,21 +829,23 @@ public class PostgrePersistenceService implements PersistenceService {
         //TODO check headersToRemove == null; throw NPE or PersistenceException?
 
         // delete statements only if they did not change since we read them from database
-        String stm = "DELETE FROM \"OAIHeader\" WHERE \"recordIdentifier\" = ? AND \"datestamp\" = ? AND \"statusIsDeleted\" = ?";
+        String stm = "DELETE FROM \"OAIHeader\" WHERE \"repository\" = ? AND \"recordIdentifier\" = ? AND \"datestamp\" = ? AND \"statusIsDeleted\" = ?";
 
         int[] results = {};
 
-        try (Connection con = DriverManager.getConnection(url, databaseUser, databasePassword);
+        try (Timer.Context time = time("removeOaiHeadersIfUnmodified");
+             Connection con = getConnection();
              PreparedStatement pst = con.prepareStatement(stm)) {
 
             con.setAutoCommit(false);
 
             for (OaiHeader header : headersToRemove) {
 
-                pst.setString(1, header.getRecordIdentifier());
+                pst.setString(1, repository);
+                pst.setString(2, header.getRecordIdentifier());
                 Timestamp datestamp = convertNullableJAVADateToSQLTimestamp(header.getDatestamp());
-                pst.setTimestamp(2, datestamp);
-                pst.setBoolean(3, header.isStatusIsDeleted());
+                pst.setTimestamp(3, datestamp);
+                pst.setBoolean(4, header.isStatusIsDeleted());
                 pst.addBatch();
 
             }
@@ -417,15 +900,32 @@ public class PostgrePersistenceService implements PersistenceService {
         //TODO check reportingDocuments == null; throw NPE or PersistenceException?
 
         String basicErrorMsg = "Could not store all OaiHeaders in database. ";
-        String stm = "INSERT INTO \"ReportingDocuments\" (\"recordIdentifier\", \"mandator\" , \"documentType\", \"distributionDate\", \"headerLastModified\") VALUES (?, ?, ?, ?, ?) ON CONFLICT (\"recordIdentifier\") DO UPDATE SET \"mandator\" = ?, \"documentType\" = ?, \"distributionDate\" = ?, \"headerLastModified\" = ?";
+        String stm = "INSERT INTO \"ReportingDocuments\" (\"recordIdentifier\", \"mandator\" , \"documentType\", \"distributionDate\", \"headerLastModified\", \"lastFetched\", \"repository\") VALUES (?, ?, ?, ?, ?, ?, ?) ON CONFLICT (\"repository\", \"recordIdentifier\") DO UPDATE SET \"mandator\" = ?, \"documentType\" = ?, \"distributionDate\" = ?, \"headerLastModified\" = ?, \"lastFetched\" = ?";
         int[] results = {};
 
-        try (Connection con = DriverManager.getConnection(url, databaseUser, databasePassword);
+        try (Timer.Context time = time("addOrUpdateReportingDocuments");
+             Connection con = getConnection();
              PreparedStatement pst = con.prepareStatement(stm)) {
 
             con.setAutoCommit(false);
 
+            // the statistics are changed in the same transaction, moving documents between buckets on update
+            List<String> recordIdentifiers = new LinkedList<>();
             for (ReportingDocumentMetadata reportingDoc : reportingDocuments) {
+                recordIdentifiers.add(reportingDoc.getRecordIdentifier());
+            }
+            Map<String, PublicationBucket> buckets = lockPublicationBuckets(con, recordIdentifiers);
+            Map<PublicationBucket, Long> bucketDeltas = new TreeMap<>();
+
+            for (ReportingDocumentMetadata reportingDoc : reportingDocuments) {
+
+                PublicationBucket bucket = new PublicationBucket(reportingDoc.getMandator(),
+                        reportingDoc.getDocumentType(), reportingDoc.getDistributionDate());
+                PublicationBucket previousBucket = buckets.put(reportingDoc.getRecordIdentifier(), bucket);
+                if (previousBucket != null) {
+                    addBucketDelta(bucketDeltas, previousBucket, -1);
+                }
+                addBucketDelta(bucketDeltas, bucket, 1);
 
                 pst.setString(1, reportingDoc.getRecordIdentifier());
 
@@ -439,18 +939,26 @@ public class PostgrePersistenceService implements PersistenceService {
                 Timestamp headerLastModified = convertNullableJAVADateToSQLTimestamp(reportingDoc.getHeaderLastModified());
                 pst.setTimestamp(5, headerLastModified);
 
-                pst.setString(6, reportingDoc.getMandator());
+                Timestamp lastFetched = convertNullableJAVADateToSQLTimestamp(reportingDoc.getLastFetched());
+                pst.setTimestamp(6, lastFetched);
+
+                pst.setString(7, repository);
+
+                pst.setString(8, reportingDoc.getMandator());
+
+                pst.setString(9, reportingDoc.getDocumentType());
 
-                pst.setString(7, reportingDoc.getDocumentType());
+                pst.setTimestamp(10, distributionDate);
 
-                pst.setTimestamp(8, distributionDate);
+                pst.setTimestamp(11, headerLastModified);
 
-                pst.setTimestamp(9, headerLastModified);
+                pst.setTimestamp(12, lastFetched);
 
                 pst.addBatch();
             }
 
             results = pst.executeBatch();
+            updatePublicationStatistics(con, bucketDeltas);
             con.commit();
 
         } catch (SQLException e) {
@@ -481,6 +989,536 @@ public class PostgrePersistenceService implements PersistenceService {
         }
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#removeReportingDocuments(java.util.List)
+     */
+    @Override
+    public void removeReportingDocuments(List<String> recordIdentifiers) throws PersistenceException {
+        if (recordIdentifiers.isEmpty()) {
+            return;
+        }
+
+        // a single set-based statement instead of one delete per document, returning the buckets to decrement
+        String stm = "DELETE FROM \"ReportingDocuments\" WHERE \"repository\" = ? AND \"recordIdentifier\" = ANY (?) RETURNING \"mandator\", \"documentType\", \"distributionDate\"";
+
+        try (Timer.Context time = time("removeReportingDocuments");
+             Connection con = getConnection();
+             PreparedStatement pst = con.prepareStatement(stm)) {
+
+            con.setAutoCommit(false);
+
+            // same locks as adding documents, so a removal can't interleave with an add of the same document
+            lockRecords(con, recordIdentifiers);
+
+            pst.setString(1, repository);
+            pst.setArray(2, con.createArrayOf("varchar", recordIdentifiers.toArray()));
+
+            int result = 0;
+            Map<PublicationBucket, Long> bucketDeltas = new TreeMap<>();
+            try (ResultSet rs = pst.executeQuery()) {
+                while (rs.next()) {
+                    ++result;
+                    addBucketDelta(bucketDeltas, readPublicationBucket(rs), -1);
+                }
+            }
+            updatePublicationStatistics(con, bucketDeltas);
+            con.commit();
+
+            logger.debug("Number of deleted ReportingDocuments: " + result);
+
+        } catch (SQLException e) {
+            throw new PersistenceException("Could not delete ReportingDocuments from database.", e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#getReportingDocumentsHeaderLastModified(java.util.List)
+     */
+    @Override
+    public Map<String, Date> getReportingDocumentsHeaderLastModified(List<String> recordIdentifiers)
+            throws PersistenceException {
+        return getReportingDocumentsDates(recordIdentifiers, "headerLastModified",
+                "getReportingDocumentsHeaderLastModified");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#getReportingDocumentsLastFetched(java.util.List)
+     */
+    @Override
+    public Map<String, Date> getReportingDocumentsLastFetched(List<String> recordIdentifiers)
+            throws PersistenceException {
+        return getReportingDocumentsDates(recordIdentifiers, "lastFetched", "getReportingDocumentsLastFetched");
+    }
+
+    /**
+     * @param recordIdentifiers record identifiers of the documents to look up
+     * @param column            the date column of "ReportingDocuments" to read
+     * @param method            name of the timer to record the query with
+     * @return the non-null dates of the column by record identifier, never {@code null}
+     */
+    private Map<String, Date> getReportingDocumentsDates(List<String> recordIdentifiers, String column,
+                                                         String method) throws PersistenceException {
+        Map<String, Date> dates = new HashMap<>();
+        if (recordIdentifiers.isEmpty()) {
+            return dates;
+        }
+
+        // one round trip for all documents, answered by the primary key ("repository", "recordIdentifier")
+        String stm = "SELECT \"recordIdentifier\", \"" + column + "\" FROM \"ReportingDocuments\" WHERE \"repository\" = ? AND \"recordIdentifier\" = ANY (?)";
+
+        try (Timer.Context time = time(method);
+             Connection con = getConnection();
+             PreparedStatement pst = con.prepareStatement(stm)) {
+
+            pst.setString(1, repository);
+            pst.setArray(2, con.createArrayOf("varchar", recordIdentifiers.toArray()));
+
+            try (ResultSet rs = pst.executeQuery()) {
+                while (rs.next()) {
+                    Date date = convertNullableSQLTimestampToJavaDate(rs.getTimestamp(column));
+                    if (date != null) {
+                        dates.put(rs.getString("recordIdentifier"), date);
+                    }
+                }
+            }
+
+        } catch (SQLException e) {
+            throw new PersistenceException("Could not fetch ReportingDocuments from database.", e);
+        }
+
+        return dates;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.ReportingQueryService#countPublications(java.util.Date, java.util.Date,
+     * de.qucosa.persistence.ReportingQueryService.Period, java.lang.String)
+     */
+    @Override
+    public List<PublicationCount> countPublications(Date from, Date until, Period period, String mandator)
+            throws PersistenceException {
+        // whole months are answered by the few rows of the statistics, other ranges by the documents
+        if (isStartOfMonth(from) && isStartOfMonth(until)) {
+            return countPublicationsFromStatistics(from, until, period, mandator);
+        }
+        return countPublicationsFromDocuments(from, until, period, mandator);
+    }
+
+    private List<PublicationCount> countPublicationsFromStatistics(Date from, Date until, Period period,
+                                                                   String mandator) throws PersistenceException {
+        List<PublicationCount> counts = new LinkedList<>();
+
+        // rows are unique per month, months are summed up to years
+        String stm = (period == Period.YEAR)
+                ? "SELECT \"mandator\", \"documentType\", \"year\", 1 AS \"month\", SUM(\"count\") AS \"count\" FROM \"PublicationStatistics\" WHERE \"repository\" = ? AND (\"year\", \"month\") >= (?, ?) AND (\"year\", \"month\") < (?, ?)"
+                + ((mandator == null) ? "" : " AND \"mandator\" = ?")
+                + " GROUP BY 1, 2, 3 ORDER BY 1, 2, 3"
+                : "SELECT \"mandator\", \"documentType\", \"year\", \"month\", \"count\" FROM \"PublicationStatistics\" WHERE \"repository\" = ? AND (\"year\", \"month\") >= (?, ?) AND (\"year\", \"month\") < (?, ?)"
+                + ((mandator == null) ? "" : " AND \"mandator\" = ?")
+                + " ORDER BY 1, 2, 3, 4";
+
+        Calendar fromMonth = Calendar.getInstance();
+        fromMonth.setTime(from);
+        Calendar untilMonth = Calendar.getInstance();
+        untilMonth.setTime(until);
+
+        try (Timer.Context time = time("countPublications");
+             Connection con = getConnection();
+             PreparedStatement pst = con.prepareStatement(stm)) {
+
+            pst.setString(1, repository);
+            pst.setInt(2, fromMonth.get(Calendar.YEAR));
+            pst.setInt(3, fromMonth.get(Calendar.MONTH) + 1);
+            pst.setInt(4, untilMonth.get(Calendar.YEAR));
+            pst.setInt(5, untilMonth.get(Calendar.MONTH) + 1);
+            if (mandator != null) {
+                pst.setString(6, mandator);
+            }
+
+            try (ResultSet rs = pst.executeQuery()) {
+                while (rs.next()) {
+                    Calendar periodStart = Calendar.getInstance();
+                    periodStart.clear();
+                    periodStart.set(rs.getInt("year"), rs.getInt("month") - 1, 1);
+                    counts.add(new PublicationCount(rs.getString("mandator"), rs.getString("documentType"),
+                            periodStart.getTime(), rs.getLong("count")));
+                }
+            }
+
+        } catch (SQLException e) {
+            throw new PersistenceException("Could not count publications in database.", e);
+        }
+
+        return counts;
+    }
+
+    private List<PublicationCount> countPublicationsFromDocuments(Date from, Date until, Period period,
+                                                                  String mandator) throws PersistenceException {
+        List<PublicationCount> counts = new LinkedList<>();
+
+        // answered by an index-only scan of the index on ("repository", "distributionDate", "mandator",
+        // "documentType") or, for a single mandator, ("repository", "mandator", "distributionDate", "documentType")
+        String truncate = (period == Period.YEAR) ? "'year'" : "'month'";
+        String stm = "SELECT \"mandator\", \"documentType\", date_trunc(" + truncate + ", \"distributionDate\") AS \"periodStart\", COUNT(*) AS \"count\" FROM \"ReportingDocuments\" WHERE \"repository\" = ? AND \"distributionDate\" >= ? AND \"distributionDate\" < ?"
+                + ((mandator == null) ? "" : " AND \"mandator\" = ?")
+                + " GROUP BY 1, 2, 3 ORDER BY 1, 2, 3";
+
+        try (Timer.Context time = time("countPublications");
+             Connection con = getConnection();
+             PreparedStatement pst = con.prepareStatement(stm)) {
+
+            pst.setString(1, repository);
+            pst.setTimestamp(2, convertNullableJAVADateToSQLTimestamp(from));
+            pst.setTimestamp(3, convertNullableJAVADateToSQLTimestamp(until));
+            if (mandator != null) {
+                pst.setString(4, mandator);
+            }
+
+            try (ResultSet rs = pst.executeQuery()) {
+                while (rs.next()) {
+                    counts.add(new PublicationCount(rs.getString("mandator"), rs.getString("documentType"),
+                            convertNullableSQLTimestampToJavaDate(rs.getTimestamp("periodStart")),
+                            rs.getLong("count")));
+                }
+            }
+
+        } catch (SQLException e) {
+            throw new PersistenceException("Could not count publications in database.", e);
+        }
+
+        return counts;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#tryAcquireLock(java.lang.String)
+     */
+    @Override
+    public synchronized boolean tryAcquireLock(String lockName) throws PersistenceException {
+
+        try {
+            if (lockConnection != null && !lockConnection.isValid(LOCK_VALIDATION_TIMEOUT_SECONDS)) {
+                // the session holding the locks is gone, and so are the locks
+                logger.warn("Lost connection holding locks {}.", heldLocks);
+                heldLocks.clear();
+                closeQuietly(lockConnection);
+                lockConnection = null;
+            }
+            if (heldLocks.contains(lockName)) {
+                return true;
+            }
+
+            // all locks share one connection, so the number of pinned connections doesn't grow with the locks
+            if (lockConnection == null) {
+                lockConnection = getConnection();
+            }
+            boolean acquired = false;
+            try (Timer.Context time = time("tryAcquireLock");
+                 PreparedStatement pst = lockConnection.prepareStatement("SELECT pg_try_advisory_lock(hashtext(?))")) {
+                pst.setString(1, lockName);
+                try (ResultSet rs = pst.executeQuery()) {
+                    acquired = rs.next() && rs.getBoolean(1);
+                }
+            } finally {
+                if (acquired) {
+                    heldLocks.add(lockName);
+                } else {
+                    returnLockConnectionIfUnused();
+                }
+            }
+
+            if (acquired) {
+                logger.info("Acquired lock '{}'.", lockName);
+            }
+            return acquired;
+
+        } catch (SQLException e) {
+            throw new PersistenceException("Could not acquire lock '" + lockName + "'.", e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see de.qucosa.persistence.PersistenceService#releaseLock(java.lang.String)
+     */
+    @Override
+    public synchronized void releaseLock(String lockName) {
+
+        if (!heldLocks.remove(lockName)) {
+            return;
+        }
+
+        // pooled connections outlive close(), so the lock has to be released explicitly
+        try (Timer.Context time = time("releaseLock");
+             PreparedStatement pst = lockConnection.prepareStatement("SELECT pg_advisory_unlock(hashtext(?))")) {
+            pst.setString(1, lockName);
+            pst.execute();
+            logger.info("Released lock '{}'.", lockName);
+        } catch (SQLException e) {
+            logger.warn("Could not release lock '{}': {}", lockName, e.getMessage());
+        } finally {
+            returnLockConnectionIfUnused();
+        }
+    }
+
+    /**
+     * Return {@link #lockConnection} to the pool if it doesn't hold any lock.
+     */
+    private void returnLockConnectionIfUnused() {
+        if (heldLocks.isEmpty() && lockConnection != null) {
+            closeQuietly(lockConnection);
+            lockConnection = null;
+        }
+    }
+
+    /**
+     * @param method name of the method accessing the database
+     * @return context timing the database access of the method, including getting a connection from the pool
+     */
+    private Timer.Context time(String method) {
+        return metricsRegistry.timer("db." + method).time();
+    }
+
+    private void closeQuietly(Connection con) {
+        try {
+            con.close();
+        } catch (SQLException e) {
+            logger.debug("Could not close connection: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Close the connection for good instead of returning it to the pool, e.g. because its session state can't be
+     * reset.
+     */
+    private void invalidateQuietly(Connection con) {
+        if (dataSource instanceof BasicDataSource) {
+            try {
+                ((BasicDataSource) dataSource).invalidateConnection(con);
+            } catch (IllegalStateException e) {
+                logger.debug("Could not invalidate connection: {}", e.getMessage());
+            }
+        } else {
+            closeQuietly(con);
+        }
+    }
+
+    /**
+     * Serialize all transactions adding or removing the documents by a transaction level advisory lock per record
+     * identifier. {@code FOR UPDATE} only locks documents that already exist, two transactions adding the same new
+     * document would both read no bucket and both count it.
+     * <p>
+     * The two key form keeps these locks apart from the named locks of {@link #tryAcquireLock(String)}. The keys
+     * are locked in ascending order, so concurrent transactions don't deadlock.
+     *
+     * @param con               connection of the transaction
+     * @param recordIdentifiers documents to lock
+     * @throws SQLException if a database access error occurs
+     */
+    private void lockRecords(Connection con, List<String> recordIdentifiers) throws SQLException {
+        String stm = "SELECT pg_advisory_xact_lock(hashtext(?), \"key\") FROM (SELECT DISTINCT hashtext(\"recordIdentifier\") AS \"key\" FROM unnest(?::varchar[]) AS \"recordIdentifier\" ORDER BY \"key\") AS \"keys\"";
+        try (PreparedStatement pst = con.prepareStatement(stm)) {
+            pst.setString(1, repository);
+            pst.setArray(2, con.createArrayOf("varchar", recordIdentifiers.toArray()));
+            pst.execute();
+        }
+    }
+
+    /**
+     * Lock the documents with {@link #lockRecords(Connection, List)} and read their statistics buckets, so they
+     * can't be changed by others until the end of the transaction.
+     *
+     * @param con               connection of the transaction
+     * @param recordIdentifiers documents to read
+     * @return the bucket of every existing document by record identifier
+     * @throws SQLException if a database access error occurs
+     */
+    private Map<String, PublicationBucket> lockPublicationBuckets(Connection con, List<String> recordIdentifiers)
+            throws SQLException {
+        Map<String, PublicationBucket> buckets = new HashMap<>();
+        if (recordIdentifiers.isEmpty()) {
+            return buckets;
+        }
+
+        lockRecords(con, recordIdentifiers);
+        String stm = "SELECT \"recordIdentifier\", \"mandator\", \"documentType\", \"distributionDate\" FROM \"ReportingDocuments\" WHERE \"repository\" = ? AND \"recordIdentifier\" = ANY (?) ORDER BY \"recordIdentifier\" FOR UPDATE";
+        try (PreparedStatement pst = con.prepareStatement(stm)) {
+            pst.setString(1, repository);
+            pst.setArray(2, con.createArrayOf("varchar", recordIdentifiers.toArray()));
+            try (ResultSet rs = pst.executeQuery()) {
+                while (rs.next()) {
+                    buckets.put(rs.getString("recordIdentifier"), readPublicationBucket(rs));
+                }
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * @param rs result set with columns "mandator", "documentType" and "distributionDate"
+     * @return the bucket of the current row
+     * @throws SQLException if a database access error occurs
+     */
+    private PublicationBucket readPublicationBucket(ResultSet rs) throws SQLException {
+        return new PublicationBucket(rs.getString("mandator"), rs.getString("documentType"),
+                convertNullableSQLTimestampToJavaDate(rs.getTimestamp("distributionDate")));
+    }
+
+    private void addBucketDelta(Map<PublicationBucket, Long> bucketDeltas, PublicationBucket bucket, long delta) {
+        Long previous = bucketDeltas.get(bucket);
+        long sum = (previous == null) ? delta : previous + delta;
+        if (sum == 0) {
+            bucketDeltas.remove(bucket);
+        } else {
+            bucketDeltas.put(bucket, sum);
+        }
+    }
+
+    /**
+     * Add the deltas to the counts of "PublicationStatistics" and remove buckets that became empty. The buckets
+     * are changed in their natural order, so concurrent transactions don't deadlock.
+     *
+     * @param con          connection of the transaction
+     * @param bucketDeltas change of the number of documents per bucket
+     * @throws SQLException if a database access error occurs
+     */
+    private void updatePublicationStatistics(Connection con, Map<PublicationBucket, Long> bucketDeltas)
+            throws SQLException {
+        if (bucketDeltas.isEmpty()) {
+            return;
+        }
+
+        String stm = "INSERT INTO \"PublicationStatistics\" (\"repository\", \"mandator\", \"documentType\", \"year\", \"month\", \"count\") VALUES (?, ?, ?, ?, ?, ?) ON CONFLICT (\"repository\", \"mandator\", \"documentType\", \"year\", \"month\") DO UPDATE SET \"count\" = \"PublicationStatistics\".\"count\" + EXCLUDED.\"count\"";
+        List<PublicationBucket> decremented = new LinkedList<>();
+        try (PreparedStatement pst = con.prepareStatement(stm)) {
+            for (Map.Entry<PublicationBucket, Long> bucketDelta : bucketDeltas.entrySet()) {
+                PublicationBucket bucket = bucketDelta.getKey();
+                pst.setString(1, repository);
+                pst.setString(2, bucket.mandator);
+                pst.setString(3, bucket.documentType);
+                pst.setInt(4, bucket.year);
+                pst.setInt(5, bucket.month);
+                pst.setLong(6, bucketDelta.getValue());
+                pst.addBatch();
+                if (bucketDelta.getValue() < 0) {
+                    decremented.add(bucket);
+                }
+            }
+            pst.executeBatch();
+        }
+
+        // only the decremented buckets can have become empty, their rows are already locked by the upsert
+        if (!decremented.isEmpty()) {
+            String deleteStm = "DELETE FROM \"PublicationStatistics\" WHERE \"repository\" = ? AND \"mandator\" = ? AND \"documentType\" = ? AND \"year\" = ? AND \"month\" = ? AND \"count\" <= 0";
+            try (PreparedStatement pst = con.prepareStatement(deleteStm)) {
+                for (PublicationBucket bucket : decremented) {
+                    pst.setString(1, repository);
+                    pst.setString(2, bucket.mandator);
+                    pst.setString(3, bucket.documentType);
+                    pst.setInt(4, bucket.year);
+                    pst.setInt(5, bucket.month);
+                    pst.addBatch();
+                }
+                pst.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the date is midnight of the first day of a month in the JVM's default time zone
+     */
+    private boolean isStartOfMonth(Date date) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(date);
+        return cal.get(Calendar.DAY_OF_MONTH) == 1 && cal.get(Calendar.HOUR_OF_DAY) == 0
+                && cal.get(Calendar.MINUTE) == 0 && cal.get(Calendar.SECOND) == 0
+                && cal.get(Calendar.MILLISECOND) == 0;
+    }
+
+    /**
+     * @return a connection from {@link #dataSource} if configured, a new connection from {@link DriverManager}
+     * otherwise. Closing the connection returns it to the pool.
+     * @throws SQLException if a database access error occurs
+     */
+    private Connection getConnection() throws SQLException {
+        if (dataSource != null) {
+            return dataSource.getConnection();
+        }
+        return DriverManager.getConnection(url, databaseUser, databasePassword);
+    }
+
+    /**
+     * Read all {@link OaiHeader}s from the result set. Rows with missing mandatory values are logged and skipped.
+     *
+     * @param rs      result set with columns "recordIdentifier", "datestamp", "setSpec" and "statusIsDeleted"
+     * @param headers receives the headers read
+     * @return the number of rows read, including skipped ones
+     * @throws SQLException if a database access error occurs
+     */
+    private int readOaiHeaders(ResultSet rs, List<OaiHeader> headers) throws SQLException {
+        int rowCount = 0;
+        while (rs.next()) {
+            ++rowCount;
+
+            String recordIdentifier = rs.getString("recordIdentifier");
+            if (recordIdentifier == null) {
+                logger.error("'recordIdentifier' must not be null. Skipping this OaiHeader.");
+                continue;
+            }
+
+            Date datestamp = convertNullableSQLTimestampToJavaDate(rs.getTimestamp("datestamp"));
+            if (datestamp == null) {
+                logger.error("'datestamp' must not be null. Skipping OaiHeader with recordIdentifier '{}'",
+                        recordIdentifier);
+                continue;
+            }
+
+            Array z = rs.getArray("setSpec");
+            List<String> setSpec = new LinkedList<>();
+            if (z != null) {
+                String[] setSpecArray = (String[]) z.getArray();
+                Collections.addAll(setSpec, setSpecArray);
+            }
+
+            OaiHeader actualHeader = new OaiHeader(recordIdentifier, datestamp, setSpec,
+                    rs.getBoolean("statusIsDeleted"));
+            headers.add(actualHeader);
+        }
+        return rowCount;
+    }
+
+    /**
+     * @param value the value to quote
+     * @return the value as quoted CSV field, as expected by {@code COPY ... WITH (FORMAT csv)}
+     */
+    private String quoteCsv(String value) {
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * @param values the values to convert
+     * @return the values as PostgreSQL array literal, e.g. {@code {"a","b"}}
+     */
+    private String toArrayLiteral(List<String> values) {
+        StringBuilder literal = new StringBuilder("{");
+        for (String value : values) {
+            if (literal.length() > 1) {
+                literal.append(',');
+            }
+            literal.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return literal.append('}').toString();
+    }
+
     /**
      * @param date the {@link java.util.Date} to convert or {@code null}
      * @return {@link java.sql.Timestamp} the converted value or {@code null} if
@@ -521,4 +1559,59 @@ public class PostgrePersistenceService implements PersistenceService {
         return date;
     }
 
+    /**
+     * Row of "PublicationStatistics" a document is counted in. Months are taken in the JVM's default time zone,
+     * which is also the time zone of the database session.
+     */
+    private static final class PublicationBucket implements Comparable<PublicationBucket> {
+
+        private final String mandator;
+        private final String documentType;
+        private final int year;
+        private final int month;
+
+        PublicationBucket(String mandator, String documentType, Date distributionDate) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTime(distributionDate);
+            this.mandator = mandator;
+            this.documentType = documentType;
+            this.year = cal.get(Calendar.YEAR);
+            this.month = cal.get(Calendar.MONTH) + 1;
+        }
+
+        @Override
+        public int compareTo(PublicationBucket other) {
+            int result = mandator.compareTo(other.mandator);
+            if (result == 0) {
+                result = documentType.compareTo(other.documentType);
+            }
+            if (result == 0) {
+                result = Integer.compare(year, other.year);
+            }
+            if (result == 0) {
+                result = Integer.compare(month, other.month);
+            }
+            return result;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + mandator.hashCode();
+            result = prime * result + documentType.hashCode();
+            result = prime * result + year;
+            result = prime * result + month;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            return compareTo((PublicationBucket) obj) == 0;
+        }
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.qucosa.persistence;
+
+import java.util.Date;
+
+/**
+ * Number of publications of a mandator and documentType within one period.
+ */
+public final class PublicationCount {
+
+    private final String mandator;
+    private final String documentType;
+    private final Date periodStart;
+    private final long count;
+
+    /**
+     * @param mandator     the mandator the publications are related to
+     * @param documentType the document type of the publications
+     * @param periodStart  start of the month or year the publications have been distributed in
+     * @param count        number of publications
+     */
+    public PublicationCount(String mandator, String documentType, Date periodStart, long count) {
+        this.mandator = mandator;
+        this.documentType = documentType;
+        this.periodStart = periodStart;
+        this.count = count;
+    }
+
+    public String getMandator() {
+        return mandator;
+    }
+
+    public String getDocumentType() {
+        return documentType;
+    }
+
+    public Date getPeriodStart() {
+        return periodStart;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "PublicationCount [mandator=" + mandator + ", documentType=" + documentType + ", periodStart="
+                + periodStart + ", count=" + count + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + mandator.hashCode();
+        result = prime * result + documentType.hashCode();
+        result = prime * result + periodStart.hashCode();
+        result = prime * result + (int) (count ^ (count >>> 32));
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        PublicationCount other = (PublicationCount) obj;
+        if (!mandator.equals(other.mandator))
+            return false;
+        if (!documentType.equals(other.documentType))
+            return false;
+        if (!periodStart.equals(other.periodStart))
+            return false;
+        return count == other.count;
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.qucosa.persistence;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Read-only statistics over the ReportingDocuments of one repository.
+ */
+public interface ReportingQueryService {
+
+    /**
+     * Length of the periods publications are counted in.
+     */
+    enum Period {
+        MONTH, YEAR
+    }
+
+    /**
+     * Count the publications of every mandator and documentType per period. Periods start in the time zone of
+     * the database session.
+     *
+     * @param from     the earliest distributionDate to count, inclusive
+     * @param until    the latest distributionDate to count, exclusive
+     * @param period   length of the periods
+     * @param mandator the only mandator to count or {@code null} to count all mandators
+     * @return one entry per mandator, documentType and period with at least one publication, ordered by
+     * mandator, documentType and period. List may be empty but never {@code null}.
+     * @throws PersistenceException if any error occurred.
+     */
+    List<PublicationCount> countPublications(Date from, Date until, Period period, String mandator)
+            throws PersistenceException;
+}
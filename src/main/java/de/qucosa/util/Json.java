@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.util;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Formats values as JSON literals for the few flat documents the application writes, so no JSON library is
+ * needed.
+ */
+public class Json {
+
+    private Json() {
+    }
+
+    /**
+     * @param value the string to quote, may be {@code null}
+     * @return the quoted and escaped string or {@code null}
+     */
+    public static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                    break;
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * @param date the date to quote, may be {@code null}
+     * @return the date as quoted ISO 8601 string in UTC or {@code null}
+     */
+    public static String quote(Date date) {
+        return (date == null) ? "null" : quote(new DateTime(date, DateTimeZone.UTC).toString());
+    }
+
+    /**
+     * @param value the number to format
+     * @return the number with three decimal places
+     */
+    public static String number(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
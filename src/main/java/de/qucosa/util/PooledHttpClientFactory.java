@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.util;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.joda.time.Duration;
+
+import java.util.Collections;
+
+/**
+ * Creates the HTTP clients shared by all OAI harvesters and METS processors of the application. Connections are
+ * pooled and kept alive between requests, so consecutive requests to the same host don't pay a new TCP handshake.
+ */
+public class PooledHttpClientFactory {
+
+    /**
+     * @param poolSize         maximum number of open connections, must be at least 1
+     * @param poolSizePerRoute maximum number of open connections to one host, must be at least 1. Requests
+     *                         wait for a free connection if the limit is reached.
+     * @param connectTimeout   timeout to establish a connection or to get one from the pool
+     * @param socketTimeout    maximum time of inactivity while waiting for response data
+     * @param keepAlive        time an idle connection is kept open if the server does not send a
+     *                         {@code Keep-Alive} timeout
+     * @param compression      if {@code true}, gzip and deflate compressed responses are requested and
+     *                         transparently decompressed
+     * @return a new client. It has to be closed on shutdown.
+     * @throws IllegalArgumentException if poolSize or poolSizePerRoute is less than 1
+     */
+    public static CloseableHttpClient createHttpClient(int poolSize, int poolSizePerRoute, Duration connectTimeout,
+                                                       Duration socketTimeout, Duration keepAlive,
+                                                       boolean compression) throws IllegalArgumentException {
+        return createHttpClient(createConnectionManager(poolSize, poolSizePerRoute), connectTimeout, socketTimeout,
+                keepAlive, compression);
+    }
+
+    /**
+     * Create the connection pool of a blocking client separately, e.g. to report its statistics.
+     *
+     * @param poolSize         maximum number of open connections, must be at least 1
+     * @param poolSizePerRoute maximum number of open connections to one host, must be at least 1
+     * @return a new connection pool. It is closed with the client using it.
+     * @throws IllegalArgumentException if poolSize or poolSizePerRoute is less than 1
+     */
+    public static PoolingHttpClientConnectionManager createConnectionManager(int poolSize, int poolSizePerRoute)
+            throws IllegalArgumentException {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("parameter poolSize must be at least 1");
+        }
+        if (poolSizePerRoute < 1) {
+            throw new IllegalArgumentException("parameter poolSizePerRoute must be at least 1");
+        }
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(poolSize);
+        connectionManager.setDefaultMaxPerRoute(poolSizePerRoute);
+        return connectionManager;
+    }
+
+    /**
+     * @param connectionManager the connection pool, see {@link #createConnectionManager(int, int)}
+     * @param connectTimeout    timeout to establish a connection or to get one from the pool
+     * @param socketTimeout     maximum time of inactivity while waiting for response data
+     * @param keepAlive         time an idle connection is kept open if the server does not send a
+     *                          {@code Keep-Alive} timeout
+     * @param compression       if {@code true}, gzip and deflate compressed responses are requested and
+     *                          transparently decompressed
+     * @return a new client. It has to be closed on shutdown.
+     */
+    public static CloseableHttpClient createHttpClient(PoolingHttpClientConnectionManager connectionManager,
+                                                       Duration connectTimeout, Duration socketTimeout,
+                                                       Duration keepAlive, boolean compression) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout((int) connectTimeout.getMillis())
+                .setConnectionRequestTimeout((int) connectTimeout.getMillis())
+                .setSocketTimeout((int) socketTimeout.getMillis())
+                .setStaleConnectionCheckEnabled(true)
+                .build();
+
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(createKeepAliveStrategy(keepAlive));
+        if (!compression) {
+            builder.disableContentCompression();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Create a non-blocking client. All its requests are served by {@code ioThreads} threads, no matter how many
+     * of them are in flight. Compressed responses are requested but not decompressed by the client.
+     *
+     * @param poolSize         maximum number of open connections, must be at least 1
+     * @param poolSizePerRoute maximum number of open connections to one host, must be at least 1
+     * @param connectTimeout   timeout to establish a connection or to get one from the pool
+     * @param socketTimeout    maximum time of inactivity while waiting for response data
+     * @param keepAlive        time an idle connection is kept open if the server does not send a
+     *                         {@code Keep-Alive} timeout
+     * @param compression      if {@code true}, gzip and deflate compressed responses are requested
+     * @param ioThreads        number of I/O dispatcher threads, must be at least 1
+     * @return a new, started client. It has to be closed on shutdown.
+     * @throws IllegalArgumentException if poolSize, poolSizePerRoute or ioThreads is less than 1
+     * @throws IOReactorException       if the I/O reactor could not be created
+     */
+    public static CloseableHttpAsyncClient createAsyncHttpClient(int poolSize, int poolSizePerRoute,
+                                                                 Duration connectTimeout, Duration socketTimeout,
+                                                                 Duration keepAlive, boolean compression,
+                                                                 int ioThreads)
+            throws IllegalArgumentException, IOReactorException {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("parameter poolSize must be at least 1");
+        }
+        if (poolSizePerRoute < 1) {
+            throw new IllegalArgumentException("parameter poolSizePerRoute must be at least 1");
+        }
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("parameter ioThreads must be at least 1");
+        }
+
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads)
+                .setConnectTimeout((int) connectTimeout.getMillis())
+                .setSoTimeout((int) socketTimeout.getMillis())
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(ioReactorConfig));
+        connectionManager.setMaxTotal(poolSize);
+        connectionManager.setDefaultMaxPerRoute(poolSizePerRoute);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout((int) connectTimeout.getMillis())
+                .setConnectionRequestTimeout((int) connectTimeout.getMillis())
+                .setSocketTimeout((int) socketTimeout.getMillis())
+                .build();
+
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(createKeepAliveStrategy(keepAlive));
+        if (compression) {
+            builder.setDefaultHeaders(Collections.singletonList(
+                    new BasicHeader(HttpHeaders.ACCEPT_ENCODING, "gzip,deflate")));
+        }
+
+        CloseableHttpAsyncClient client = builder.build();
+        client.start();
+        return client;
+    }
+
+    /**
+     * The server's Keep-Alive timeout wins, the configured one is used if the server does not send any.
+     */
+    private static ConnectionKeepAliveStrategy createKeepAliveStrategy(final Duration keepAlive) {
+        return new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return (duration > 0) ? duration : keepAlive.getMillis();
+            }
+        };
+    }
+}
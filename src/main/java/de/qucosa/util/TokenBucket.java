@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.util;
+
+import org.joda.time.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread-safe token bucket rate limiter. One token is added every {@code interval}, up to
+ * {@code capacity} tokens. Each call to {@link #acquire()} takes one token and blocks until the token
+ * is available, so any number of threads sharing one bucket together never exceed the configured rate.
+ */
+public class TokenBucket {
+
+    private final long nanosPerToken;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param interval the time it takes to add one token to the bucket. A zero interval disables rate
+     *                 limiting.
+     * @param capacity the maximum number of tokens in the bucket, i.e. the number of requests that may be
+     *                 issued in a burst after the bucket had been idle.
+     * @throws IllegalArgumentException if interval is negative or capacity is less than 1
+     */
+    public TokenBucket(Duration interval, int capacity) throws IllegalArgumentException {
+        if (interval.getMillis() < 0)
+            throw new IllegalArgumentException("parameter interval must not be negative");
+        if (capacity < 1)
+            throw new IllegalArgumentException("parameter capacity must be at least 1");
+
+        this.nanosPerToken = TimeUnit.MILLISECONDS.toNanos(interval.getMillis());
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take one token from the bucket, waiting until it is available.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        if (nanosPerToken == 0) {
+            return;
+        }
+
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) / (double) nanosPerToken);
+            lastRefill = now;
+
+            // a missing token is borrowed from the future, so waiting threads are served in order
+            tokens -= 1;
+            waitNanos = (tokens < 0) ? (long) (-tokens * nanosPerToken) : 0;
+        }
+
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.util;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches {@link DocumentBuilder}s and compiled {@link XPathExpression}s per thread. Neither of them is thread-safe,
+ * and looking up their factories as well as compiling expressions is expensive, so each thread creates them once
+ * and reuses them for every document it parses.
+ */
+public class XmlParserCache {
+
+    private final boolean namespaceAware;
+    private final NamespaceContext namespaceContext;
+
+    private final ThreadLocal<CachedParsers> cachedParsers = new ThreadLocal<CachedParsers>() {
+        @Override
+        protected CachedParsers initialValue() {
+            return new CachedParsers();
+        }
+    };
+
+    /**
+     * @param namespaceAware   if the {@link DocumentBuilder}s have to be namespace aware
+     * @param namespaceContext to resolve prefixes used in XPath expressions, or {@code null} if expressions do not
+     *                         use prefixes
+     */
+    public XmlParserCache(boolean namespaceAware, NamespaceContext namespaceContext) {
+        this.namespaceAware = namespaceAware;
+        this.namespaceContext = namespaceContext;
+    }
+
+    /**
+     * @return the current thread's {@link DocumentBuilder}, reset to its initial state. It must not be passed to
+     * other threads.
+     * @throws ParserConfigurationException if no {@link DocumentBuilder} can be created
+     */
+    public DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        CachedParsers parsers = cachedParsers.get();
+        if (parsers.documentBuilder == null) {
+            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+            documentBuilderFactory.setNamespaceAware(namespaceAware);
+            parsers.documentBuilder = documentBuilderFactory.newDocumentBuilder();
+        } else {
+            parsers.documentBuilder.reset();
+        }
+        return parsers.documentBuilder;
+    }
+
+    /**
+     * @param expression the XPath expression to compile
+     * @return the current thread's compiled expression. It must not be passed to other threads.
+     * @throws XPathExpressionException if the expression can't be compiled
+     */
+    public XPathExpression getExpression(String expression) throws XPathExpressionException {
+        CachedParsers parsers = cachedParsers.get();
+        XPathExpression compiled = parsers.expressions.get(expression);
+        if (compiled == null) {
+            if (parsers.xPath == null) {
+                parsers.xPath = XPathFactory.newInstance().newXPath();
+                if (namespaceContext != null) {
+                    parsers.xPath.setNamespaceContext(namespaceContext);
+                }
+            }
+            compiled = parsers.xPath.compile(expression);
+            parsers.expressions.put(expression, compiled);
+        }
+        return compiled;
+    }
+
+    private static class CachedParsers {
+        private DocumentBuilder documentBuilder;
+        private XPath xPath;
+        private final Map<String, XPathExpression> expressions = new HashMap<>();
+    }
+}
@@ -23,11 +23,15 @@ import ch.qos.logback.core.Appender;
 import de.qucosa.fedora.oai.OaiHeader;
 import de.qucosa.persistence.PersistenceService;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHeader;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
 import org.junit.Before;
@@ -44,17 +48,29 @@ import javax.xml.bind.DatatypeConverter;
 import java.io.InputStream;
 import java.net.URI;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static de.qucosa.util.TerminateableRunner.runAndWait;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -69,6 +85,7 @@ public class MetsProcessorTest {
     private static final String METS_QUCOSA_7455_XML = "/mets/qucosa7455-mets.xml";
     private static final String METS_QUCOSA_31789_XML = "/mets/qucosa31789-mets.xml";
     private static final String METS_QUCOSA_31790_XML = "/mets/qucosa31790-mets.xml";
+    private MetsProcessorBuilder metsProcessorBuilder;
     private MetsProcessor metsHarvester;
     private HttpEntity mockedHttpEntity;
     private CloseableHttpResponse mockedHttpResponse;
@@ -97,7 +114,7 @@ public class MetsProcessorTest {
         OaiHeader qucosa13Header = new OaiHeader(recordIdentifier, datestamp, false);
         List<OaiHeader> oaiHeaders = new LinkedList<>();
         oaiHeaders.add(qucosa13Header);
-        when(mockedPersistenceService.getOaiHeaders()).thenReturn(oaiHeaders);
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
 
         // mock mets dissemination service
         when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
@@ -157,7 +174,7 @@ public class MetsProcessorTest {
         List<OaiHeader> oaiHeaders = new LinkedList<>();
         oaiHeaders.add(qucosa13Header);
         oaiHeaders.add(qucosa22Header);
-        when(mockedPersistenceService.getOaiHeaders()).thenReturn(oaiHeaders);
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
 
         // mock mets dissemination service, first response is document
         // qucosa:13, second (and any subsequent) is qucosa:22
@@ -226,7 +243,7 @@ public class MetsProcessorTest {
 
         List<OaiHeader> oaiHeaders = new LinkedList<>();
         oaiHeaders.add(qucosa31789Header);
-        when(mockedPersistenceService.getOaiHeaders()).thenReturn(oaiHeaders);
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
 
         // mock mets dissemination service
         when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
@@ -271,7 +288,7 @@ public class MetsProcessorTest {
 
         List<OaiHeader> oaiHeaders = new LinkedList<>();
         oaiHeaders.add(qucosa31790Header);
-        when(mockedPersistenceService.getOaiHeaders()).thenReturn(oaiHeaders);
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
 
         // mock mets dissemination service
         when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
@@ -305,6 +322,500 @@ public class MetsProcessorTest {
                 actualOaiHeaders.get(0));
     }
 
+    /**
+     * Process the same METS documents with the DOM parser and with the streaming parser. Both must persist equal
+     * {@link ReportingDocumentMetadata} objects.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void streamingAndDomParserProduceEqualResults() throws Exception {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        final String[] metsDocuments = {METS_QUCOSA_13_XML, METS_QUCOSA_22_XML, METS_QUCOSA_7455_XML,
+                METS_QUCOSA_31790_XML};
+        List<OaiHeader> oaiHeaders = new LinkedList<>();
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:13", dateFormat.parse("2015-12-17T16:03:17Z"), false));
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:22", dateFormat.parse("2015-12-17T16:03:21Z"), false));
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:7455", dateFormat.parse("2015-12-17T16:03:17Z"), false));
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:31790", dateFormat.parse("2016-10-10T12:24:55Z"), false));
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
+
+        // mock mets dissemination service, returning the documents in the order of the OaiHeaders, once per processor
+        when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            private int request = 0;
+
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(metsDocuments[request++ % metsDocuments.length]);
+            }
+        });
+
+        runAndWait(metsProcessorBuilder.setStreamingParser(false).build(), RUN_TIMEOUT_MILLISECONDS);
+        runAndWait(metsProcessorBuilder.setStreamingParser(true).build(), RUN_TIMEOUT_MILLISECONDS);
+
+        verify(mockedPersistenceService, atLeastOnce())
+                .addOrUpdateReportingDocuments(reportingDocumentMetadataCaptor.capture());
+        List<List<ReportingDocumentMetadata>> persistedDocuments = reportingDocumentMetadataCaptor.getAllValues();
+
+        assertEquals("Each processor should have persisted documents exactly once", 2, persistedDocuments.size());
+        assertEquals("All METS documents should have been parsed", metsDocuments.length,
+                persistedDocuments.get(0).size());
+        assertEquals(persistedDocuments.get(0), persistedDocuments.get(1));
+    }
+
+    /**
+     * Process several METS documents with a pool of workers. The persisted {@link ReportingDocumentMetadata} objects
+     * and the removed {@link OaiHeader}s must be in the order of the headers loaded from persistence, regardless of
+     * the order the requests complete in.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void concurrentWorkersPersistDocumentsInHeaderOrder() throws Exception {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        List<OaiHeader> oaiHeaders = new LinkedList<>();
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:13", dateFormat.parse("2015-12-17T16:03:17Z"), false));
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:22", dateFormat.parse("2015-12-17T16:03:21Z"), false));
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:7455", dateFormat.parse("2015-12-17T16:03:17Z"), false));
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:31790", dateFormat.parse("2016-10-10T12:24:55Z"), false));
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
+
+        // mock mets dissemination service, answering each request with the document of the requested pid
+        CloseableHttpClient mockedHttpClient = mock(CloseableHttpClient.class);
+        when(mockedHttpClient.execute(any(HttpUriRequest.class))).thenAnswer(new Answer<CloseableHttpResponse>() {
+            public CloseableHttpResponse answer(InvocationOnMock invocation) throws Exception {
+                HttpUriRequest request = (HttpUriRequest) invocation.getArguments()[0];
+                String pid = request.getURI().getQuery().substring("pid=".length());
+                HttpEntity httpEntity = mock(HttpEntity.class);
+                when(httpEntity.getContent()).thenReturn(
+                        this.getClass().getResourceAsStream("/mets/" + pid.replace(":", "") + "-mets.xml"));
+                CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+                when(httpResponse.getStatusLine()).thenReturn(mockedStatusLine);
+                when(httpResponse.getEntity()).thenReturn(httpEntity);
+                return httpResponse;
+            }
+        });
+
+        MetsProcessor concurrentMetsProcessor = new MetsProcessorBuilder(new URI("http://localhost:8080/mets/"),
+                mockedHttpClient, mockedPersistenceService)
+                .setPollingInterval(POLLING_INTERVAL)
+                .setMinimumWaittimeBetweenTwoRequests(MINIMUM_WAITTIME_BETWEEN_TWO_REQUESTS)
+                .setWorkers(3)
+                .build();
+
+        runAndWait(concurrentMetsProcessor, RUN_TIMEOUT_MILLISECONDS);
+
+        verify(mockedPersistenceService, atLeastOnce())
+                .addOrUpdateReportingDocuments(reportingDocumentMetadataCaptor.capture());
+        List<ReportingDocumentMetadata> persistedDocuments = reportingDocumentMetadataCaptor.getAllValues().get(0);
+        assertEquals("All METS documents should have been parsed", oaiHeaders.size(), persistedDocuments.size());
+        for (int i = 0; i < oaiHeaders.size(); i++) {
+            assertEquals(oaiHeaders.get(i).getRecordIdentifier(), persistedDocuments.get(i).getRecordIdentifier());
+        }
+
+        verify(mockedPersistenceService, atLeastOnce()).removeOaiHeadersIfUnmodified(oaiHeaderCaptor.capture());
+        assertEquals(oaiHeaders, oaiHeaderCaptor.getAllValues().get(0));
+    }
+
+    /**
+     * With a non-blocking client, requests are sent without waiting for responses. Responses completing in any
+     * order are parsed and persisted in header order, just like the results of concurrent workers.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void asyncRequestsPersistDocumentsInHeaderOrder() throws Exception {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        List<OaiHeader> oaiHeaders = new LinkedList<>();
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:13", dateFormat.parse("2015-12-17T16:03:17Z"), false));
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:22", dateFormat.parse("2015-12-17T16:03:21Z"), false));
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:7455", dateFormat.parse("2015-12-17T16:03:17Z"), false));
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:31790", dateFormat.parse("2016-10-10T12:24:55Z"), false));
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
+
+        // mock non-blocking mets dissemination service, completing each request on its own thread
+        CloseableHttpAsyncClient mockedAsyncHttpClient = mock(CloseableHttpAsyncClient.class);
+        when(mockedAsyncHttpClient.execute(any(HttpUriRequest.class), any(FutureCallback.class))).thenAnswer(
+                new Answer<Future<HttpResponse>>() {
+                    @SuppressWarnings("unchecked")
+                    public Future<HttpResponse> answer(InvocationOnMock invocation) throws Exception {
+                        HttpUriRequest request = (HttpUriRequest) invocation.getArguments()[0];
+                        final FutureCallback<HttpResponse> callback =
+                                (FutureCallback<HttpResponse>) invocation.getArguments()[1];
+                        String pid = request.getURI().getQuery().substring("pid=".length());
+                        HttpEntity httpEntity = mock(HttpEntity.class);
+                        when(httpEntity.getContent()).thenReturn(
+                                this.getClass().getResourceAsStream("/mets/" + pid.replace(":", "") + "-mets.xml"));
+                        final HttpResponse httpResponse = mock(HttpResponse.class);
+                        when(httpResponse.getStatusLine()).thenReturn(mockedStatusLine);
+                        when(httpResponse.getEntity()).thenReturn(httpEntity);
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                callback.completed(httpResponse);
+                            }
+                        }.start();
+                        return null;
+                    }
+                });
+
+        MetsProcessor asyncMetsProcessor = metsProcessorBuilder
+                .setAsyncHttpClient(mockedAsyncHttpClient)
+                .setMaxRequestsInFlight(2)
+                .build();
+
+        runAndWait(asyncMetsProcessor, RUN_TIMEOUT_MILLISECONDS);
+
+        verify(mockedPersistenceService, atLeastOnce())
+                .addOrUpdateReportingDocuments(reportingDocumentMetadataCaptor.capture());
+        List<ReportingDocumentMetadata> persistedDocuments = reportingDocumentMetadataCaptor.getAllValues().get(0);
+        assertEquals("All METS documents should have been parsed", oaiHeaders.size(), persistedDocuments.size());
+        for (int i = 0; i < oaiHeaders.size(); i++) {
+            assertEquals(oaiHeaders.get(i).getRecordIdentifier(), persistedDocuments.get(i).getRecordIdentifier());
+        }
+
+        verify(mockedPersistenceService, atLeastOnce()).removeOaiHeadersIfUnmodified(oaiHeaderCaptor.capture());
+        assertEquals(oaiHeaders, oaiHeaderCaptor.getAllValues().get(0));
+    }
+
+    /**
+     * Outstanding non-blocking requests are cancelled if the processor is interrupted, their headers are left in
+     * persistence.
+     *
+     * @throws Exception
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void cancelAsyncRequestsOnInterrupt() throws Exception {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        List<OaiHeader> oaiHeaders = Collections.singletonList(
+                new OaiHeader("oai:example.org:qucosa:7455", dateFormat.parse("2015-12-17T16:03:17Z"), false));
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
+
+        // mock non-blocking mets dissemination service that never answers
+        Future<HttpResponse> pendingRequest = mock(Future.class);
+        CloseableHttpAsyncClient mockedAsyncHttpClient = mock(CloseableHttpAsyncClient.class);
+        when(mockedAsyncHttpClient.execute(any(HttpUriRequest.class), any(FutureCallback.class)))
+                .thenReturn(pendingRequest);
+
+        MetsProcessor asyncMetsProcessor = metsProcessorBuilder
+                .setAsyncHttpClient(mockedAsyncHttpClient)
+                .build();
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        executorService.execute(asyncMetsProcessor);
+        asyncMetsProcessor.terminate();
+        verify(mockedAsyncHttpClient, timeout(RUN_TIMEOUT_MILLISECONDS))
+                .execute(any(HttpUriRequest.class), any(FutureCallback.class));
+
+        executorService.shutdownNow();
+        assertTrue(executorService.awaitTermination(RUN_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS));
+
+        verify(pendingRequest).cancel(true);
+        verify(mockedPersistenceService).removeOaiHeadersIfUnmodified(oaiHeaderCaptor.capture());
+        assertTrue(oaiHeaderCaptor.getValue().isEmpty());
+    }
+
+    /**
+     * Headers not newer than the stored document are removed from persistence without requesting the METS
+     * document again.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void skipUnchangedDocuments() throws Exception {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        Date datestamp = dateFormat.parse("2015-12-17T16:03:17Z");
+        List<OaiHeader> oaiHeaders = Collections.singletonList(
+                new OaiHeader("oai:example.org:qucosa:7455", datestamp, false));
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
+        when(mockedPersistenceService.getReportingDocumentsHeaderLastModified(Collections.singletonList(
+                "oai:example.org:qucosa:7455"))).thenReturn(Collections.singletonMap(
+                "oai:example.org:qucosa:7455", datestamp));
+
+        CloseableHttpClient mockedHttpClient = mock(CloseableHttpClient.class);
+        MetsProcessor skippingMetsProcessor = new MetsProcessorBuilder(new URI("http://localhost:8080/mets/"),
+                mockedHttpClient, mockedPersistenceService)
+                .setPollingInterval(POLLING_INTERVAL)
+                .setMinimumWaittimeBetweenTwoRequests(MINIMUM_WAITTIME_BETWEEN_TWO_REQUESTS)
+                .setSkipUnchanged(true)
+                .build();
+
+        runAndWait(skippingMetsProcessor, RUN_TIMEOUT_MILLISECONDS);
+
+        verify(mockedHttpClient, never()).execute(any(HttpUriRequest.class));
+        verify(mockedPersistenceService, atLeastOnce()).removeOaiHeadersIfUnmodified(oaiHeaderCaptor.capture());
+        assertEquals(oaiHeaders, oaiHeaderCaptor.getAllValues().get(0));
+    }
+
+    /**
+     * Deleted records are removed from persistence without requesting their METS document.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void removeDeletedDocumentsWithoutRequest() throws Exception {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        List<OaiHeader> oaiHeaders = Collections.singletonList(
+                new OaiHeader("oai:example.org:qucosa:7455", dateFormat.parse("2015-12-17T16:03:17Z"), true));
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
+
+        CloseableHttpClient mockedHttpClient = mock(CloseableHttpClient.class);
+        MetsProcessor metsProcessor = new MetsProcessorBuilder(new URI("http://localhost:8080/mets/"),
+                mockedHttpClient, mockedPersistenceService)
+                .setPollingInterval(POLLING_INTERVAL)
+                .setMinimumWaittimeBetweenTwoRequests(MINIMUM_WAITTIME_BETWEEN_TWO_REQUESTS)
+                .build();
+
+        runAndWait(metsProcessor, RUN_TIMEOUT_MILLISECONDS);
+
+        verify(mockedHttpClient, never()).execute(any(HttpUriRequest.class));
+        verify(mockedPersistenceService, atLeastOnce()).removeReportingDocuments(
+                Collections.singletonList("oai:example.org:qucosa:7455"));
+        verify(mockedPersistenceService, atLeastOnce()).removeOaiHeadersIfUnmodified(oaiHeaderCaptor.capture());
+        assertEquals(oaiHeaders, oaiHeaderCaptor.getAllValues().get(0));
+    }
+
+    /**
+     * Stored documents are requested with {@code If-Modified-Since} set to the date they have last been fetched,
+     * not to the datestamp of their header. A {@code 304 Not Modified} response removes the header without
+     * updating the document.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void requestStoredDocumentsIfModifiedSince() throws Exception {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        Date storedDatestamp = DatatypeConverter.parseDateTime("2015-12-17T16:03:17Z").getTime();
+        Date lastFetched = DatatypeConverter.parseDateTime("2015-12-18T09:30:00Z").getTime();
+        List<OaiHeader> oaiHeaders = Collections.singletonList(
+                new OaiHeader("oai:example.org:qucosa:7455", dateFormat.parse("2016-01-01T00:00:00Z"), false));
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
+        when(mockedPersistenceService.getReportingDocumentsHeaderLastModified(Collections.singletonList(
+                "oai:example.org:qucosa:7455"))).thenReturn(Collections.singletonMap(
+                "oai:example.org:qucosa:7455", storedDatestamp));
+        when(mockedPersistenceService.getReportingDocumentsLastFetched(Collections.singletonList(
+                "oai:example.org:qucosa:7455"))).thenReturn(Collections.singletonMap(
+                "oai:example.org:qucosa:7455", lastFetched));
+        when(mockedStatusLine.getStatusCode()).thenReturn(HttpStatus.SC_NOT_MODIFIED);
+
+        CloseableHttpClient mockedHttpClient = mock(CloseableHttpClient.class);
+        when(mockedHttpClient.execute(any(HttpUriRequest.class))).thenReturn(mockedHttpResponse);
+        MetsProcessor conditionalMetsProcessor = new MetsProcessorBuilder(new URI("http://localhost:8080/mets/"),
+                mockedHttpClient, mockedPersistenceService)
+                .setPollingInterval(POLLING_INTERVAL)
+                .setMinimumWaittimeBetweenTwoRequests(MINIMUM_WAITTIME_BETWEEN_TWO_REQUESTS)
+                .setSkipUnchanged(true)
+                .setConditionalRequests(true)
+                .build();
+
+        runAndWait(conditionalMetsProcessor, RUN_TIMEOUT_MILLISECONDS);
+
+        ArgumentCaptor<HttpUriRequest> requestCaptor = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(mockedHttpClient, atLeastOnce()).execute(requestCaptor.capture());
+        assertEquals("Fri, 18 Dec 2015 09:30:00 GMT",
+                requestCaptor.getValue().getFirstHeader("If-Modified-Since").getValue());
+
+        verify(mockedPersistenceService, atLeastOnce())
+                .addOrUpdateReportingDocuments(reportingDocumentMetadataCaptor.capture());
+        assertTrue(reportingDocumentMetadataCaptor.getAllValues().get(0).isEmpty());
+        verify(mockedPersistenceService, atLeastOnce()).removeOaiHeadersIfUnmodified(oaiHeaderCaptor.capture());
+        assertEquals(oaiHeaders, oaiHeaderCaptor.getAllValues().get(0));
+    }
+
+    /**
+     * The {@code Last-Modified} date of a successful response is stored with the document, to be sent as
+     * {@code If-Modified-Since} next time.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void storeLastModifiedOfResponse() throws Exception {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        List<OaiHeader> oaiHeaders = Collections.singletonList(
+                new OaiHeader("oai:example.org:qucosa:7455", dateFormat.parse("2015-12-17T16:03:17Z"), false));
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
+        when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(METS_QUCOSA_7455_XML);
+            }
+        });
+        when(mockedHttpResponse.getFirstHeader("Last-Modified"))
+                .thenReturn(new BasicHeader("Last-Modified", "Fri, 18 Dec 2015 09:30:00 GMT"));
+
+        runAndWait(metsHarvester, RUN_TIMEOUT_MILLISECONDS);
+
+        verify(mockedPersistenceService, atLeastOnce())
+                .addOrUpdateReportingDocuments(reportingDocumentMetadataCaptor.capture());
+        assertEquals(DatatypeConverter.parseDateTime("2015-12-18T09:30:00Z").getTime(),
+                reportingDocumentMetadataCaptor.getAllValues().get(0).get(0).getLastFetched());
+    }
+
+    /**
+     * The {@link MetsProcessor} pages through the queue of {@link OaiHeader}s, passing the last header of a page as
+     * position to read the next page from. After reaching the end of the queue, it starts over with the oldest header.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void readOaiHeadersPageByPage() throws Exception {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        final OaiHeader qucosa13Header = new OaiHeader("oai:example.org:qucosa:13",
+                dateFormat.parse("2015-12-17T16:03:17Z"), false);
+        final OaiHeader qucosa22Header = new OaiHeader("oai:example.org:qucosa:22",
+                dateFormat.parse("2015-12-17T16:03:21Z"), false);
+        final List<OaiHeader> firstPage = new LinkedList<>();
+        firstPage.add(qucosa13Header);
+        final List<OaiHeader> secondPage = new LinkedList<>();
+        secondPage.add(qucosa22Header);
+
+        // first page, second page, end of queue, first page again
+        final List<Object[]> requestedPositions = new LinkedList<>();
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt()))
+                .thenAnswer(new Answer<List<OaiHeader>>() {
+                    public List<OaiHeader> answer(InvocationOnMock invocation) {
+                        requestedPositions.add(invocation.getArguments());
+                        switch (requestedPositions.size()) {
+                            case 1:
+                                return firstPage;
+                            case 2:
+                                return secondPage;
+                            case 3:
+                                return new LinkedList<>();
+                            default:
+                                metsHarvester.terminate();
+                                return new LinkedList<>();
+                        }
+                    }
+                });
+        when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(METS_QUCOSA_13_XML);
+            }
+        });
+
+        metsHarvester = metsProcessorBuilder.setPageSize(1).build();
+        metsHarvester.run();
+
+        assertEquals(4, requestedPositions.size());
+        assertEquals(Arrays.asList(null, null, 1), Arrays.asList(requestedPositions.get(0)));
+        assertEquals(Arrays.<Object>asList(qucosa13Header.getDatestamp(), qucosa13Header.getRecordIdentifier(), 1),
+                Arrays.asList(requestedPositions.get(1)));
+        assertEquals(Arrays.<Object>asList(qucosa22Header.getDatestamp(), qucosa22Header.getRecordIdentifier(), 1),
+                Arrays.asList(requestedPositions.get(2)));
+        assertEquals(Arrays.asList(null, null, 1), Arrays.asList(requestedPositions.get(3)));
+    }
+
+    /**
+     * If a lease owner is configured, the {@link MetsProcessor} claims {@link OaiHeader}s instead of reading the
+     * queue page by page.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void claimOaiHeadersIfLeaseOwnerIsSet() throws Exception {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        List<OaiHeader> oaiHeaders = new LinkedList<>();
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:13", dateFormat.parse("2015-12-17T16:03:17Z"), false));
+        Duration leaseDuration = Duration.standardMinutes(5);
+        when(mockedPersistenceService.claimOaiHeaders("node-1", leaseDuration, 10)).thenReturn(oaiHeaders);
+        when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(METS_QUCOSA_13_XML);
+            }
+        });
+
+        runAndWait(metsProcessorBuilder.setPageSize(10).setLeaseOwner("node-1").setLeaseDuration(leaseDuration)
+                .build(), RUN_TIMEOUT_MILLISECONDS);
+
+        verify(mockedPersistenceService, never()).getOaiHeaders(any(Date.class), anyString(), anyInt());
+        verify(mockedPersistenceService, atLeastOnce()).removeOaiHeadersIfUnmodified(oaiHeaderCaptor.capture());
+        assertEquals(oaiHeaders, oaiHeaderCaptor.getAllValues().get(0));
+    }
+
+    /**
+     * With notifications enabled, an idle {@link MetsProcessor} waits for new {@link OaiHeader}s instead of sleeping
+     * for the whole polling interval, and processes them as soon as it is notified.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void wakeUpOnNewOaiHeaders() throws Exception {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        final List<OaiHeader> oaiHeaders = new LinkedList<>();
+        oaiHeaders.add(new OaiHeader("oai:example.org:qucosa:13", dateFormat.parse("2015-12-17T16:03:17Z"), false));
+
+        // empty queue, notification, new header
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt()))
+                .thenAnswer(new Answer<List<OaiHeader>>() {
+                    private int request = 0;
+
+                    public List<OaiHeader> answer(InvocationOnMock invocation) {
+                        switch (request++) {
+                            case 0:
+                                return new LinkedList<>();
+                            case 1:
+                                metsHarvester.terminate();
+                                return oaiHeaders;
+                            default:
+                                return new LinkedList<>();
+                        }
+                    }
+                });
+        when(mockedPersistenceService.awaitOaiHeadersAdded(any(Duration.class))).thenReturn(true);
+        when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(METS_QUCOSA_13_XML);
+            }
+        });
+
+        metsHarvester = metsProcessorBuilder.setPollingInterval(Duration.standardHours(1)).setNotifications(true)
+                .build();
+        long start = System.currentTimeMillis();
+        metsHarvester.run();
+
+        assertTrue("Processor should not have slept for the polling interval",
+                System.currentTimeMillis() - start < RUN_TIMEOUT_MILLISECONDS);
+        verify(mockedPersistenceService).awaitOaiHeadersAdded(any(Duration.class));
+        verify(mockedPersistenceService).removeOaiHeadersIfUnmodified(oaiHeaders);
+    }
+
+    /**
+     * Headers handed over by the harvester are processed without reading them from persistence, and are removed from
+     * persistence afterwards.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void processHandedOverHeaders() throws Exception {
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        OaiHeader qucosa13Header = new OaiHeader("oai:example.org:qucosa:13",
+                dateFormat.parse("2015-12-17T16:03:17Z"), false);
+        BlockingQueue<OaiHeader> handoffQueue = new ArrayBlockingQueue<>(10);
+        handoffQueue.add(qucosa13Header);
+        when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(METS_QUCOSA_13_XML);
+            }
+        });
+
+        runAndWait(metsProcessorBuilder.setHandoffQueue(handoffQueue).build(), RUN_TIMEOUT_MILLISECONDS);
+
+        assertTrue(handoffQueue.isEmpty());
+        verify(mockedPersistenceService, never()).getOaiHeaders(any(Date.class), anyString(), anyInt());
+        verify(mockedPersistenceService).removeOaiHeadersIfUnmodified(Collections.singletonList(qucosa13Header));
+    }
+
     /**
      * In case the METS dissemination service's http response does not contain a message entity, no
      * {@link ReportingDocumentMetadata} is written to persistence. A message is written to error log, containing the
@@ -324,7 +835,7 @@ public class MetsProcessorTest {
 
         List<OaiHeader> oaiHeaders = new LinkedList<>();
         oaiHeaders.add(qucosa13Header);
-        when(mockedPersistenceService.getOaiHeaders()).thenReturn(oaiHeaders);
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
 
         // mock mets dissemination service, returning no message entity in its response
         when(mockedHttpResponse.getEntity()).thenReturn(null);
@@ -384,7 +895,7 @@ public class MetsProcessorTest {
 
         List<OaiHeader> oaiHeaders = new LinkedList<>();
         oaiHeaders.add(qucosa13Header);
-        when(mockedPersistenceService.getOaiHeaders()).thenReturn(oaiHeaders);
+        when(mockedPersistenceService.getOaiHeaders(any(Date.class), anyString(), anyInt())).thenReturn(oaiHeaders);
 
         // mock mets dissemination service, returning HTTP 404
         when(mockedStatusLine.getStatusCode()).thenReturn(HttpStatus.SC_NOT_FOUND);
@@ -441,12 +952,11 @@ public class MetsProcessorTest {
         mockedHttpEntity = mock(HttpEntity.class);
         when(mockedHttpResponse.getEntity()).thenReturn(mockedHttpEntity);
 
-        metsHarvester = new MetsProcessor(
-                new URI("http://localhost:8080/mets/"),
-                POLLING_INTERVAL,
-                MINIMUM_WAITTIME_BETWEEN_TWO_REQUESTS,
-                mockedPersistenceService,
-                mockedHttpClient);
+        metsProcessorBuilder = new MetsProcessorBuilder(new URI("http://localhost:8080/mets/"), mockedHttpClient,
+                mockedPersistenceService)
+                .setPollingInterval(POLLING_INTERVAL)
+                .setMinimumWaittimeBetweenTwoRequests(MINIMUM_WAITTIME_BETWEEN_TWO_REQUESTS);
+        metsHarvester = metsProcessorBuilder.build();
 
     }
 
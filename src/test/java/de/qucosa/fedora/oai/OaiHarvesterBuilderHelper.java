@@ -42,7 +42,8 @@ public class OaiHarvesterBuilderHelper extends OaiHarvesterBuilder {
     public OaiHarvester build() {
         return new OaiHarvester(getUriToHarvest(), pollingIntervalUnitTest, minimumWaittimeBetweenTwoRequests,  
                 getOaiHeaderFilter(), getPersistenceService(), getOaiRunResultHistory(), isUseFC3CompatibilityMode(),
-                getHttpClient());
+                isUseStreamingParser(), isUseLeaderElection(), getHandoffQueue(), isUsePrefetch(), getBootstrapSlices(),
+                getSetSpec(), getHttpClient(), getMetricsRegistry());
     }
     
     /**
@@ -30,6 +30,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -42,6 +43,8 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import static de.qucosa.util.TerminateableRunner.runAndWait;
 import static org.junit.Assert.assertEquals;
@@ -50,7 +53,12 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -73,7 +81,9 @@ public class OaiHarvesterTest {
     private static final String OAI_ERROR_MULTIPLE_ERRORS_XML = "/oai/multipleErrors.xml";
     private static final String OAI_EMPTY_RESUMPTION_TOKEN_XML = "/oai/emptyResumptionToken.xml";
     private static final String OAI_IDENTIFIERS_TO_FILTER_XML = "/oai/ListIdentifiersToFilter.xml";
+    private static final String OAI_IDENTIFY_XML = "/oai/identify.xml";
     private CloseableHttpClient mockedHttpClient;
+    private CloseableHttpResponse mockedHttpResponse;
     private HttpEntity mockedHttpEntity;
     private PersistenceService mockedPersistenceService;
     private StatusLine mockedStatusLine;
@@ -114,6 +124,226 @@ public class OaiHarvesterTest {
         verify(mockedPersistenceService, atLeastOnce()).addOrUpdateOaiHeaders(expectedHeaders);
     }
 
+    /**
+     * With leader election enabled, a harvester that does not get the harvester lock must not harvest.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void doNotHarvestWithoutHarvesterLock() throws Exception {
+
+        when(mockedPersistenceService.tryAcquireLock(anyString())).thenReturn(false);
+        oaiHarvester = createDefaultOaiHarvesterBuilderHelper().setLeaderElection(true).build();
+
+        runAndWait(oaiHarvester, RUN_TIMEOUT_MILLISECONDS);
+
+        verify(mockedHttpClient, never()).execute(any(HttpUriRequest.class));
+        verify(mockedPersistenceService, never()).addOrUpdateOaiHeaders(anyListOf(OaiHeader.class));
+        verify(mockedPersistenceService, never()).storeOaiRunResult(any(OaiRunResult.class));
+    }
+
+    /**
+     * With leader election enabled, the harvester holding the harvester lock harvests and releases the lock when
+     * terminated.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void harvestWithHarvesterLock() throws Exception {
+
+        when(mockedPersistenceService.tryAcquireLock(anyString())).thenReturn(true);
+        when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(OAI_LIST_IDENTIFIERS_XML);
+            }
+        });
+        oaiHarvester = createDefaultOaiHarvesterBuilderHelper().setLeaderElection(true).build();
+
+        runAndWait(oaiHarvester, RUN_TIMEOUT_MILLISECONDS);
+
+        verify(mockedPersistenceService, atLeastOnce()).addOrUpdateOaiHeaders(anyListOf(OaiHeader.class));
+        verify(mockedPersistenceService).releaseLock(anyString());
+    }
+
+    /**
+     * Persisted headers are offered to the handoff queue. If the queue is full, the remaining headers are left to
+     * persistence only and harvesting is not blocked.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void handOverPersistedHeaders() throws Exception {
+
+        when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(OAI_LIST_IDENTIFIERS_XML);
+            }
+        });
+        BlockingQueue<OaiHeader> handoffQueue = new ArrayBlockingQueue<>(1);
+        oaiHarvester = createDefaultOaiHarvesterBuilderHelper().setHandoffQueue(handoffQueue).build();
+
+        runAndWait(oaiHarvester, RUN_TIMEOUT_MILLISECONDS);
+
+        verify(mockedPersistenceService, atLeastOnce()).addOrUpdateOaiHeaders(oaiHeaderCaptor.capture());
+        assertEquals("Two headers should have been persisted", 2, oaiHeaderCaptor.getAllValues().get(0).size());
+        assertEquals("Only the first header fits into the queue", 1, handoffQueue.size());
+        assertEquals(oaiHeaderCaptor.getAllValues().get(0).get(0), handoffQueue.peek());
+    }
+
+    /**
+     * With prefetching enabled, the page following a resumption token is requested without reading the last
+     * {@link OaiRunResult} from persistence again. Each page's {@link OaiRunResult} is stored after its headers.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void prefetchNextPageOfPaginatedResponse() throws Exception {
+
+        when(mockedPersistenceService.getLastOaiRunResult()).thenReturn(null);
+        when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            private int requests = 0;
+
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(
+                        (requests++ == 0) ? OAI_RESUMPTION_TOKEN_XML : OAI_EMPTY_RESUMPTION_TOKEN_XML);
+            }
+        });
+        oaiHarvester = createDefaultOaiHarvesterBuilderHelper().setPrefetch(true).build();
+        // run on this thread until the second page has been checkpointed
+        doAnswer(new Answer<Void>() {
+            private int runResults = 0;
+
+            public Void answer(InvocationOnMock invocation) {
+                if (++runResults == 2) {
+                    oaiHarvester.terminate();
+                }
+                return null;
+            }
+        }).when(mockedPersistenceService).storeOaiRunResult(any(OaiRunResult.class));
+
+        oaiHarvester.run();
+
+        ArgumentCaptor<HttpUriRequest> requestCaptor = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(mockedHttpClient, atLeast(2)).execute(requestCaptor.capture());
+        assertTrue("Second request must continue the paginated response",
+                requestCaptor.getAllValues().get(1).getURI().getQuery().contains("resumptionToken=111111111111111"));
+
+        ArgumentCaptor<OaiRunResult> runResultCaptor = ArgumentCaptor.forClass(OaiRunResult.class);
+        InOrder inOrder = inOrder(mockedPersistenceService);
+        inOrder.verify(mockedPersistenceService).addOrUpdateOaiHeaders(anyListOf(OaiHeader.class));
+        inOrder.verify(mockedPersistenceService).storeOaiRunResult(runResultCaptor.capture());
+        inOrder.verify(mockedPersistenceService).addOrUpdateOaiHeaders(anyListOf(OaiHeader.class));
+        inOrder.verify(mockedPersistenceService).storeOaiRunResult(runResultCaptor.capture());
+        assertEquals("111111111111111", runResultCaptor.getAllValues().get(0).getResumptionToken());
+        assertEquals("", runResultCaptor.getAllValues().get(1).getResumptionToken());
+    }
+
+    /**
+     * Without a last {@link OaiRunResult}, the range from the data provider's earliest datestamp until now is
+     * harvested in date range slices. Once all slices are completed, an {@link OaiRunResult} is stored and the
+     * slices' progress is removed.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void harvestInitialRunInDateRangeSlices() throws Exception {
+
+        final CloseableHttpResponse identifyResponse = mock(CloseableHttpResponse.class);
+        when(identifyResponse.getStatusLine()).thenReturn(mockedStatusLine);
+        HttpEntity identifyEntity = mock(HttpEntity.class);
+        when(identifyResponse.getEntity()).thenReturn(identifyEntity);
+        when(identifyEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(OAI_IDENTIFY_XML);
+            }
+        });
+        when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(OAI_LIST_IDENTIFIERS_XML);
+            }
+        });
+        when(mockedHttpClient.execute(any(HttpUriRequest.class))).thenAnswer(new Answer<CloseableHttpResponse>() {
+            public CloseableHttpResponse answer(InvocationOnMock invocation) {
+                HttpUriRequest request = (HttpUriRequest) invocation.getArguments()[0];
+                return request.getURI().getQuery().contains("verb=Identify") ? identifyResponse
+                        : mockedHttpResponse;
+            }
+        });
+        when(mockedPersistenceService.getLastOaiRunResult()).thenReturn(null);
+
+        oaiHarvester = createDefaultOaiHarvesterBuilderHelper().setBootstrapSlices(3).build();
+        // run on this thread until the initial harvest has been completed
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                oaiHarvester.terminate();
+                return null;
+            }
+        }).when(mockedPersistenceService).storeOaiRunResult(any(OaiRunResult.class));
+
+        oaiHarvester.run();
+
+        ArgumentCaptor<OaiSliceRunResult> sliceCaptor = ArgumentCaptor.forClass(OaiSliceRunResult.class);
+        verify(mockedPersistenceService, atLeast(6)).storeOaiSliceRunResult(sliceCaptor.capture());
+        int completedSlices = 0;
+        for (OaiSliceRunResult slice : sliceCaptor.getAllValues()) {
+            if (slice.isCompleted()) {
+                completedSlices++;
+            }
+        }
+        assertEquals(3, completedSlices);
+
+        ArgumentCaptor<HttpUriRequest> requestCaptor = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(mockedHttpClient, atLeast(4)).execute(requestCaptor.capture());
+        int sliceRequests = 0;
+        for (HttpUriRequest request : requestCaptor.getAllValues()) {
+            String query = request.getURI().getQuery();
+            if (query.contains("verb=ListIdentifiers")) {
+                assertTrue("Slice must be requested with from and until parameters: " + query,
+                        query.contains("from=") && query.contains("until="));
+                assertFalse("From parameter must not end with 'Z' in FC3 compatibility mode: " + query,
+                        query.matches(".*from=[^&]*Z.*"));
+                sliceRequests++;
+            }
+        }
+        assertEquals(3, sliceRequests);
+
+        ArgumentCaptor<OaiRunResult> runResultCaptor = ArgumentCaptor.forClass(OaiRunResult.class);
+        InOrder inOrder = inOrder(mockedPersistenceService);
+        inOrder.verify(mockedPersistenceService).storeOaiRunResult(runResultCaptor.capture());
+        inOrder.verify(mockedPersistenceService).removeOaiSliceRunResults();
+        assertFalse(runResultCaptor.getValue().hasResumptionToken());
+        assertTrue(runResultCaptor.getValue().hasNextFromTimestamp());
+    }
+
+    /**
+     * A harvester restricted to an OAI set sends the set parameter and keeps its own {@link OaiRunResult}
+     * checkpoints.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void harvestSingleSet() throws Exception {
+
+        when(mockedPersistenceService.getLastOaiRunResult("test:11")).thenReturn(null);
+        when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(OAI_LIST_IDENTIFIERS_XML);
+            }
+        });
+        oaiHarvester = createDefaultOaiHarvesterBuilderHelper().setSetSpec("test:11").build();
+
+        runAndWait(oaiHarvester, RUN_TIMEOUT_MILLISECONDS);
+
+        ArgumentCaptor<HttpUriRequest> requestCaptor = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(mockedHttpClient, atLeastOnce()).execute(requestCaptor.capture());
+        assertTrue(requestCaptor.getAllValues().get(0).getURI().getQuery().contains("set=test:11"));
+
+        ArgumentCaptor<OaiRunResult> runResultCaptor = ArgumentCaptor.forClass(OaiRunResult.class);
+        verify(mockedPersistenceService, atLeastOnce()).storeOaiRunResult(runResultCaptor.capture());
+        assertEquals("test:11", runResultCaptor.getValue().getSetSpec());
+        verify(mockedPersistenceService, never()).getLastOaiRunResult();
+    }
+
     /*----  test filtering of harvested OAI headers  ----*/
 
     /**
@@ -154,6 +384,46 @@ public class OaiHarvesterTest {
         }
     }
 
+    /*----  test streaming and DOM parser produce the same results  ----*/
+
+    /**
+     * Harvest the same response with the DOM parser and with the streaming parser. Both must persist equal
+     * {@link OaiHeader}s and equal {@link OaiRunResult}s (except for the timestampOfRun).
+     *
+     * @throws Exception
+     */
+    @Test
+    public void streamingAndDomParserProduceEqualResults() throws Exception {
+
+        when(mockedHttpEntity.getContent()).thenAnswer(new Answer<InputStream>() {
+            public InputStream answer(InvocationOnMock invocation) {
+                return this.getClass().getResourceAsStream(OAI_RESUMPTION_TOKEN_XML);
+            }
+        });
+
+        runAndWait(createDefaultOaiHarvesterBuilderHelper().setStreamingParser(false).build(),
+                RUN_TIMEOUT_MILLISECONDS);
+        runAndWait(createDefaultOaiHarvesterBuilderHelper().setStreamingParser(true).build(),
+                RUN_TIMEOUT_MILLISECONDS);
+
+        verify(mockedPersistenceService, atLeastOnce()).addOrUpdateOaiHeaders(oaiHeaderCaptor.capture());
+        List<List<OaiHeader>> persistedHeaders = oaiHeaderCaptor.getAllValues();
+        assertEquals("Each harvester should have persisted headers exactly once", 2, persistedHeaders.size());
+        assertFalse("No headers have been parsed", persistedHeaders.get(0).isEmpty());
+        assertEquals(persistedHeaders.get(0), persistedHeaders.get(1));
+
+        ArgumentCaptor<OaiRunResult> captor = ArgumentCaptor.forClass(OaiRunResult.class);
+        verify(mockedPersistenceService, atLeastOnce()).storeOaiRunResult(captor.capture());
+        OaiRunResult domRunResult = captor.getAllValues().get(0);
+        OaiRunResult streamingRunResult = captor.getAllValues().get(1);
+
+        assertEquals(domRunResult.getResponseDate(), streamingRunResult.getResponseDate());
+        assertEquals(domRunResult.getResumptionToken(), streamingRunResult.getResumptionToken());
+        assertEquals(domRunResult.getResumptionTokenExpirationDate(),
+                streamingRunResult.getResumptionTokenExpirationDate());
+        assertEquals(domRunResult.getNextFromTimestamp(), streamingRunResult.getNextFromTimestamp());
+    }
+
     /*---- Begin test logic for processing of resumption tokens and nextFromValues  ----*/
 
     /*---- Begin test 4 combinations of last OaiRunResult's resumptionToken and nextFromTimestamp to build GET request ---- */
@@ -790,7 +1060,7 @@ public class OaiHarvesterTest {
         mockedPersistenceService = mock(PersistenceService.class);
 
         mockedHttpClient = mock(CloseableHttpClient.class);
-        CloseableHttpResponse mockedHttpResponse = mock(CloseableHttpResponse.class);
+        mockedHttpResponse = mock(CloseableHttpResponse.class);
         when(mockedHttpClient.execute(any(HttpUriRequest.class))).thenReturn(mockedHttpResponse);
         mockedStatusLine = mock(StatusLine.class);
         when(mockedHttpResponse.getStatusLine()).thenReturn(mockedStatusLine);
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.fedora.reporting;
+
+import de.qucosa.fedora.oai.OaiRunResult;
+import de.qucosa.metrics.MetricsRegistry;
+import de.qucosa.persistence.PersistenceException;
+import de.qucosa.persistence.PersistenceService;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StatusMonitorTest {
+
+    private static final Date NOW = new DateTime(2017, 6, 1, 12, 0, 0, DateTimeZone.UTC).toDate();
+
+    private PersistenceService persistenceService;
+    private MetricsRegistry metricsRegistry;
+    private StatusMonitor statusMonitor;
+
+    @Before
+    public void setUp() {
+        persistenceService = mock(PersistenceService.class);
+        metricsRegistry = new MetricsRegistry();
+        statusMonitor = new StatusMonitor(null, null);
+    }
+
+    /**
+     * The snapshot contains the last run of every set with the age and remaining lifetime of its resumption
+     * token.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void reportsResumptionTokenAge() throws Exception {
+        Date timestampOfRun = new DateTime(NOW).minusMinutes(2).toDate();
+        Date expirationDate = new DateTime(NOW).plusMinutes(8).toDate();
+        when(persistenceService.getLastOaiRunResult("ddc:020")).thenReturn(
+                new OaiRunResult(timestampOfRun, timestampOfRun, "token", expirationDate, null, "ddc:020"));
+        statusMonitor.addRepository("qucosa", persistenceService, Arrays.asList("ddc:020", "ddc:100"),
+                metricsRegistry);
+
+        String snapshot = statusMonitor.createSnapshot(NOW, 0);
+
+        assertTrue(snapshot, snapshot.startsWith("{\"snapshotTime\":\"2017-06-01T12:00:00.000Z\","));
+        assertTrue(snapshot, snapshot.contains("{\"setSpec\":\"ddc:020\",\"timestampOfRun\":\"2017-06-01T11:58:00.000Z\""));
+        assertTrue(snapshot, snapshot.contains("\"resumptionToken\":\"token\",\"resumptionTokenAgeSeconds\":120"));
+        assertTrue(snapshot, snapshot.contains("\"resumptionTokenExpiresInSeconds\":480"));
+        assertTrue(snapshot, snapshot.contains("{\"setSpec\":\"ddc:100\"}"));
+    }
+
+    /**
+     * The backlog is counted on refresh and reported by the gauge without accessing the database.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void reportsOaiHeaderBacklog() throws Exception {
+        when(persistenceService.countOaiHeaders()).thenReturn(42, 43);
+        statusMonitor.addRepository("", persistenceService, Collections.<String>singletonList(null),
+                metricsRegistry);
+
+        String snapshot = statusMonitor.createSnapshot(NOW, 0);
+
+        assertTrue(snapshot, snapshot.contains("\"oaiHeaderBacklog\":42"));
+        assertEquals("value=42", metricsRegistry.getMetrics().get("oai.headers.backlog").toString());
+    }
+
+    /**
+     * The backlog is recounted only after {@link StatusMonitor#BACKLOG_REFRESH_INTERVAL}, snapshots in between
+     * report the last count.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void recountsOaiHeaderBacklogOnSlowerInterval() throws Exception {
+        when(persistenceService.countOaiHeaders()).thenReturn(42, 43);
+        statusMonitor.addRepository("", persistenceService, Collections.<String>singletonList(null),
+                metricsRegistry);
+
+        statusMonitor.createSnapshot(NOW, 0);
+        String cached = statusMonitor.createSnapshot(NOW, TimeUnit.SECONDS.toNanos(5));
+        String recounted = statusMonitor.createSnapshot(NOW,
+                TimeUnit.MILLISECONDS.toNanos(StatusMonitor.BACKLOG_REFRESH_INTERVAL.getMillis()));
+
+        assertTrue(cached, cached.contains("\"oaiHeaderBacklog\":42"));
+        assertTrue(recounted, recounted.contains("\"oaiHeaderBacklog\":43"));
+        verify(persistenceService, times(2)).countOaiHeaders();
+    }
+
+    @Test
+    public void reportsFailedBacklogCount() throws Exception {
+        when(persistenceService.countOaiHeaders()).thenThrow(new PersistenceException("connection refused"));
+        statusMonitor.addRepository("", persistenceService, Collections.<String>singletonList(null),
+                metricsRegistry);
+
+        String snapshot = statusMonitor.createSnapshot(NOW, 0);
+
+        assertTrue(snapshot, snapshot.contains("\"oaiHeaderBacklog\":-1"));
+    }
+
+    /**
+     * The snapshot contains the statistics of the shared HTTP connection pool.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void reportsHttpPool() throws Exception {
+        PoolingHttpClientConnectionManager httpConnectionManager = new PoolingHttpClientConnectionManager();
+        httpConnectionManager.setMaxTotal(10);
+
+        String snapshot = new StatusMonitor(null, httpConnectionManager).createSnapshot(NOW, 0);
+
+        assertTrue(snapshot, snapshot.contains(
+                "\"httpPool\":{\"leased\":0,\"available\":0,\"pending\":0,\"max\":10}"));
+    }
+
+    /**
+     * The throughput counts all documents processed by the MetsProcessor between two refreshes.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void reportsMetsThroughput() throws Exception {
+        statusMonitor.addRepository("", persistenceService, Collections.<String>singletonList(null),
+                metricsRegistry);
+        statusMonitor.createSnapshot(NOW, 0);
+
+        metricsRegistry.counter("mets.documents.parsed").add(300);
+        metricsRegistry.counter("mets.documents.unchanged").add(300);
+        String snapshot = statusMonitor.createSnapshot(NOW, TimeUnit.MINUTES.toNanos(1));
+
+        assertTrue(snapshot, snapshot.contains("\"metsDocumentsProcessed\":600"));
+        // one minute at ten documents per second moves the one minute average by 1 - 1/e
+        assertTrue(snapshot, snapshot.contains("\"metsDocumentsPerSecond\":{\"1m\":6.321,"));
+    }
+}
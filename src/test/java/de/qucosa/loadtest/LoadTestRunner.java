@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.qucosa.loadtest;
+
+import de.qucosa.fedora.mets.MetsProcessorBuilder;
+import de.qucosa.fedora.oai.OaiHarvesterBuilder;
+import de.qucosa.fedora.oai.OaiHeader;
+import de.qucosa.fedora.oai.QucosaDocumentFilter;
+import de.qucosa.persistence.PooledDataSourceFactory;
+import de.qucosa.persistence.PostgrePersistenceService;
+import de.qucosa.util.PooledHttpClientFactory;
+import de.qucosa.util.TerminateableRunnable;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.joda.time.Duration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives an {@link de.qucosa.fedora.oai.OaiHarvester}, a {@link de.qucosa.fedora.mets.MetsProcessor} and a
+ * {@link PostgrePersistenceService} against an {@link OaiMetsStubServer} and reports the number of documents
+ * persisted per second.
+ * <p>
+ * In a load test ({@code loadtest.durationseconds=0}) the run ends once all initial records are persisted.
+ * In a soak test the run lasts the given duration while the stub adds {@code loadtest.newrecordspersecond}.
+ * Every run uses its own repository, so runs don't interfere, but their data remains in the database. The
+ * tables must have been created, e.g. with {@code /persistence/createSequencesAndTables.sql}.
+ * <p>
+ * Configured by system properties, see the {@code loadtest} profile in the pom for how to pass them:
+ * <ul>
+ * <li>{@code loadtest.records}, {@code loadtest.pagesize}, {@code loadtest.newrecordspersecond}: records
+ * served by the stub</li>
+ * <li>{@code loadtest.oailatencymillis}, {@code loadtest.metslatencymillis}: response delay of the stub</li>
+ * <li>{@code loadtest.badresumptiontokenrate}, {@code loadtest.norecordsmatchrate},
+ * {@code loadtest.metserrorrate}: fraction of responses replaced by errors</li>
+ * <li>{@code loadtest.metsworkers}, {@code loadtest.metspagesize}, {@code loadtest.metsasync}: METS
+ * processing</li>
+ * <li>{@code loadtest.durationseconds}, {@code loadtest.timeoutseconds}: run length</li>
+ * <li>{@code loadtest.db.url}, {@code loadtest.db.user}, {@code loadtest.db.passwd}: database, defaults to
+ * the integration test database</li>
+ * </ul>
+ */
+public class LoadTestRunner {
+
+    private static final String DATABASE_DRIVER = "org.postgresql.Driver";
+    private static final long REPORT_INTERVAL_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        int records = Integer.getInteger("loadtest.records", 10000);
+        int durationSeconds = Integer.getInteger("loadtest.durationseconds", 0);
+        int timeoutSeconds = Integer.getInteger("loadtest.timeoutseconds", 600);
+        String repository = "loadtest-" + System.currentTimeMillis();
+
+        OaiMetsStubServer stubServer = new OaiMetsStubServer(0, records, Integer.getInteger("loadtest.pagesize", 1000))
+                .setNewRecordsPerSecond(getDouble("loadtest.newrecordspersecond", 0))
+                .setOaiLatency(Duration.millis(Long.getLong("loadtest.oailatencymillis", 50)))
+                .setMetsLatency(Duration.millis(Long.getLong("loadtest.metslatencymillis", 20)))
+                .setBadResumptionTokenRate(getDouble("loadtest.badresumptiontokenrate", 0))
+                .setNoRecordsMatchRate(getDouble("loadtest.norecordsmatchrate", 0))
+                .setMetsErrorRate(getDouble("loadtest.metserrorrate", 0));
+
+        BasicDataSource dataSource = PooledDataSourceFactory.createDataSource(DATABASE_DRIVER,
+                System.getProperty("loadtest.db.url", "jdbc:postgresql://localhost:5432/reportingUnitTest"),
+                System.getProperty("loadtest.db.user", "reportingDBUnitTest"),
+                System.getProperty("loadtest.db.passwd", "76Sp)qpH2D"),
+                6, Duration.standardMinutes(10), Duration.standardSeconds(30), "SELECT 1");
+        CloseableHttpClient httpClient = PooledHttpClientFactory.createHttpClient(40, 20,
+                Duration.standardSeconds(10), Duration.standardSeconds(60), Duration.standardSeconds(60), true);
+        CloseableHttpAsyncClient asyncHttpClient = Boolean.getBoolean("loadtest.metsasync")
+                ? PooledHttpClientFactory.createAsyncHttpClient(40, 20, Duration.standardSeconds(10),
+                Duration.standardSeconds(60), Duration.standardSeconds(60), true, 2)
+                : null;
+        ExecutorService executorService = Executors.newCachedThreadPool();
+
+        try {
+            stubServer.start();
+            PostgrePersistenceService persistenceService = new PostgrePersistenceService(dataSource, repository);
+            BlockingQueue<OaiHeader> handoffQueue = new ArrayBlockingQueue<>(1000);
+
+            TerminateableRunnable oaiHarvester = new OaiHarvesterBuilder(stubServer.getOaiUri(), httpClient,
+                    persistenceService)
+                    .setPollingInterval(Duration.standardSeconds(5))
+                    .setOaiHeaderFilter(new QucosaDocumentFilter())
+                    .setFC3CompatibilityMode(false)
+                    .setHandoffQueue(handoffQueue)
+                    .setPrefetch(true)
+                    .build();
+            TerminateableRunnable metsProcessor = new MetsProcessorBuilder(stubServer.getMetsUri(), httpClient,
+                    persistenceService)
+                    .setPollingInterval(Duration.standardSeconds(5))
+                    .setMinimumWaittimeBetweenTwoRequests(Duration.ZERO)
+                    .setWorkers(Integer.getInteger("loadtest.metsworkers", 8))
+                    .setPageSize(Integer.getInteger("loadtest.metspagesize", 100))
+                    .setNotifications(true)
+                    .setHandoffQueue(handoffQueue)
+                    .setAsyncHttpClient(asyncHttpClient)
+                    .build();
+
+            System.out.println("Load test of repository '" + repository + "' with " + records + " records from "
+                    + stubServer.getOaiUri());
+            long startMillis = System.currentTimeMillis();
+            executorService.execute(oaiHarvester);
+            executorService.execute(metsProcessor);
+
+            long endMillis = startMillis + TimeUnit.SECONDS.toMillis((durationSeconds > 0) ? durationSeconds
+                    : timeoutSeconds);
+            int documents;
+            do {
+                Thread.sleep(REPORT_INTERVAL_MILLIS);
+                documents = countReportingDocuments(dataSource, repository);
+                report(startMillis, documents, stubServer);
+            } while (System.currentTimeMillis() < endMillis
+                    && (durationSeconds > 0 || documents < stubServer.getExistingRecords()));
+
+            oaiHarvester.terminate();
+            metsProcessor.terminate();
+
+            System.out.println("Finished: " + documents + " of " + stubServer.getExistingRecords()
+                    + " existing records persisted, " + stubServer.getOaiRequests() + " OAI and "
+                    + stubServer.getMetsRequests() + " METS requests, " + stubServer.getInjectedErrors()
+                    + " injected errors");
+            report(startMillis, documents, stubServer);
+        } finally {
+            executorService.shutdownNow();
+            executorService.awaitTermination(1, TimeUnit.MINUTES);
+            stubServer.stop();
+            httpClient.close();
+            if (asyncHttpClient != null) {
+                asyncHttpClient.close();
+            }
+            dataSource.close();
+        }
+    }
+
+    private static void report(long startMillis, int documents, OaiMetsStubServer stubServer) {
+        double elapsedSeconds = (System.currentTimeMillis() - startMillis) / 1000.0;
+        System.out.println(String.format("%8.1f s: %d documents, %.1f records/s, %d OAI and %d METS requests",
+                elapsedSeconds, documents, documents / elapsedSeconds, stubServer.getOaiRequests(),
+                stubServer.getMetsRequests()));
+    }
+
+    private static int countReportingDocuments(BasicDataSource dataSource, String repository) throws SQLException {
+        String stm = "SELECT COUNT(*) FROM \"ReportingDocuments\" WHERE \"repository\" = ?";
+        try (Connection con = dataSource.getConnection();
+             PreparedStatement pst = con.prepareStatement(stm)) {
+            pst.setString(1, repository);
+            try (ResultSet rs = pst.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private static double getDouble(String key, double defaultValue) {
+        String value = System.getProperty(key);
+        return (value == null) ? defaultValue : Double.parseDouble(value);
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.qucosa.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.joda.time.Duration;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embeddable OAI-PMH data provider and METS dissemination service serving synthetic records, for load and soak
+ * tests without a Fedora instance.
+ * <p>
+ * The data provider serves ListIdentifiers pages of {@code pageSize} headers with resumption tokens and honours
+ * {@code from} and {@code until}. Record {@code n} has the identifier {@code oai:example.org:qucosa:n}. The
+ * initial records have datestamps one second apart starting at {@link #EARLIEST_DATESTAMP}. If new records per
+ * second are configured, further records appear over time with the current time as datestamp, so incremental
+ * harvests keep finding new records. Sets are not supported, ListSets is answered with {@code noSetHierarchy}.
+ * <p>
+ * The METS dissemination service answers {@code ?pid=qucosa:n} with one of the METS test fixtures.
+ * <p>
+ * Latency and errors can be injected at any time, also while the server is running.
+ */
+public class OaiMetsStubServer {
+
+    public static final Date EARLIEST_DATESTAMP = DatatypeConverter.parseDateTime("2016-01-01T00:00:00Z").getTime();
+
+    private static final String OAI_PATH = "/fedora/oai";
+    private static final String METS_PATH = "/mets";
+    private static final String RECORD_IDENTIFIER_PREFIX = "oai:example.org:qucosa:";
+    private static final String[] METS_FIXTURES = {"/mets/qucosa13-mets.xml", "/mets/qucosa22-mets.xml",
+            "/mets/qucosa7455-mets.xml", "/mets/qucosa31789-mets.xml", "/mets/qucosa31790-mets.xml"};
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final int initialRecords;
+    private final int pageSize;
+    private final String[] metsDocuments;
+    private final AtomicLong oaiRequests = new AtomicLong();
+    private final AtomicLong metsRequests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    private volatile long startMillis;
+    private volatile double newRecordsPerSecond = 0;
+    private volatile int deletedEvery = 10;
+    private volatile Duration oaiLatency = Duration.ZERO;
+    private volatile Duration metsLatency = Duration.ZERO;
+    private volatile double badResumptionTokenRate = 0;
+    private volatile double noRecordsMatchRate = 0;
+    private volatile double metsErrorRate = 0;
+
+    /**
+     * @param port           port to listen on, 0 for any free port
+     * @param initialRecords number of records available right from the start
+     * @param pageSize       maximum number of headers per ListIdentifiers page, must be at least 1
+     * @throws IOException if the server can't be bound or the METS fixtures can't be read
+     */
+    public OaiMetsStubServer(int port, int initialRecords, int pageSize) throws IOException {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("parameter pageSize must be at least 1");
+        }
+        this.initialRecords = initialRecords;
+        this.pageSize = pageSize;
+
+        metsDocuments = new String[METS_FIXTURES.length];
+        for (int i = 0; i < METS_FIXTURES.length; i++) {
+            try (InputStream in = getClass().getResourceAsStream(METS_FIXTURES[i])) {
+                metsDocuments[i] = IOUtils.toString(in, StandardCharsets.UTF_8);
+            }
+        }
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(executor);
+        server.createContext(OAI_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleOaiRequest(exchange);
+            }
+        });
+        server.createContext(METS_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleMetsRequest(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        startMillis = System.currentTimeMillis();
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public URI getOaiUri() {
+        return URI.create("http://localhost:" + server.getAddress().getPort() + OAI_PATH);
+    }
+
+    public URI getMetsUri() {
+        return URI.create("http://localhost:" + server.getAddress().getPort() + METS_PATH);
+    }
+
+    /**
+     * @param newRecordsPerSecond rate of records added after start, 0 for a fixed number of records
+     * @return this {@link OaiMetsStubServer} instance, never {@code null}.
+     */
+    public OaiMetsStubServer setNewRecordsPerSecond(double newRecordsPerSecond) {
+        this.newRecordsPerSecond = newRecordsPerSecond;
+        return this;
+    }
+
+    /**
+     * @param deletedEvery every n-th record is marked as deleted, 0 for no deleted records
+     * @return this {@link OaiMetsStubServer} instance, never {@code null}.
+     */
+    public OaiMetsStubServer setDeletedEvery(int deletedEvery) {
+        this.deletedEvery = deletedEvery;
+        return this;
+    }
+
+    /**
+     * @param oaiLatency delay of every OAI-PMH response
+     * @return this {@link OaiMetsStubServer} instance, never {@code null}.
+     */
+    public OaiMetsStubServer setOaiLatency(Duration oaiLatency) {
+        this.oaiLatency = oaiLatency;
+        return this;
+    }
+
+    /**
+     * @param metsLatency delay of every METS response
+     * @return this {@link OaiMetsStubServer} instance, never {@code null}.
+     */
+    public OaiMetsStubServer setMetsLatency(Duration metsLatency) {
+        this.metsLatency = metsLatency;
+        return this;
+    }
+
+    /**
+     * @param badResumptionTokenRate fraction of requests with resumption token answered with a
+     *                               {@code badResumptionToken} error
+     * @return this {@link OaiMetsStubServer} instance, never {@code null}.
+     */
+    public OaiMetsStubServer setBadResumptionTokenRate(double badResumptionTokenRate) {
+        this.badResumptionTokenRate = badResumptionTokenRate;
+        return this;
+    }
+
+    /**
+     * @param noRecordsMatchRate fraction of requests without resumption token answered with a
+     *                           {@code noRecordsMatch} error, regardless of the records available
+     * @return this {@link OaiMetsStubServer} instance, never {@code null}.
+     */
+    public OaiMetsStubServer setNoRecordsMatchRate(double noRecordsMatchRate) {
+        this.noRecordsMatchRate = noRecordsMatchRate;
+        return this;
+    }
+
+    /**
+     * @param metsErrorRate fraction of METS requests answered with {@code 500 Internal Server Error}
+     * @return this {@link OaiMetsStubServer} instance, never {@code null}.
+     */
+    public OaiMetsStubServer setMetsErrorRate(double metsErrorRate) {
+        this.metsErrorRate = metsErrorRate;
+        return this;
+    }
+
+    public long getOaiRequests() {
+        return oaiRequests.get();
+    }
+
+    public long getMetsRequests() {
+        return metsRequests.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    /**
+     * @return number of records available now, including deleted ones
+     */
+    public int getAvailableRecords() {
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+        return initialRecords + (int) (elapsedMillis * newRecordsPerSecond / 1000);
+    }
+
+    /**
+     * @return number of records available now that are not deleted
+     */
+    public int getExistingRecords() {
+        int available = getAvailableRecords();
+        return (deletedEvery > 0) ? available - available / deletedEvery : available;
+    }
+
+    private void handleOaiRequest(HttpExchange exchange) throws IOException {
+        oaiRequests.incrementAndGet();
+        delay(oaiLatency);
+
+        Map<String, String> parameters = parseQuery(exchange.getRequestURI());
+        String verb = parameters.get("verb");
+        String response;
+        if ("ListIdentifiers".equals(verb)) {
+            try {
+                response = listIdentifiers(parameters);
+            } catch (IllegalArgumentException e) {
+                response = oaiError("ListIdentifiers", "badArgument", e.getMessage());
+            }
+        } else if ("Identify".equals(verb)) {
+            response = identify();
+        } else if ("ListSets".equals(verb)) {
+            response = oaiError("ListSets", "noSetHierarchy", "This repository does not support sets.");
+        } else {
+            response = oaiError(null, "badVerb", "Illegal OAI verb: " + verb);
+        }
+        send(exchange, HttpStatus.SC_OK, response);
+    }
+
+    private String listIdentifiers(Map<String, String> parameters) {
+        int first;
+        int end;
+        String resumptionToken = parameters.get("resumptionToken");
+        if (resumptionToken != null) {
+            if (inject(badResumptionTokenRate)) {
+                return oaiError("ListIdentifiers", "badResumptionToken", "Injected error.");
+            }
+            // the token holds the range of the remaining list, so it's valid regardless of new records
+            String[] range = resumptionToken.split("-");
+            try {
+                first = Integer.parseInt(range[0]);
+                end = Integer.parseInt(range[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return oaiError("ListIdentifiers", "badResumptionToken", "Unknown token: " + resumptionToken);
+            }
+        } else {
+            if (inject(noRecordsMatchRate)) {
+                return oaiError("ListIdentifiers", "noRecordsMatch", "Injected error.");
+            }
+            int available = getAvailableRecords();
+            first = (parameters.containsKey("from")) ? firstRecordFrom(parseDatestamp(parameters.get("from")),
+                    available) : 0;
+            end = (parameters.containsKey("until")) ? firstRecordFrom(
+                    new Date(parseDatestamp(parameters.get("until")).getTime() + 1000), available) : available;
+            if (first >= end) {
+                return oaiError("ListIdentifiers", "noRecordsMatch", "No records in the requested range.");
+            }
+        }
+
+        int next = Math.min(first + pageSize, end);
+        StringBuilder xml = new StringBuilder((next - first) * 200 + 500);
+        appendResponseStart(xml, "ListIdentifiers");
+        xml.append("    <ListIdentifiers>\n");
+        for (int i = first; i < next; i++) {
+            xml.append(isDeleted(i) ? "        <header status=\"deleted\">\n" : "        <header>\n")
+                    .append("            <identifier>").append(RECORD_IDENTIFIER_PREFIX).append(i + 1)
+                    .append("</identifier>\n")
+                    .append("            <datestamp>").append(formatDatestamp(datestamp(i))).append("</datestamp>\n")
+                    .append("        </header>\n");
+        }
+        if (next < end) {
+            xml.append("        <resumptionToken cursor=\"").append(first).append("\">").append(next).append('-')
+                    .append(end).append("</resumptionToken>\n");
+        } else if (resumptionToken != null) {
+            // an empty token completes a list that was delivered in more than one page
+            xml.append("        <resumptionToken cursor=\"").append(first).append("\"/>\n");
+        }
+        xml.append("    </ListIdentifiers>\n</OAI-PMH>\n");
+        return xml.toString();
+    }
+
+    private String identify() {
+        StringBuilder xml = new StringBuilder();
+        appendResponseStart(xml, "Identify");
+        xml.append("    <Identify>\n")
+                .append("        <repositoryName>OAI-PMH stub</repositoryName>\n")
+                .append("        <protocolVersion>2.0</protocolVersion>\n")
+                .append("        <earliestDatestamp>").append(formatDatestamp(EARLIEST_DATESTAMP))
+                .append("</earliestDatestamp>\n")
+                .append("        <deletedRecord>persistent</deletedRecord>\n")
+                .append("        <granularity>YYYY-MM-DDThh:mm:ssZ</granularity>\n")
+                .append("    </Identify>\n</OAI-PMH>\n");
+        return xml.toString();
+    }
+
+    private String oaiError(String verb, String code, String message) {
+        StringBuilder xml = new StringBuilder();
+        appendResponseStart(xml, verb);
+        xml.append("    <error code=\"").append(code).append("\">").append(message).append("</error>\n")
+                .append("</OAI-PMH>\n");
+        return xml.toString();
+    }
+
+    private void appendResponseStart(StringBuilder xml, String verb) {
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">\n")
+                .append("    <responseDate>").append(formatDatestamp(new Date())).append("</responseDate>\n")
+                .append("    <request").append((verb == null) ? "" : " verb=\"" + verb + "\"").append('>')
+                .append(getOaiUri()).append("</request>\n");
+    }
+
+    private void handleMetsRequest(HttpExchange exchange) throws IOException {
+        metsRequests.incrementAndGet();
+        delay(metsLatency);
+
+        if (inject(metsErrorRate)) {
+            send(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, "Injected error.");
+            return;
+        }
+
+        String pid = parseQuery(exchange.getRequestURI()).get("pid");
+        int record;
+        try {
+            record = Integer.parseInt(pid.substring(pid.indexOf(':') + 1)) - 1;
+        } catch (NullPointerException | NumberFormatException e) {
+            send(exchange, HttpStatus.SC_BAD_REQUEST, "Invalid pid: " + pid);
+            return;
+        }
+        if (record < 0 || record >= getAvailableRecords() || isDeleted(record)) {
+            send(exchange, HttpStatus.SC_NOT_FOUND, "No such object: " + pid);
+            return;
+        }
+        String mets = metsDocuments[record % metsDocuments.length];
+        send(exchange, HttpStatus.SC_OK, mets.replaceFirst("OBJID=\"[^\"]*\"", "OBJID=\"" + pid + "\""));
+    }
+
+    private boolean isDeleted(int record) {
+        int every = deletedEvery;
+        return every > 0 && record % every == every - 1;
+    }
+
+    private Date datestamp(int record) {
+        if (record < initialRecords) {
+            return new Date(EARLIEST_DATESTAMP.getTime() + record * 1000L);
+        }
+        return new Date(startMillis + (long) ((record - initialRecords) * 1000 / newRecordsPerSecond));
+    }
+
+    /**
+     * @return index of the first record with a datestamp not before {@code from}, {@code available} if there
+     * is none. Datestamps have a granularity of seconds.
+     */
+    private int firstRecordFrom(Date from, int available) {
+        long fromSeconds = from.getTime() / 1000;
+        int low = 0;
+        int high = available;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (datestamp(middle).getTime() / 1000 < fromSeconds) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private boolean inject(double rate) {
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            injectedErrors.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private void delay(Duration latency) {
+        if (latency.getMillis() > 0) {
+            try {
+                Thread.sleep(latency.getMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", (status == HttpStatus.SC_OK)
+                ? "text/xml; charset=UTF-8" : "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(URI uri) {
+        Map<String, String> parameters = new HashMap<>();
+        for (NameValuePair pair : URLEncodedUtils.parse(uri, "UTF-8")) {
+            parameters.put(pair.getName(), pair.getValue());
+        }
+        return parameters;
+    }
+
+    /**
+     * The harvester formats {@code from} and {@code until} in the default time zone, with or without a literal
+     * {@code Z}, so they are read the same way here.
+     */
+    private static Date parseDatestamp(String datestamp) {
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").parse(datestamp);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Invalid datestamp: " + datestamp, e);
+        }
+    }
+
+    private static String formatDatestamp(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.qucosa.loadtest;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OaiMetsStubServerTest {
+
+    private static final Pattern RESUMPTION_TOKEN = Pattern.compile("<resumptionToken[^>]*>([^<]+)</resumptionToken>");
+
+    private OaiMetsStubServer stubServer;
+    private CloseableHttpClient httpClient;
+
+    /**
+     * Following the resumption tokens yields every record exactly once, the last page has an empty token.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void pagesWithResumptionTokens() throws Exception {
+        stubServer = new OaiMetsStubServer(0, 25, 10).setDeletedEvery(5);
+        stubServer.start();
+
+        int headers = 0;
+        int deleted = 0;
+        int pages = 0;
+        String query = "?verb=ListIdentifiers&metadataPrefix=oai_dc";
+        String response;
+        Matcher resumptionToken;
+        do {
+            response = get(stubServer.getOaiUri() + query, HttpStatus.SC_OK);
+            headers += count(response, "<header");
+            deleted += count(response, "status=\"deleted\"");
+            pages++;
+            resumptionToken = RESUMPTION_TOKEN.matcher(response);
+            query = "?verb=ListIdentifiers&resumptionToken=" + (resumptionToken.find() ? resumptionToken.group(1) : "");
+        } while (!query.endsWith("="));
+
+        assertEquals(3, pages);
+        assertEquals(25, headers);
+        assertEquals(5, deleted);
+        assertEquals(20, stubServer.getExistingRecords());
+        assertTrue(response.contains("<identifier>oai:example.org:qucosa:25</identifier>"));
+        assertTrue(response.contains("<resumptionToken cursor=\"20\"/>"));
+    }
+
+    /**
+     * Injected errors replace responses by OAI-PMH errors, requests from a date after the last datestamp don't
+     * match any record.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void injectErrors() throws Exception {
+        stubServer = new OaiMetsStubServer(0, 25, 10).setBadResumptionTokenRate(1);
+        stubServer.start();
+
+        assertTrue(get(stubServer.getOaiUri() + "?verb=ListIdentifiers&resumptionToken=10-25", HttpStatus.SC_OK)
+                .contains("code=\"badResumptionToken\""));
+        assertTrue(get(stubServer.getOaiUri() + "?verb=ListIdentifiers&metadataPrefix=oai_dc"
+                + "&from=2017-01-01T00:00:00Z", HttpStatus.SC_OK).contains("code=\"noRecordsMatch\""));
+        assertEquals(1, stubServer.getInjectedErrors());
+    }
+
+    /**
+     * METS documents are served from the test fixtures for existing records only.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void serveMetsDocuments() throws Exception {
+        stubServer = new OaiMetsStubServer(0, 25, 10);
+        stubServer.start();
+
+        assertTrue(get(stubServer.getMetsUri() + "?pid=qucosa:3", HttpStatus.SC_OK)
+                .contains("OBJID=\"qucosa:3\""));
+        get(stubServer.getMetsUri() + "?pid=qucosa:10", HttpStatus.SC_NOT_FOUND);
+        get(stubServer.getMetsUri() + "?pid=qucosa:26", HttpStatus.SC_NOT_FOUND);
+        assertEquals(3, stubServer.getMetsRequests());
+    }
+
+    @Before
+    public void setUp() {
+        httpClient = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        httpClient.close();
+        if (stubServer != null) {
+            stubServer.stop();
+        }
+    }
+
+    private String get(String uri, int expectedStatus) throws Exception {
+        try (CloseableHttpResponse httpResponse = httpClient.execute(new HttpGet(uri))) {
+            assertEquals(expectedStatus, httpResponse.getStatusLine().getStatusCode());
+            return EntityUtils.toString(httpResponse.getEntity(), "UTF-8");
+        }
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Saxon State and University Library Dresden (SLUB)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.qucosa.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MetricsRegistryTest {
+
+    /**
+     * Metrics of a repository view share the registry but are prefixed with the repository name.
+     */
+    @Test
+    public void repositoryMetricsArePrefixed() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.forRepository("qucosa").counter("mets.documents.parsed").add(2);
+        registry.forRepository("qucosa").counter("mets.documents.parsed").increment();
+        registry.counter("mets.documents.parsed").increment();
+
+        assertEquals(3, registry.counter("repo.qucosa.mets.documents.parsed").getCount());
+        assertEquals(1, registry.counter("mets.documents.parsed").getCount());
+        assertSame(registry, registry.forRepository(""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nameOfOtherTypeIsRejected() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.timer("db.getOaiHeaders");
+        registry.counter("db.getOaiHeaders");
+    }
+
+    @Test
+    public void writesOneLinePerMetric() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.summary("oai.page.headers").update(4);
+        registry.summary("oai.page.headers").update(8);
+        registry.gauge("oai.headers.backlog", new Gauge() {
+            @Override
+            public long getValue() {
+                return 42;
+            }
+        });
+
+        StringBuilder text = new StringBuilder();
+        registry.writeText(text);
+
+        assertEquals("oai.headers.backlog value=42\n"
+                + "oai.page.headers count=2 sum=12 mean=6.00 max=8\n", text.toString());
+    }
+
+    /**
+     * A closed timer context records its duration once.
+     */
+    @Test
+    public void timerContextRecordsOnce() throws Exception {
+        Timer timer = new MetricsRegistry().timer("oai.parse");
+        Timer.Context time = timer.time();
+        time.close();
+        time.close();
+
+        assertEquals(1, timer.getCount());
+    }
+}
@@ -19,6 +19,8 @@ package de.qucosa.persistence;
 import de.qucosa.fedora.mets.ReportingDocumentMetadata;
 import de.qucosa.fedora.oai.OaiHeader;
 import de.qucosa.fedora.oai.OaiRunResult;
+import de.qucosa.fedora.oai.OaiSliceRunResult;
+import org.apache.commons.dbcp2.BasicDataSource;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
 import org.junit.AfterClass;
@@ -27,15 +29,29 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import javax.xml.bind.DatatypeConverter;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -320,6 +336,57 @@ public class PostgrePersistenceServiceTestIT {
         // had been inserted as number four
     }
 
+    /**
+     * {@link OaiRunResult}s of different sets are read separately, and the cleanup keeps the most recent
+     * {@link OaiRunResult} of every set.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void keepLastRunResultOfEachSet() throws Exception {
+
+        Date oldRun = DatatypeConverter.parseDateTime("2016-07-20T11:22:57Z").getTime();
+        OaiRunResult wholeRepository = new OaiRunResult(oldRun, oldRun, null, null, oldRun);
+        OaiRunResult firstSet = new OaiRunResult(oldRun, oldRun, null, null, oldRun, "test:11");
+        OaiRunResult secondSet = new OaiRunResult(oldRun, oldRun, "140225245500000", null, oldRun, "test:22");
+        persistenceService.storeOaiRunResult(wholeRepository);
+        persistenceService.storeOaiRunResult(firstSet);
+        persistenceService.storeOaiRunResult(secondSet);
+
+        persistenceService.cleanupOaiRunResults(now());
+
+        assertEquals(3, testPersistenceService.countOaiRunResults());
+        assertEquals(wholeRepository, persistenceService.getLastOaiRunResult());
+        assertEquals(firstSet, persistenceService.getLastOaiRunResult("test:11"));
+        assertEquals(secondSet, persistenceService.getLastOaiRunResult("test:22"));
+    }
+
+    /**
+     * Assert that {@link OaiSliceRunResult}s can be written, replaced, read in order of their slice index and
+     * removed.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void writeReadAndRemoveOaiSliceRunResults() throws Exception {
+
+        Date from = DatatypeConverter.parseDateTime("2014-01-01T00:00:00Z").getTime();
+        Date boundary = DatatypeConverter.parseDateTime("2015-01-01T00:00:00Z").getTime();
+        Date until = DatatypeConverter.parseDateTime("2016-01-01T00:00:00Z").getTime();
+        OaiSliceRunResult secondSlice = new OaiSliceRunResult(1, boundary, until, null, false);
+        OaiSliceRunResult firstSlice = new OaiSliceRunResult(0, from, boundary, null, false);
+        OaiSliceRunResult firstSliceInProgress = new OaiSliceRunResult(0, from, boundary, "140225245500000", false);
+
+        persistenceService.storeOaiSliceRunResult(secondSlice);
+        persistenceService.storeOaiSliceRunResult(firstSlice);
+        persistenceService.storeOaiSliceRunResult(firstSliceInProgress);
+
+        assertEquals(Arrays.asList(firstSliceInProgress, secondSlice), persistenceService.getOaiSliceRunResults());
+
+        persistenceService.removeOaiSliceRunResults();
+        assertTrue(persistenceService.getOaiSliceRunResults().isEmpty());
+    }
+
     /* ---- End OaiRunResult tests ---- */
     /* ---- Begin OaiHeader tests ---- */
 
@@ -382,6 +449,111 @@ public class PostgrePersistenceServiceTestIT {
         assertEquals(expectedHeaders, actualHeaders);
     }
 
+    /**
+     * Write {@link OaiHeader}s using the bulk upsert path. If a record identifier occurs more than once, the last
+     * header must win. Set specs containing separators and quotes must survive the CSV encoding.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void bulkWriteAndReadOaiHeaders() throws Exception {
+
+        ((PostgrePersistenceService) persistenceService).setBulkUpsertThreshold(1);
+
+        List<OaiHeader> existingHeaders = new LinkedList<>();
+        Date dateStamp_0 = DatatypeConverter.parseDateTime("2010-01-01T00:00:00Z").getTime();
+        existingHeaders.add(new OaiHeader("oai:example.org:qucosa:123", dateStamp_0, false));
+        persistenceService.addOrUpdateOaiHeaders(existingHeaders);
+
+        List<OaiHeader> headersToStore = new LinkedList<>();
+        Date dateStamp_1 = DatatypeConverter.parseDateTime("2012-03-30T06:54:12.345Z").getTime();
+        headersToStore.add(new OaiHeader("oai:example.org:qucosa:123", dateStamp_1, false));
+        Date dateStamp_2 = DatatypeConverter.parseDateTime("2016-07-20T11:22:57Z").getTime();
+        List<String> setSpec2 = new LinkedList<>();
+        setSpec2.add("test");
+        setSpec2.add("test,\" with separator, \\ backslash and quotes");
+        OaiHeader header_2 = new OaiHeader("oai:example.org:qucosa:123", dateStamp_2, setSpec2, true);
+        headersToStore.add(header_2);
+        OaiHeader header_3 = new OaiHeader("oai:example.org:qucosa:199", dateStamp_1, new LinkedList<String>(), false);
+        headersToStore.add(header_3);
+
+        persistenceService.addOrUpdateOaiHeaders(headersToStore);
+
+        List<OaiHeader> expectedHeaders = new LinkedList<>();
+        expectedHeaders.add(header_2);
+        expectedHeaders.add(header_3);
+        assertEquals(expectedHeaders, persistenceService.getOaiHeaders());
+    }
+
+    /**
+     * Read {@link OaiHeader}s page by page. Pages must be ordered by datestamp and record identifier, and each page
+     * must continue after the last header of the previous one.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void readOaiHeadersPageByPage() throws Exception {
+
+        Date older = DatatypeConverter.parseDateTime("2012-03-30T06:54:12Z").getTime();
+        Date newer = DatatypeConverter.parseDateTime("2016-07-20T11:22:57Z").getTime();
+        OaiHeader header_1 = new OaiHeader("oai:example.org:qucosa:300", older, false);
+        OaiHeader header_2 = new OaiHeader("oai:example.org:qucosa:400", older, false);
+        OaiHeader header_3 = new OaiHeader("oai:example.org:qucosa:100", newer, false);
+
+        List<OaiHeader> headersToStore = new LinkedList<>();
+        headersToStore.add(header_3);
+        headersToStore.add(header_2);
+        headersToStore.add(header_1);
+        persistenceService.addOrUpdateOaiHeaders(headersToStore);
+
+        List<OaiHeader> firstPage = persistenceService.getOaiHeaders(null, null, 2);
+        assertEquals(Arrays.asList(header_1, header_2), firstPage);
+
+        List<OaiHeader> secondPage = persistenceService.getOaiHeaders(header_2.getDatestamp(),
+                header_2.getRecordIdentifier(), 2);
+        assertEquals(Collections.singletonList(header_3), secondPage);
+
+        List<OaiHeader> thirdPage = persistenceService.getOaiHeaders(header_3.getDatestamp(),
+                header_3.getRecordIdentifier(), 2);
+        assertTrue(thirdPage.isEmpty());
+    }
+
+    /**
+     * Two lease owners claiming {@link OaiHeader}s get disjoint sets. Expired claims and claims on headers that have
+     * been updated in the meantime can be taken over.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void claimOaiHeaders() throws Exception {
+
+        Date older = DatatypeConverter.parseDateTime("2012-03-30T06:54:12Z").getTime();
+        Date newer = DatatypeConverter.parseDateTime("2016-07-20T11:22:57Z").getTime();
+        OaiHeader header_1 = new OaiHeader("oai:example.org:qucosa:100", older, false);
+        OaiHeader header_2 = new OaiHeader("oai:example.org:qucosa:200", newer, false);
+        OaiHeader header_3 = new OaiHeader("oai:example.org:qucosa:300", newer, false);
+        persistenceService.addOrUpdateOaiHeaders(Arrays.asList(header_3, header_2, header_1));
+
+        Duration lease = Duration.standardMinutes(10);
+        assertEquals(Arrays.asList(header_1, header_2), persistenceService.claimOaiHeaders("node-1", lease, 2));
+        assertEquals(Collections.singletonList(header_3), persistenceService.claimOaiHeaders("node-2", lease, 2));
+        assertTrue(persistenceService.claimOaiHeaders("node-2", lease, 2).isEmpty());
+
+        // updating a header releases its claim
+        OaiHeader header_2_modified = new OaiHeader(header_2.getRecordIdentifier(), now(), true);
+        persistenceService.addOrUpdateOaiHeaders(Collections.singletonList(header_2_modified));
+        assertEquals(Collections.singletonList(header_2_modified),
+                persistenceService.claimOaiHeaders("node-2", lease, 2));
+
+        // expired claims can be taken over
+        OaiHeader header_4 = new OaiHeader("oai:example.org:qucosa:400", newer, false);
+        persistenceService.addOrUpdateOaiHeaders(Collections.singletonList(header_4));
+        assertEquals(Collections.singletonList(header_4),
+                persistenceService.claimOaiHeaders("node-3", Duration.ZERO, 1));
+        assertEquals(Collections.singletonList(header_4),
+                persistenceService.claimOaiHeaders("node-2", lease, 1));
+    }
+
     /**
      * Write a {@link OaiHeader} to database. Modify its {@code dateStamp},
      * {@code setSpec} and {@code statusIsDeleted} and write it to database a
@@ -570,9 +742,356 @@ public class PostgrePersistenceServiceTestIT {
         assertTrue(reportingDocumentMetadata.contains(doc66));
     }
     
+    /**
+     * Look up the header last modified dates of several documents in one call. Unknown documents are missing
+     * from the result.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void readHeaderLastModifiedOfReportingDocuments() throws Exception {
+
+        Date headerLastModified101 = new Date(new DateTime("2015-12-17T17:03:45+01").getMillis());
+        Date headerLastModified66 = new Date(new DateTime("2015-12-17T17:03:36+01").getMillis());
+        Date distributionDate = new Date(new DateTime("2009-06-02T00:00:00+02").getMillis());
+        persistenceService.addOrUpdateReportingDocuments(Arrays.asList(
+                new ReportingDocumentMetadata("oai:example.org:qucosa:101", "SLUB Dresden", "monograph",
+                        distributionDate, headerLastModified101),
+                new ReportingDocumentMetadata("oai:example.org:qucosa:66", "TU Dresden", "article",
+                        distributionDate, headerLastModified66)));
+
+        Map<String, Date> headerLastModified = persistenceService.getReportingDocumentsHeaderLastModified(
+                Arrays.asList("oai:example.org:qucosa:101", "oai:example.org:qucosa:66", "oai:example.org:qucosa:1"));
+
+        assertEquals(2, headerLastModified.size());
+        assertEquals(headerLastModified101, headerLastModified.get("oai:example.org:qucosa:101"));
+        assertEquals(headerLastModified66, headerLastModified.get("oai:example.org:qucosa:66"));
+    }
+
+    /**
+     * The fetch date is stored with a document and replaced on update. Documents without a fetch date are missing
+     * from the result.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void readLastFetchedOfReportingDocuments() throws Exception {
+
+        Date headerLastModified = new Date(new DateTime("2015-12-17T17:03:45+01").getMillis());
+        Date distributionDate = new Date(new DateTime("2009-06-02T00:00:00+02").getMillis());
+        Date lastFetched = new Date(new DateTime("2015-12-18T10:30:00+01").getMillis());
+        persistenceService.addOrUpdateReportingDocuments(Arrays.asList(
+                new ReportingDocumentMetadata("oai:example.org:qucosa:101", "SLUB Dresden", "monograph",
+                        distributionDate, headerLastModified, new Date(0)),
+                new ReportingDocumentMetadata("oai:example.org:qucosa:66", "TU Dresden", "article",
+                        distributionDate, headerLastModified)));
+        persistenceService.addOrUpdateReportingDocuments(Collections.singletonList(
+                new ReportingDocumentMetadata("oai:example.org:qucosa:101", "SLUB Dresden", "monograph",
+                        distributionDate, headerLastModified, lastFetched)));
+
+        Map<String, Date> fetched = persistenceService.getReportingDocumentsLastFetched(
+                Arrays.asList("oai:example.org:qucosa:101", "oai:example.org:qucosa:66", "oai:example.org:qucosa:1"));
+
+        assertEquals(Collections.singletonMap("oai:example.org:qucosa:101", lastFetched), fetched);
+    }
+
+    /**
+     * Documents of deleted records are removed, unknown record identifiers are ignored.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void removeReportingDocuments() throws Exception {
+
+        Date headerLastModified = new Date(new DateTime("2015-12-17T17:03:45+01").getMillis());
+        Date distributionDate = new Date(new DateTime("2009-06-02T00:00:00+02").getMillis());
+        persistenceService.addOrUpdateReportingDocuments(Arrays.asList(
+                new ReportingDocumentMetadata("oai:example.org:qucosa:101", "SLUB Dresden", "monograph",
+                        distributionDate, headerLastModified),
+                new ReportingDocumentMetadata("oai:example.org:qucosa:66", "TU Dresden", "article",
+                        distributionDate, headerLastModified)));
+
+        persistenceService.removeReportingDocuments(
+                Arrays.asList("oai:example.org:qucosa:101", "oai:example.org:qucosa:1"));
+
+        Map<String, Date> remaining = persistenceService.getReportingDocumentsHeaderLastModified(
+                Arrays.asList("oai:example.org:qucosa:101", "oai:example.org:qucosa:66"));
+        assertEquals(Collections.singleton("oai:example.org:qucosa:66"), remaining.keySet());
+    }
+
+    /**
+     * Publications are counted per mandator, documentType and month or year of the distributionDate. The end of
+     * the date range is exclusive.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void countPublications() throws Exception {
+        addReportingDocuments();
+        ReportingQueryService queryService = (ReportingQueryService) persistenceService;
+
+        List<PublicationCount> byMonth = queryService.countPublications(date("2016-01-01"), date("2017-01-01"),
+                ReportingQueryService.Period.MONTH, null);
+        assertEquals(Arrays.asList(
+                new PublicationCount("SLUB Dresden", "article", date("2016-02-01"), 1),
+                new PublicationCount("SLUB Dresden", "monograph", date("2016-01-01"), 2),
+                new PublicationCount("TU Dresden", "article", date("2016-02-01"), 1)), byMonth);
+
+        List<PublicationCount> byYear = queryService.countPublications(date("2016-01-01"), date("2018-01-01"),
+                ReportingQueryService.Period.YEAR, null);
+        assertEquals(Arrays.asList(
+                new PublicationCount("SLUB Dresden", "article", date("2016-01-01"), 1),
+                new PublicationCount("SLUB Dresden", "monograph", date("2016-01-01"), 2),
+                new PublicationCount("TU Dresden", "article", date("2016-01-01"), 1),
+                new PublicationCount("TU Dresden", "article", date("2017-01-01"), 1)), byYear);
+    }
+
+    @Test
+    public void countPublicationsOfMandator() throws Exception {
+        addReportingDocuments();
+        ReportingQueryService queryService = (ReportingQueryService) persistenceService;
+
+        List<PublicationCount> counts = queryService.countPublications(date("2016-01-01"), date("2017-01-01"),
+                ReportingQueryService.Period.MONTH, "TU Dresden");
+        assertEquals(Collections.singletonList(
+                new PublicationCount("TU Dresden", "article", date("2016-02-01"), 1)), counts);
+    }
+
+    /**
+     * Updating a document's mandator or distributionDate moves it to another bucket of the statistics, removing
+     * a document decrements its bucket. Whole months are read from the statistics, so both ranges have to agree.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void maintainPublicationStatistics() throws Exception {
+        addReportingDocuments();
+        ReportingQueryService queryService = (ReportingQueryService) persistenceService;
+        Date headerLastModified = new Date(new DateTime("2017-03-02T12:00:00+01").getMillis());
+
+        persistenceService.addOrUpdateReportingDocuments(Arrays.asList(
+                new ReportingDocumentMetadata("oai:example.org:qucosa:1", "TU Dresden", "monograph",
+                        date("2016-01-10"), headerLastModified),
+                new ReportingDocumentMetadata("oai:example.org:qucosa:3", "SLUB Dresden", "article",
+                        date("2016-03-05"), headerLastModified)));
+        persistenceService.removeReportingDocuments(Collections.singletonList("oai:example.org:qucosa:4"));
+
+        List<PublicationCount> expected = Arrays.asList(
+                new PublicationCount("SLUB Dresden", "article", date("2016-03-01"), 1),
+                new PublicationCount("SLUB Dresden", "monograph", date("2016-01-01"), 1),
+                new PublicationCount("TU Dresden", "monograph", date("2016-01-01"), 1));
+        assertEquals(expected, queryService.countPublications(date("2016-01-01"), date("2017-01-01"),
+                ReportingQueryService.Period.MONTH, null));
+        assertEquals(expected, queryService.countPublications(date("2016-01-01"), date("2016-12-31"),
+                ReportingQueryService.Period.MONTH, null));
+    }
+
+    /**
+     * Adding the same document twice in one call counts it once.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void countDocumentAddedTwiceOnce() throws Exception {
+        Date headerLastModified = new Date(new DateTime("2017-03-01T12:00:00+01").getMillis());
+        persistenceService.addOrUpdateReportingDocuments(Arrays.asList(
+                new ReportingDocumentMetadata("oai:example.org:qucosa:1", "SLUB Dresden", "monograph",
+                        date("2016-01-10"), headerLastModified),
+                new ReportingDocumentMetadata("oai:example.org:qucosa:1", "SLUB Dresden", "monograph",
+                        date("2016-02-10"), headerLastModified)));
+
+        List<PublicationCount> counts = ((ReportingQueryService) persistenceService).countPublications(
+                date("2016-01-01"), date("2017-01-01"), ReportingQueryService.Period.YEAR, null);
+        assertEquals(Collections.singletonList(
+                new PublicationCount("SLUB Dresden", "monograph", date("2016-01-01"), 1)), counts);
+    }
+
+    /**
+     * Two services adding the same new document at the same time count it once.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void countDocumentAddedConcurrentlyOnce() throws Exception {
+        final int rounds = 20;
+        final Date headerLastModified = new Date(new DateTime("2017-03-01T12:00:00+01").getMillis());
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Void>> results = new LinkedList<>();
+            for (int service = 0; service < 2; service++) {
+                final PersistenceService concurrentPersistenceService = new PostgrePersistenceService(
+                        DATABASE_DRIVER, DATABASE_URL, DATABASE_USER, DATABASE_PASSWORD);
+                results.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int round = 0; round < rounds; round++) {
+                            barrier.await(10, TimeUnit.SECONDS);
+                            concurrentPersistenceService.addOrUpdateReportingDocuments(Collections.singletonList(
+                                    new ReportingDocumentMetadata("oai:example.org:qucosa:" + round,
+                                            "SLUB Dresden", "monograph", date("2016-01-10"), headerLastModified)));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        List<PublicationCount> counts = ((ReportingQueryService) persistenceService).countPublications(
+                date("2016-01-01"), date("2017-01-01"), ReportingQueryService.Period.YEAR, null);
+        assertEquals(Collections.singletonList(
+                new PublicationCount("SLUB Dresden", "monograph", date("2016-01-01"), rounds)), counts);
+    }
+
     /* ---- End ReportingDocumentMetadata tests ---- */
 
 
+    /**
+     * A service waiting for new {@link OaiHeader}s is notified once another service added headers.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void notifyOnNewOaiHeaders() throws Exception {
+
+        PersistenceService otherPersistenceService = new PostgrePersistenceService(DATABASE_DRIVER, DATABASE_URL,
+                DATABASE_USER, DATABASE_PASSWORD);
+
+        // the first call starts listening
+        assertFalse(persistenceService.awaitOaiHeadersAdded(Duration.millis(100)));
+
+        Date dateStamp = DatatypeConverter.parseDateTime("2016-07-20T11:22:57Z").getTime();
+        otherPersistenceService.addOrUpdateOaiHeaders(
+                Collections.singletonList(new OaiHeader("oai:example.org:qucosa:123", dateStamp, false)));
+
+        assertTrue(persistenceService.awaitOaiHeadersAdded(Duration.standardSeconds(5)));
+        assertFalse(persistenceService.awaitOaiHeadersAdded(Duration.millis(100)));
+    }
+
+    /**
+     * Services scoped to different repositories neither see each other's {@link OaiHeader}s and
+     * {@link OaiRunResult}s nor get notified on each other's headers, even if record identifiers are equal.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void keepRepositoriesApart() throws Exception {
+
+        PersistenceService otherPersistenceService = new PostgrePersistenceService(DATABASE_DRIVER, DATABASE_URL,
+                DATABASE_USER, DATABASE_PASSWORD, "other");
+
+        // the first call starts listening
+        assertFalse(persistenceService.awaitOaiHeadersAdded(Duration.millis(100)));
+
+        Date dateStamp = DatatypeConverter.parseDateTime("2016-07-20T11:22:57Z").getTime();
+        OaiHeader header = new OaiHeader("oai:example.org:qucosa:123", dateStamp, false);
+        OaiHeader otherHeader = new OaiHeader("oai:example.org:qucosa:123", dateStamp, true);
+        persistenceService.addOrUpdateOaiHeaders(Collections.singletonList(header));
+        otherPersistenceService.addOrUpdateOaiHeaders(Collections.singletonList(otherHeader));
+
+        assertTrue(persistenceService.awaitOaiHeadersAdded(Duration.standardSeconds(5)));
+        assertFalse(persistenceService.awaitOaiHeadersAdded(Duration.millis(100)));
+
+        assertEquals(Collections.singletonList(header), persistenceService.getOaiHeaders());
+        assertEquals(Collections.singletonList(otherHeader), otherPersistenceService.getOaiHeaders());
+
+        OaiRunResult runResult = new OaiRunResult(dateStamp, dateStamp, null, null, dateStamp);
+        otherPersistenceService.storeOaiRunResult(runResult);
+        assertNull(persistenceService.getLastOaiRunResult());
+        assertEquals(runResult, otherPersistenceService.getLastOaiRunResult());
+    }
+
+    /**
+     * A lock is held by one {@link PostgrePersistenceService} at a time. Once released, another service can take it.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void lockIsHeldByOneServiceOnly() throws Exception {
+
+        PersistenceService otherPersistenceService = new PostgrePersistenceService(DATABASE_DRIVER, DATABASE_URL,
+                DATABASE_USER, DATABASE_PASSWORD);
+        String lockName = "OaiHarvester http://localhost:8000/fedora/oai";
+
+        try {
+            assertTrue(persistenceService.tryAcquireLock(lockName));
+            assertTrue("Acquiring a held lock again must succeed", persistenceService.tryAcquireLock(lockName));
+            assertFalse(otherPersistenceService.tryAcquireLock(lockName));
+
+            persistenceService.releaseLock(lockName);
+            assertTrue(otherPersistenceService.tryAcquireLock(lockName));
+            assertFalse(persistenceService.tryAcquireLock(lockName));
+        } finally {
+            persistenceService.releaseLock(lockName);
+            otherPersistenceService.releaseLock(lockName);
+        }
+    }
+
+    /**
+     * All locks of a service are held by one connection, so a pool of a single connection is enough for several
+     * harvesters. It is returned to the pool once the last lock has been released.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void locksShareOneConnection() throws Exception {
+
+        BasicDataSource dataSource = PooledDataSourceFactory.createDataSource(DATABASE_DRIVER, DATABASE_URL,
+                DATABASE_USER, DATABASE_PASSWORD, 1, Duration.standardMinutes(1), Duration.standardSeconds(2),
+                null);
+        PostgrePersistenceService pooledPersistenceService = new PostgrePersistenceService(dataSource,
+                PostgrePersistenceService.DEFAULT_REPOSITORY);
+        try {
+            assertTrue(pooledPersistenceService.tryAcquireLock("OaiHarvester http://localhost:8000/fedora/oai set a"));
+            assertTrue(pooledPersistenceService.tryAcquireLock("OaiHarvester http://localhost:8000/fedora/oai set b"));
+            assertEquals(1, dataSource.getNumActive());
+
+            pooledPersistenceService.releaseLock("OaiHarvester http://localhost:8000/fedora/oai set a");
+            assertEquals(1, dataSource.getNumActive());
+            pooledPersistenceService.releaseLock("OaiHarvester http://localhost:8000/fedora/oai set b");
+            assertEquals(0, dataSource.getNumActive());
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * Closing the service returns its listening connection to the pool without the subscription, so the next
+     * borrower doesn't collect notifications.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void closeReturnsListenConnectionUnsubscribed() throws Exception {
+
+        BasicDataSource dataSource = PooledDataSourceFactory.createDataSource(DATABASE_DRIVER, DATABASE_URL,
+                DATABASE_USER, DATABASE_PASSWORD, 1, Duration.standardMinutes(1), Duration.standardSeconds(2),
+                null);
+        PostgrePersistenceService pooledPersistenceService = new PostgrePersistenceService(dataSource,
+                PostgrePersistenceService.DEFAULT_REPOSITORY);
+        try {
+            assertFalse(pooledPersistenceService.awaitOaiHeadersAdded(Duration.millis(100)));
+            assertEquals(1, dataSource.getNumActive());
+
+            pooledPersistenceService.close();
+            assertEquals(0, dataSource.getNumActive());
+
+            try (Connection con = dataSource.getConnection();
+                 Statement st = con.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM pg_listening_channels()")) {
+                assertTrue(rs.next());
+                assertEquals(0, rs.getInt(1));
+            }
+        } finally {
+            dataSource.close();
+        }
+    }
+
     @Before
     public void setUp() throws Exception {
 
@@ -604,6 +1123,28 @@ public class PostgrePersistenceServiceTestIT {
         testPersistenceService.tearDown();
     }
 
+    private void addReportingDocuments() throws Exception {
+        Date headerLastModified = new Date(new DateTime("2017-03-01T12:00:00+01").getMillis());
+        persistenceService.addOrUpdateReportingDocuments(Arrays.asList(
+                new ReportingDocumentMetadata("oai:example.org:qucosa:1", "SLUB Dresden", "monograph",
+                        date("2016-01-10"), headerLastModified),
+                new ReportingDocumentMetadata("oai:example.org:qucosa:2", "SLUB Dresden", "monograph",
+                        date("2016-01-31"), headerLastModified),
+                new ReportingDocumentMetadata("oai:example.org:qucosa:3", "SLUB Dresden", "article",
+                        date("2016-02-05"), headerLastModified),
+                new ReportingDocumentMetadata("oai:example.org:qucosa:4", "TU Dresden", "article",
+                        date("2016-02-29"), headerLastModified),
+                new ReportingDocumentMetadata("oai:example.org:qucosa:5", "TU Dresden", "article",
+                        date("2017-01-01"), headerLastModified)));
+    }
+
+    /**
+     * @return start of the day in the default time zone, which is also the time zone of the database session
+     */
+    private Date date(String day) {
+        return new DateTime(day).toDate();
+    }
+
     private Date now() {
         return Calendar.getInstance().getTime();
     }
@@ -21,6 +21,10 @@ TRUNCATE TABLE "OAIRunResult" RESTART IDENTITY;
 ALTER SEQUENCE "oairunresult_ID_seq" RESTART WITH 1;
 
 
+ TRUNCATE TABLE "OAISliceRunResult";
+
  TRUNCATE TABLE "OAIHeader";
  
- TRUNCATE TABLE "ReportingDocuments";
\ No newline at end of file
+ TRUNCATE TABLE "ReportingDocuments";
+
+ TRUNCATE TABLE "PublicationStatistics";
\ No newline at end of file